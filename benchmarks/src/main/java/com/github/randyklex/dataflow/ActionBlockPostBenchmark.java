@@ -0,0 +1,61 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how fast messages can be posted to and processed by an ActionBlock with a trivial
+ * action, across degrees of parallelism and with and without a bounded capacity.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionBlockPostBenchmark {
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    @Param({"1", "4"})
+    public int maxDegreeOfParallelism;
+
+    /*
+     * -1 is unbounded. A bounded block declines posts while it's full, so the poster retries them.
+     */
+    @Param({"-1", "1000"})
+    public int boundedCapacity;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void post() throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(maxDegreeOfParallelism);
+        options.setBoundedCapacity(boundedCapacity);
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer value) -> { processed.countDown(); }, options);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+        {
+            while (!block.post(i))
+                Thread.yield();
+        }
+
+        processed.await();
+    }
+}
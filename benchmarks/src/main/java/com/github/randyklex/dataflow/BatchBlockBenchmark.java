@@ -0,0 +1,64 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures messages per second through a BatchBlock into an ActionBlock whose action stands in for
+ * a sink with a fixed cost per call, such as a round trip to a database, plus a small cost per item.
+ * A batch size of one is the unbatched baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBlockBenchmark {
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    private static final long COST_PER_CALL = 2_000;
+
+    private static final long COST_PER_ITEM = 20;
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void postThroughBatches() throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ActionBlock<List<Integer>> sink = new ActionBlock<>((List<Integer> batch) -> {
+            Blackhole.consumeCPU(COST_PER_CALL + COST_PER_ITEM * batch.size());
+            for (int i = 0; i < batch.size(); i++)
+                processed.countDown();
+        });
+
+        BatchBlock<Integer> batcher = new BatchBlock<>(batchSize);
+        batcher.linkTo(sink);
+
+        Integer item = 42;
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            batcher.post(item);
+
+        batcher.complete();
+        processed.await();
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures messages per second broadcast by a BroadcastBlock to a growing number of linked
+ * ActionBlocks, each of which receives every message. Dividing by the number of targets gives
+ * the cost of a single delivery.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBlockBenchmark {
+
+    private static final int MESSAGE_COUNT = 10_000;
+
+    @Param({"1", "10", "50"})
+    public int targetCount;
+
+    private BroadcastBlock<Integer> block;
+
+    private volatile CountDownLatch delivered;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        block = new BroadcastBlock<>(null);
+        for (int i = 0; i < targetCount; i++)
+            block.linkTo(new ActionBlock<>((Integer message) -> delivered.countDown()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        block.complete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void broadcast() throws InterruptedException
+    {
+        CountDownLatch latch = new CountDownLatch(MESSAGE_COUNT * targetCount);
+        delivered = latch;
+
+        Integer item = 42;
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            block.post(item);
+
+        latch.await();
+    }
+}
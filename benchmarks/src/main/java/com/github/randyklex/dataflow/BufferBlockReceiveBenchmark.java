@@ -0,0 +1,97 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures pulling messages out of a BufferBlock one TryReceive at a time against draining them
+ * in bulk, with a LinkedBlockingQueue as the baseline. Every invocation posts a batch and then
+ * receives all of it on the same thread. Run with -prof gc to see the allocation per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@State(Scope.Thread)
+public class BufferBlockReceiveBenchmark {
+
+    private static final int BATCH_SIZE = 4096;
+
+    private static final Integer ITEM = 42;
+
+    /*
+     * The maximum number of messages taken per drainTo call.
+     */
+    @Param({"256", "4096"})
+    public int maxElements;
+
+    private BufferBlock<Integer> block;
+
+    private LinkedBlockingQueue<Integer> queue;
+
+    private ArrayList<Integer> destination;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        block = new BufferBlock<>();
+        queue = new LinkedBlockingQueue<>();
+        destination = new ArrayList<>(BATCH_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void tryReceive(Blackhole blackhole)
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+            block.post(ITEM);
+
+        for (int i = 0; i < BATCH_SIZE; i++)
+            blackhole.consume(block.TryReceive(null));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void drainTo(Blackhole blackhole)
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+            block.post(ITEM);
+
+        while (block.drainTo(destination, maxElements) > 0)
+        {
+            blackhole.consume(destination);
+            destination.clear();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void linkedBlockingQueueDrainTo(Blackhole blackhole)
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+            queue.offer(ITEM);
+
+        while (queue.drainTo(destination, maxElements) > 0)
+        {
+            blackhole.consume(destination);
+            destination.clear();
+        }
+    }
+}
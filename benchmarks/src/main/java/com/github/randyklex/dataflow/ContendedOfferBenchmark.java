@@ -0,0 +1,112 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how posting to an unbounded, parallel ActionBlock scales with the number of threads
+ * posting to it at once. Every invocation has each producer post its share of the messages and
+ * waits until the block has processed all of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContendedOfferBenchmark {
+
+    // Divisible by every producer count.
+    private static final int MESSAGE_COUNT = 64_000;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int producers;
+
+    @Param({"16"})
+    public int maxDegreeOfParallelism;
+
+    private ActionBlock<Integer> block;
+
+    private Thread[] producerThreads;
+
+    // Producers wait here until the benchmark thread starts an invocation.
+    private CyclicBarrier start;
+
+    private volatile CountDownLatch processed;
+
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(maxDegreeOfParallelism);
+        block = new ActionBlock<>((Integer value) -> { processed.countDown(); }, options);
+
+        running = true;
+        start = new CyclicBarrier(producers + 1);
+        producerThreads = new Thread[producers];
+        int share = MESSAGE_COUNT / producers;
+        for (int p = 0; p < producers; p++)
+        {
+            producerThreads[p] = new Thread(() -> {
+                try
+                {
+                    while (true)
+                    {
+                        start.await();
+                        if (!running)
+                            return;
+
+                        Integer item = 42;
+                        for (int i = 0; i < share; i++)
+                            block.post(item);
+                    }
+                }
+                catch (Exception e)
+                {
+                    // The trial is over.
+                }
+            });
+            producerThreads[p].setDaemon(true);
+            producerThreads[p].start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        running = false;
+        start.await();
+        for (Thread producer : producerThreads)
+            producer.join();
+
+        block.complete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void post() throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(MESSAGE_COUNT);
+        processed = latch;
+        start.await();
+        latch.await();
+    }
+}
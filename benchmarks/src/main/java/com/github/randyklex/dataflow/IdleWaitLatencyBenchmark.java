@@ -0,0 +1,64 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures the latency of one message through a single-producer ActionBlock whose queue is empty when
+ * it's posted, with the consumer giving up its thread right away against waiting for up to 100us.
+ * Sample mode reports the distribution, so read the p0.50, p0.99 and p0.999 rows of the output.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdleWaitLatencyBenchmark {
+
+    @Param({"0", "100000"})
+    public long idleWaitNanos;
+
+    private ActionBlock<Long> block;
+
+    private volatile CompletableFuture<Long> pending;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        options.setIdleWaitNanos(idleWaitNanos);
+
+        block = new ActionBlock<>((Long value) -> { pending.complete(value); }, options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        block.complete();
+    }
+
+    @Benchmark
+    public Long postToIdleConsumer()
+    {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        pending = result;
+        block.post(0L);
+        return result.join();
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures joins per second through a JoinBlock fed by two linked BufferBlocks, in greedy mode,
+ * where each target accepts every offer outright, against non-greedy mode, where every join costs
+ * a reservation and a consume on each source.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JoinBlockBenchmark {
+
+    private static final int JOIN_COUNT = 10_000;
+
+    @Param({"true", "false"})
+    public boolean greedy;
+
+    @Benchmark
+    @OperationsPerInvocation(JOIN_COUNT)
+    public void joinTwoSources() throws InterruptedException
+    {
+        CountDownLatch joined = new CountDownLatch(JOIN_COUNT);
+
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setGreedy(greedy);
+        JoinBlock<Integer, Integer> join = new JoinBlock<>(options);
+        join.linkTo(new ActionBlock<>((Tuple<Integer, Integer> tuple) -> joined.countDown()));
+
+        BufferBlock<Integer> source1 = new BufferBlock<>();
+        BufferBlock<Integer> source2 = new BufferBlock<>();
+        source1.linkTo(join.getTarget1());
+        source2.linkTo(join.getTarget2());
+
+        Integer item = 42;
+        for (int i = 0; i < JOIN_COUNT; i++)
+        {
+            source1.post(item);
+            source2.post(item);
+        }
+
+        joined.await();
+    }
+}
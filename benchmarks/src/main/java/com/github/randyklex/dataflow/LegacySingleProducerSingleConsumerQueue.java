@@ -0,0 +1,298 @@
+package com.github.randyklex.dataflow;
+
+import java.util.function.Predicate;
+
+/*
+ * A copy of SingleProducerSingleConsumerQueue from before its indices were padded onto separate
+ * cache lines and published with acquire/release ordering, kept so QueueBenchmark can compare them.
+ */
+class LegacySingleProducerSingleConsumerQueue<T> implements IProducerConsumerQueue<T>, IMessageQueue<T> {
+
+    private static final int INIT_SEGMENT_SIZE = 32; // must be a power of 2
+    private static final int MAX_SEGMENT_SIZE = 0x1000000; // this could be made as a large as int32.maxValue / 2
+    private final boolean storesIds;
+    private volatile Segment head;
+    private volatile Segment tail;
+
+    LegacySingleProducerSingleConsumerQueue()
+    {
+        this(false);
+    }
+
+    /*
+     * @param storesIds Whether every item is stored with an ID, for use as an IMessageQueue.
+     */
+    LegacySingleProducerSingleConsumerQueue(boolean storesIds)
+    {
+        this.storesIds = storesIds;
+        head = tail = new Segment(INIT_SEGMENT_SIZE);
+    }
+
+    public boolean add(T item)
+    {
+        add(item, 0);
+        return true;
+    }
+
+    public void add(T item, long id)
+    {
+        Segment segment = tail;
+        Object[] array = segment.array;
+        int last = segment.state.last;
+
+        int tail2 = (last + 1) & (array.length - 1);
+        if (tail2 != segment.state.firstCopy)
+        {
+            array[last] = item;
+            if (segment.ids != null)
+                segment.ids[last] = id;
+            segment.state.last = tail2;
+        }
+        else
+            addSlow(item, id, segment);
+    }
+
+    private void addSlow(T item, long id, Segment segment)
+    {
+        assert segment != null;
+
+        if (segment.state.firstCopy != segment.state.first)
+        {
+            segment.state.firstCopy  = segment.state.first;
+            add(item, id);
+            return;
+        }
+
+        int newSegmentSize = tail.array.length << 1; // double the size
+        if (newSegmentSize > MAX_SEGMENT_SIZE) newSegmentSize = MAX_SEGMENT_SIZE;
+
+        Segment newSegment = new Segment(newSegmentSize);
+        newSegment.array[0] = item;
+        if (newSegment.ids != null)
+            newSegment.ids[0] = id;
+        newSegment.state.last = 1;
+        newSegment.state.lastCopy =1;
+
+        // Publishing the new segment through the volatile next field makes every earlier write
+        // to the old segment visible to a consumer that sees it, so the consumer can't move on
+        // while it still thinks the old segment has fewer items than it does.
+        tail.next = newSegment;
+        tail = newSegment;
+    }
+
+    public TryResult<T> tryPoll()
+    {
+        MessageWithId<T> destination = new MessageWithId<>();
+        if (tryPoll(destination))
+            return new TryResult<>(true, destination.value);
+        else
+            return new TryResult<>(false, null);
+    }
+
+    public boolean tryPoll(MessageWithId<T> destination)
+    {
+        Segment segment = head;
+        int first = segment.state.first; // local copy to avoid multiple volatile reads.
+
+        if (first != segment.state.lastCopy)
+        {
+            take(segment, first, destination);
+            return true;
+        }
+        else
+            return tryPollSlow(segment, destination);
+    }
+
+    private boolean tryPollSlow(Segment segment, MessageWithId<T> destination)
+    {
+        if (segment.state.last != segment.state.lastCopy)
+        {
+            segment.state.lastCopy = segment.state.last;
+            return tryPoll(destination);
+        }
+
+        if (segment.next != null && segment.state.first == segment.state.last)
+        {
+            segment = segment.next;
+            head = segment;
+        }
+
+        int first = segment.state.first; // local copy to avoid extraneous volatile reads
+        if (first == segment.state.last)
+            return false;
+
+        take(segment, first, destination);
+        segment.state.lastCopy = segment.state.last;
+        return true;
+    }
+
+    /*
+     * Moves the item at index first of segment into destination and frees its slot.
+     */
+    private void take(Segment segment, int first, MessageWithId<T> destination)
+    {
+        Object[] array = segment.array;
+        destination.set((T) array[first], segment.ids != null ? segment.ids[first] : 0);
+        array[first] = null;
+        segment.state.first = (first + 1) & (array.length - 1);
+    }
+
+    /*
+     * Attempts to peek at an item in the queue without removing it.
+     */
+    public TryResult<T> tryPeek()
+    {
+        Segment segment = head;
+        Object[] array = segment.array;
+        int first = segment.state.first; // local copy to avoid multiple volatile reads.
+
+        if (first != segment.state.lastCopy)
+            return new TryResult<>(true, (T)array[first]);
+        else
+            return tryPeekSlow(segment, array);
+    }
+
+    private TryResult<T> tryPeekSlow(Segment segment, Object[] array)
+    {
+        if (segment.state.last != segment.state.lastCopy)
+        {
+            segment.state.lastCopy = segment.state.last;
+            return tryPeek();
+        }
+
+        if (segment.next != null && segment.state.first == segment.state.last)
+        {
+            segment = segment.next;
+            array = segment.array;
+            head = segment;
+        }
+
+        int first = segment.state.first; // local copy to avoid extraneous volatile reads
+        if (first == segment.state.last)
+            return new TryResult<>(false, null);
+
+        return new TryResult<>(true, (T)array[first]);
+    }
+
+    /*
+     * Attempts to poll an item from the queue, but only if it passes the predicate.
+     * A null predicate accepts every item.
+     */
+    public TryResult<T> tryPollIf(Predicate<T> predicate)
+    {
+        if (predicate == null)
+            return tryPoll();
+
+        TryResult<T> peeked = tryPeek();
+        if (peeked.isSuccess() && predicate.test(peeked.getResult()))
+            return tryPoll();
+
+        return new TryResult<>(false, null);
+    }
+
+    /*
+     * Copies up to maxCount items from the head of the queue into destination without removing them.
+     * Like tryPeek, this may only be called by the consumer.
+     *
+     * @return The number of items copied.
+     */
+    public int peekRange(Object[] destination, int maxCount)
+    {
+        int count = 0;
+        for (Segment segment = head; segment != null && count < maxCount; segment = segment.next)
+        {
+            Object[] array = segment.array;
+            int first = segment.state.first;
+            int last = segment.state.last;
+
+            while (first != last && count < maxCount)
+            {
+                destination[count++] = array[first];
+                first = (first + 1) & (array.length - 1);
+            }
+
+            // Only move on to the next segment once this one has been fully read.
+            if (first != last)
+                break;
+        }
+
+        return count;
+    }
+
+    public void clear()
+    {
+        MessageWithId<T> destination = new MessageWithId<>();
+        while (tryPoll(destination))
+        {
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        Segment head = this.head;
+        if (head.state.first != head.state.lastCopy) return false;
+        if (head.state.first != head.state.last) return false;
+        return head.next == null;
+    }
+
+    // TODO: implement an Enumerator?? maybe?
+
+    public int size()
+    {
+        int count = 0;
+        for (Segment segment = head; segment != null; segment = segment.next)
+        {
+            int arraySize = segment.array.length;
+            int first, last;
+            while (true)
+            {
+                first = segment.state.first;
+                last = segment.state.last;
+                if (first == segment.state.first)
+                    break;
+            }
+            count += (last - first) & (arraySize - 1);
+        }
+
+        return count;
+    }
+
+    public int sizeSafe(Object syncObj)
+    {
+        synchronized (syncObj)
+        {
+            return size();
+        }
+    }
+
+    private class Segment
+    {
+        volatile Segment next;
+        final Object[] array;
+
+        // The ID of each item in array, at the same index. Null unless the queue stores IDs.
+        final long[] ids;
+
+        SegmentState state = new SegmentState();
+
+        Segment(int size)
+        {
+            array = new Object[size];
+            ids = storesIds ? new long[size] : null;
+        }
+    }
+
+    private class SegmentState
+    {
+        // TODO: implement padding
+        volatile int first;
+
+        int lastCopy;
+
+        int firstCopy;
+
+        volatile int last;
+    }
+}
+
+
@@ -0,0 +1,97 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures the cost of moving messages across a link, with the source handing the target
+ * whole runs of messages through offerMessages against offering them one at a time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkPropagationBenchmark {
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    @Param({"true", "false"})
+    public boolean batched;
+
+    /*
+     * Whether the target is the single-producer ActionBlock path (SpscTargetCore) or the default one (TargetCore).
+     */
+    @Param({"false", "true"})
+    public boolean singleProducerConstrained;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void propagate() throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ExecutionDataflowBlockOptions targetOptions = new ExecutionDataflowBlockOptions();
+        targetOptions.setSingleProducerConstrained(singleProducerConstrained);
+        ActionBlock<Integer> action = new ActionBlock<>((Integer value) -> { processed.countDown(); }, targetOptions);
+
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((Integer value) -> value);
+        source.linkTo(batched ? action : new PerMessageTarget<>(action));
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            source.post(i);
+
+        processed.await();
+    }
+
+    /*
+     * Forwards offers one message at a time, so the source falls back to the default offerMessages.
+     */
+    static final class PerMessageTarget<T> implements ITargetBlock<T>
+    {
+        private final ITargetBlock<T> target;
+
+        PerMessageTarget(ITargetBlock<T> target)
+        {
+            this.target = target;
+        }
+
+        @Override
+        public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+        {
+            return target.offerMessage(messageHeader, messageValue, source, consumeToAccept);
+        }
+
+        @Override
+        public CompletableFuture<?> getCompletion()
+        {
+            return target.getCompletion();
+        }
+
+        @Override
+        public void complete()
+        {
+            target.complete();
+        }
+
+        @Override
+        public void fault(Exception exception)
+        {
+            target.fault(exception);
+        }
+    }
+}
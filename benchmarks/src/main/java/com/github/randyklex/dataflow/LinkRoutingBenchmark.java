@@ -0,0 +1,85 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/*
+ * Measures messages per second routed by a BufferBlock across 200 filtered links to ActionBlocks,
+ * each of which takes the messages of one key. The links are made either with plain predicates,
+ * tested one link after another, or with KeyRouter predicates, looked up by key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkRoutingBenchmark {
+
+    private static final int MESSAGE_COUNT = 10_000;
+
+    private static final int LINK_COUNT = 200;
+
+    @Param({"predicate", "keyRouter"})
+    public String linkKind;
+
+    private BufferBlock<Integer> block;
+
+    private Integer[] messages;
+
+    private volatile CountDownLatch delivered;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        block = new BufferBlock<>();
+        KeyRouter<Integer, Integer> router = new KeyRouter<>((Integer message) -> message % LINK_COUNT);
+        for (int i = 0; i < LINK_COUNT; i++)
+        {
+            int key = i;
+            Predicate<Integer> predicate = linkKind.equals("keyRouter")
+                    ? router.keyEquals(key)
+                    : (Integer message) -> message % LINK_COUNT == key;
+            block.linkTo(new ActionBlock<>((Integer message) -> delivered.countDown()), predicate);
+        }
+
+        messages = new Integer[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            messages[i] = i;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        block.complete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void route() throws InterruptedException
+    {
+        CountDownLatch latch = new CountDownLatch(MESSAGE_COUNT);
+        delivered = latch;
+
+        for (Integer message : messages)
+            block.post(message);
+
+        latch.await();
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Measures the garbage produced per message moving through a long-lived ActionBlock. Run it with
+ * -prof gc and read gc.alloc.rate.norm, which is in bytes per message. The posted value is a
+ * cached Integer, so anything allocated comes from the block itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@State(Scope.Benchmark)
+public class MessageAllocationBenchmark {
+
+    private static final int MESSAGE_COUNT = 1024;
+
+    private static final Integer ITEM = 42;
+
+    /*
+     * default: TargetCore with DOP 1. parallel: TargetCore with DOP 4. parallelBounded: the same,
+     * bounded with room for a whole invocation's messages. spsc: SpscTargetCore.
+     */
+    @Param({"default", "parallel", "parallelBounded", "spsc"})
+    public String core;
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private ActionBlock<Integer> block;
+
+    private long posted;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        switch (core)
+        {
+            case "default":
+                break;
+            case "parallel":
+                options.setMaxDegreeOfParallelism(4);
+                break;
+            case "parallelBounded":
+                options.setMaxDegreeOfParallelism(4);
+                options.setBoundedCapacity(MESSAGE_COUNT);
+                break;
+            case "spsc":
+                options.setSingleProducerConstrained(true);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown core " + core);
+        }
+
+        block = new ActionBlock<>((Integer value) -> { processed.incrementAndGet(); }, options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        block.complete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void postAndProcess()
+    {
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            block.post(ITEM);
+
+        posted += MESSAGE_COUNT;
+        while (processed.get() < posted)
+            Thread.yield();
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures what recording metrics costs an ActionBlock with a trivial action, on the default core and
+ * on the single-producer core, by comparing throughput with metrics disabled and enabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsOverheadBenchmark {
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    @Param({"false", "true"})
+    public boolean metricsEnabled;
+
+    @Param({"false", "true"})
+    public boolean singleProducerConstrained;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void post() throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMetricsEnabled(metricsEnabled);
+        options.setSingleProducerConstrained(singleProducerConstrained);
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer value) -> { processed.countDown(); }, options);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            block.post(i);
+
+        processed.await();
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures the time to drain and tear down a chain of 100 TransformBlocks ending in an ActionBlock,
+ * linked with PropagateCompletion: the messages left in the pipeline are posted, the head is
+ * completed, and the benchmark waits for the tail's completion. A fresh pipeline is built for
+ * every invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineDrainBenchmark {
+
+    private static final int STAGES = 100;
+
+    /*
+     * The number of messages in flight when the head is completed.
+     */
+    @Param({"0", "1000"})
+    public int messageCount;
+
+    private TransformBlock<Integer, Integer> head;
+
+    private ActionBlock<Integer> tail;
+
+    @Setup(Level.Invocation)
+    public void setUp()
+    {
+        DataflowLinkOptions linkOptions = new DataflowLinkOptions();
+        linkOptions.setPropagateCompletion(true);
+
+        tail = new ActionBlock<>((Integer value) -> { });
+        head = new TransformBlock<>((Integer value) -> value + 1);
+
+        TransformBlock<Integer, Integer> previous = head;
+        for (int i = 1; i < STAGES; i++)
+        {
+            TransformBlock<Integer, Integer> stage = new TransformBlock<>((Integer value) -> value + 1);
+            previous.linkTo(stage, linkOptions);
+            previous = stage;
+        }
+        previous.linkTo(tail, linkOptions);
+    }
+
+    @Benchmark
+    public Object drain()
+    {
+        for (int i = 0; i < messageCount; i++)
+            head.post(i);
+
+        head.complete();
+        return tail.getCompletion().join();
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures the end-to-end latency of one message through a chain of linked TransformBlocks
+ * ending in an ActionBlock. Sample mode reports the distribution, so read the p0.50, p0.99
+ * and p0.999 rows of the output rather than just the mean.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineLatencyBenchmark {
+
+    /*
+     * The number of TransformBlocks in front of the final ActionBlock.
+     */
+    @Param({"1", "3"})
+    public int transformStages;
+
+    private TransformBlock<Long, Long> head;
+
+    private volatile CompletableFuture<Long> pending;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ActionBlock<Long> tail = new ActionBlock<>((Long value) -> { pending.complete(value); });
+
+        TransformBlock<Long, Long> next = null;
+        for (int i = 0; i < transformStages; i++)
+        {
+            TransformBlock<Long, Long> stage = new TransformBlock<>((Long value) -> value + 1);
+            if (next == null)
+                stage.linkTo(tail);
+            else
+                stage.linkTo(next);
+
+            next = stage;
+        }
+
+        head = next;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        head.complete();
+    }
+
+    @Benchmark
+    public Long endToEnd()
+    {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        pending = result;
+        head.post(0L);
+        return result.join();
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures what tracing costs a pipeline of 8 TransformBlocks ending in an ActionBlock, by the
+ * throughput of messages through it untraced and traced at different sample intervals.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineTracingBenchmark {
+
+    private static final int STAGES = 8;
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    /*
+     * 0 is untraced; otherwise one message in this many is timed at each stage.
+     */
+    @Param({"0", "1024", "64", "1"})
+    public int sampleInterval;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public Object pipeline()
+    {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        if (sampleInterval > 0)
+            options.setTracer(new DataflowTracer(sampleInterval));
+
+        DataflowLinkOptions linkOptions = new DataflowLinkOptions();
+        linkOptions.setPropagateCompletion(true);
+
+        TransformBlock<Integer, Integer> head = new TransformBlock<>((Integer value) -> value + 1, options);
+        TransformBlock<Integer, Integer> previous = head;
+        for (int i = 1; i < STAGES; i++)
+        {
+            TransformBlock<Integer, Integer> stage = new TransformBlock<>((Integer value) -> value + 1, options);
+            previous.linkTo(stage, linkOptions);
+            previous = stage;
+        }
+        ActionBlock<Integer> tail = new ActionBlock<>((Integer value) -> { }, options);
+        previous.linkTo(tail, linkOptions);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            head.post(i);
+
+        head.complete();
+        return tail.getCompletion().join();
+    }
+}
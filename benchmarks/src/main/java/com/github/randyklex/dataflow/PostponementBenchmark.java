@@ -0,0 +1,115 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures message postponement: the QueuedMap a bounded target keeps its postponed
+ * messages in, and a source linked to a bounded target that is full most of the time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostponementBenchmark {
+
+    private static final int MESSAGE_COUNT = 20_000;
+
+    @State(Scope.Thread)
+    public static class QueuedMapState
+    {
+        /*
+         * The number of distinct sources with a postponed message at once.
+         */
+        @Param({"1", "16", "256", "10000"})
+        public int sourceCount;
+
+        QueuedMap<Integer, DataflowMessageHeader> postponedMessages;
+
+        final QueuedMap.Entry<Integer, DataflowMessageHeader> polled = new QueuedMap.Entry<>();
+
+        Integer[] sources;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            postponedMessages = new QueuedMap<>();
+            sources = new Integer[sourceCount];
+            for (int i = 0; i < sourceCount; i++)
+                sources[i] = i;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LinkState
+    {
+        /*
+         * The bounded capacity of the target.
+         */
+        @Param({"1", "16"})
+        public int boundedCapacity;
+    }
+
+    /*
+     * Postpones a message from every source, replaces each with a newer one, then pops them all,
+     * the way a full target sees repeated offers from the same sources before it has room again.
+     */
+    @Benchmark
+    public void queuedMapPutReplacePoll(QueuedMapState state, Blackhole blackhole)
+    {
+        QueuedMap<Integer, DataflowMessageHeader> postponedMessages = state.postponedMessages;
+        Integer[] sources = state.sources;
+
+        for (Integer source : sources)
+            postponedMessages.put(source, new DataflowMessageHeader(1));
+
+        for (Integer source : sources)
+            postponedMessages.put(source, new DataflowMessageHeader(2));
+
+        QueuedMap.Entry<Integer, DataflowMessageHeader> polled = state.polled;
+        for (int i = 0; i < sources.length; i++)
+        {
+            postponedMessages.tryPoll(polled);
+            blackhole.consume(polled.value);
+        }
+    }
+
+    /*
+     * Propagates messages from a TransformBlock into a bounded ActionBlock, so most offers are
+     * postponed and later consumed back from the source.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void linkedToBoundedTarget(LinkState state) throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ExecutionDataflowBlockOptions targetOptions = new ExecutionDataflowBlockOptions();
+        targetOptions.setBoundedCapacity(state.boundedCapacity);
+        ActionBlock<Integer> action = new ActionBlock<>((Integer value) -> { processed.countDown(); }, targetOptions);
+
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((Integer value) -> value);
+        source.linkTo(action);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            source.post(i);
+
+        processed.await();
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares the two input queues TargetCore chooses between: the single-producer, single-consumer
+ * queue used when MaxDegreeOfParallelism is one, and the multi-producer, multi-consumer queue
+ * used otherwise. Both store each message with its ID and poll into a reused MessageWithId.
+ *
+ * mpmcBounded is the preallocated ring TargetCore uses instead of mpmc when the block is bounded.
+ * spscLegacy is the single-producer, single-consumer queue from before its indices were padded
+ * and published with acquire/release ordering.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class QueueBenchmark {
+
+    private static final int BURST_SIZE = 1024;
+
+    private static final Integer ITEM = 42;
+
+    /*
+     * How far the producer may run ahead of the consumer in the producerConsumer group, so that
+     * a slow consumer can't grow the queue without bound.
+     */
+    private static final int MAX_BACKLOG = 64 * 1024;
+
+    @Param({"spsc", "spscLegacy", "mpmc", "mpmcBounded"})
+    public String queueType;
+
+    private IMessageQueue<Integer> queue;
+
+    // Only touched by the consumer thread.
+    private final MessageWithId<Integer> polledMessage = new MessageWithId<>();
+
+    // Only touched by the producer thread.
+    private long added;
+
+    private volatile long polled;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+        added = 0;
+        polled = 0;
+
+        switch (queueType)
+        {
+            case "spsc":
+                queue = new SingleProducerSingleConsumerQueue<>(true);
+                break;
+            case "spscLegacy":
+                queue = new LegacySingleProducerSingleConsumerQueue<>(true);
+                break;
+            case "mpmc":
+                queue = new MultiProducerMultiConsumerMessageQueue<>();
+                break;
+            case "mpmcBounded":
+                queue = new BoundedMultiProducerMultiConsumerMessageQueue<>(MAX_BACKLOG);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown queue type " + queueType);
+        }
+    }
+
+    /*
+     * Adds a burst of items and polls them all back on the same thread, which measures the
+     * raw cost of each operation without any cross-thread traffic.
+     */
+    @Benchmark
+    @Group("burst")
+    @GroupThreads(1)
+    @OperationsPerInvocation(BURST_SIZE)
+    public void addThenPollBurst(Blackhole blackhole)
+    {
+        for (int i = 0; i < BURST_SIZE; i++)
+            queue.add(ITEM, i);
+
+        for (int i = 0; i < BURST_SIZE; i++)
+        {
+            queue.tryPoll(polledMessage);
+            blackhole.consume(polledMessage.value);
+        }
+    }
+
+    /*
+     * One thread adds while another polls, the way a source hands messages to a processing loop.
+     */
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void add()
+    {
+        if (added - polled >= MAX_BACKLOG)
+        {
+            Thread.onSpinWait();
+            return;
+        }
+
+        queue.add(ITEM, added);
+        added++;
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void poll(Blackhole blackhole)
+    {
+        if (queue.tryPoll(polledMessage))
+        {
+            blackhole.consume(polledMessage.value);
+            polled++;
+        }
+        else
+            Thread.onSpinWait();
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures the ReorderingBuffer on its own. Items arrive in windows whose ids are reversed,
+ * so all but the last item of every window is buffered before the whole window is output.
+ * A window size of one is the in-order case, where nothing is ever buffered.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReorderingBufferBenchmark {
+
+    private static final Integer ITEM = 42;
+
+    @Param({"1", "16", "256"})
+    public int windowSize;
+
+    private ReorderingBuffer<Integer> buffer;
+
+    private long nextWindowStart;
+
+    private long outputCount;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+        buffer = new ReorderingBuffer<>(this, (owningSource, item) -> outputCount++);
+        nextWindowStart = 0;
+    }
+
+    /*
+     * Adds one window of items. Throughput is in windows; multiply by the window size for items.
+     */
+    @Benchmark
+    public long addWindow()
+    {
+        long start = nextWindowStart;
+        for (long id = start + windowSize - 1; id >= start; id--)
+            buffer.addItem(id, ITEM, true);
+
+        nextWindowStart = start + windowSize;
+        return outputCount;
+    }
+}
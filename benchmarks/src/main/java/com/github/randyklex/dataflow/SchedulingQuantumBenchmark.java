@@ -0,0 +1,173 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how MaxMessagesPerTask trades scheduling overhead against fairness, with every block sharing
+ * a single-threaded scheduler. Unbounded (-1) is the adaptive quantum; 2147483647 never gives up the
+ * thread while there are messages, which is how an unbounded block behaved before.
+ *
+ * The throughput benchmarks drain 100,000 messages through one ActionBlock, and through four at once,
+ * so they're dominated by what the blocks pay to give up the thread and be scheduled again.
+ * probeLatency is how long a message posted to one block waits while another block works through
+ * 100,000 messages already queued.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchedulingQuantumBenchmark {
+
+    private static final int MESSAGE_COUNT = 100_000;
+
+    private static final int CONTENDING_BLOCKS = 4;
+
+    @Param({"1", "16", "-1", "2147483647"})
+    public int maxMessagesPerTask;
+
+    private DataflowScheduler.FixedThreadPoolScheduler scheduler;
+
+    private ExecutionDataflowBlockOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        scheduler = DataflowScheduler.newFixedThreadPool(1);
+        options = new ExecutionDataflowBlockOptions();
+        options.setScheduler(scheduler);
+        options.setMaxMessagesPerTask(maxMessagesPerTask);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        scheduler.close();
+    }
+
+    /*
+     * A block with a backlog of messages queued behind one that holds the thread until the probe has
+     * been posted, and the block the probe is posted to. Once the probe is processed the rest of the
+     * backlog waits until the probe has been timed, so that on a single processor the thread working
+     * through it doesn't keep the benchmark thread from seeing the probe finish.
+     */
+    @State(Scope.Benchmark)
+    public static class Backlog
+    {
+        private volatile CountDownLatch probePosted;
+
+        private volatile CountDownLatch probeTimed;
+
+        private volatile CountDownLatch backlogProcessed;
+
+        private volatile CountDownLatch probeProcessed;
+
+        private ActionBlock<Integer> busyBlock;
+
+        private ActionBlock<Integer> probeBlock;
+
+        @Setup(Level.Trial)
+        public void setUp(SchedulingQuantumBenchmark benchmark)
+        {
+            busyBlock = new ActionBlock<>((Integer value) -> {
+                await(value < 0 ? probePosted : probeProcessed.getCount() == 0 ? probeTimed : null);
+                backlogProcessed.countDown();
+            }, benchmark.options);
+            probeBlock = new ActionBlock<>((Integer value) -> { probeProcessed.countDown(); }, benchmark.options);
+        }
+
+        @Setup(Level.Invocation)
+        public void queueBacklog()
+        {
+            probePosted = new CountDownLatch(1);
+            probeTimed = new CountDownLatch(1);
+            backlogProcessed = new CountDownLatch(MESSAGE_COUNT + 1);
+            probeProcessed = new CountDownLatch(1);
+
+            busyBlock.post(-1);
+            for (int i = 0; i < MESSAGE_COUNT; i++)
+                busyBlock.post(i);
+        }
+
+        @TearDown(Level.Invocation)
+        public void drainBacklog() throws InterruptedException
+        {
+            probeTimed.countDown();
+            backlogProcessed.await();
+        }
+
+        private static void await(CountDownLatch latch)
+        {
+            if (latch == null)
+                return;
+
+            try
+            {
+                latch.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void uncontendedThroughput() throws InterruptedException
+    {
+        drain(1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void contendedThroughput() throws InterruptedException
+    {
+        drain(CONTENDING_BLOCKS);
+    }
+
+    private void drain(int blockCount) throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        @SuppressWarnings("unchecked")
+        ActionBlock<Integer>[] blocks = new ActionBlock[blockCount];
+        for (int b = 0; b < blockCount; b++)
+            blocks[b] = new ActionBlock<>((Integer value) -> { processed.countDown(); }, options);
+
+        for (int i = 0; i < MESSAGE_COUNT / blockCount; i++)
+            for (ActionBlock<Integer> block : blocks)
+                block.post(i);
+
+        processed.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void probeLatency(Backlog backlog) throws InterruptedException
+    {
+        backlog.probeBlock.post(0);
+        backlog.probePosted.countDown();
+        backlog.probeProcessed.await();
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures TransformBlock throughput with output reordered into input order against
+ * output emitted as soon as each transform finishes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformBlockBenchmark {
+
+    private static final int MESSAGE_COUNT = 10_000;
+
+    @Param({"1", "4", "16"})
+    public int maxDegreeOfParallelism;
+
+    @Param({"true", "false"})
+    public boolean ensureOrdered;
+
+    /*
+     * Amount of CPU work done by each transform, in JMH tokens.
+     */
+    @Param({"100"})
+    public int work;
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void transform(Blackhole blackhole)
+    {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(maxDegreeOfParallelism);
+        options.setEnsureOrdered(ensureOrdered);
+
+        TransformBlock<Integer, Integer> block = new TransformBlock<>((Integer value) -> {
+            Blackhole.consumeCPU(work);
+            return value;
+        }, options);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            block.post(i);
+
+        int received = 0;
+        while (received < MESSAGE_COUNT)
+        {
+            TryResult<List<Integer>> result = block.TryReceiveAll();
+            if (result.isSuccess())
+            {
+                received += result.getResult().size();
+                blackhole.consume(result.getResult());
+            }
+            else
+            {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares ActionBlock processing loops running on platform threads against loops running on
+ * virtual threads when every action blocks, the way a JDBC call or a file read does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadActionBlockBenchmark {
+
+    private static final int MESSAGE_COUNT = 4096;
+
+    /*
+     * default: the shared work-stealing pool. fixedPool: 256 platform threads. virtual: a virtual thread per loop.
+     */
+    @Param({"default", "fixedPool", "virtual"})
+    public String scheduler;
+
+    @Param({"16", "256", "1024"})
+    public int maxDegreeOfParallelism;
+
+    /*
+     * How long each action blocks for, simulating an I/O round trip.
+     */
+    @Param({"1"})
+    public int blockingMillis;
+
+    private DataflowScheduler dataflowScheduler;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        switch (scheduler)
+        {
+            case "default":
+                dataflowScheduler = DataflowScheduler.Default;
+                break;
+            case "fixedPool":
+                dataflowScheduler = DataflowScheduler.newFixedThreadPool(256);
+                break;
+            case "virtual":
+                dataflowScheduler = DataflowScheduler.virtualThreadPerTask();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown scheduler " + scheduler);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (dataflowScheduler instanceof DataflowScheduler.FixedThreadPoolScheduler)
+            ((DataflowScheduler.FixedThreadPoolScheduler) dataflowScheduler).close();
+    }
+
+    @Benchmark
+    public void blockingActions() throws InterruptedException
+    {
+        CountDownLatch processed = new CountDownLatch(MESSAGE_COUNT);
+
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(maxDegreeOfParallelism);
+        options.setScheduler(dataflowScheduler);
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer value) -> {
+            try
+            {
+                Thread.sleep(blockingMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            processed.countDown();
+        }, options);
+
+        for (int i = 0; i < MESSAGE_COUNT; i++)
+            block.post(i);
+
+        processed.await();
+    }
+}
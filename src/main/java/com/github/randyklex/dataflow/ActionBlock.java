@@ -1,9 +1,10 @@
 package com.github.randyklex.dataflow;
 
-import java.util.AbstractMap;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -12,6 +13,8 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
 
     private final SpscTargetCore<TInput> spscTarget;
 
+    private final DataflowBlockMetrics metrics;
+
     public ActionBlock(Consumer<TInput> action)
     {
         this(action, ExecutionDataflowBlockOptions.Default);
@@ -31,22 +34,35 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
                 options.getMaxDegreeOfParallelism() == 1 &&
                 options.getBoundedCapacity() == DataflowBlockOptions.Unbounded)
         {
-            spscTarget = new SpscTargetCore<TInput>(this, action, options);
+            spscTarget = new SpscTargetCore<TInput>(this, action, options, MetricsRecorder.create(options));
             defaultTarget = null;
+
+            // Cancellation stops the consumer, dropping the messages that haven't been processed.
+            Common.wireCancellationToComplete(options.getCancellationToken(), spscTarget.getCompletion(), spscTarget::cancel);
+        }
+        else if (options.getDedicatedThread())
+        {
+            throw new IllegalArgumentException("Only an unbounded SingleProducerConstrained block with a MaxDegreeOfParallelism of 1 can have a dedicated thread.");
         }
         else
         {
             defaultTarget = new TargetCore<TInput>(this,
-                    (messageWithId) -> ProcessMessage(action, messageWithId),
+                    (messageValue, messageId) -> ProcessMessage(action, messageValue),
                     null,
                     options,
-                    EnumSet.of(TargetCore.TargetCoreOptions.REPRESENTS_BLOCK_COMPLETION));
+                    EnumSet.of(TargetCore.TargetCoreOptions.REPRESENTS_BLOCK_COMPLETION),
+                    MetricsRecorder.create(options));
             spscTarget = null;
 
-            // TODO: implement the "wire cancellation" stuff.
+            // Cancellation completes the block, dropping the messages that haven't been processed.
+            Common.wireCancellationToComplete(options.getCancellationToken(), defaultTarget.getCompletion(),
+                    () -> defaultTarget.complete(null, true));
         }
 
-        // TODO: skipped FEATURE_TRACING
+        metrics = defaultTarget != null ? defaultTarget.createMetrics(null, null) : spscTarget.createMetrics();
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
     }
 
     public ActionBlock(Function<TInput, CompletableFuture> action)
@@ -64,26 +80,35 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
 
         options = options.DefaultOrClone();
 
+        if (options.getDedicatedThread())
+            throw new IllegalArgumentException("A block with an asynchronous action can't have a dedicated thread.");
+
         spscTarget = null;
         defaultTarget = new TargetCore<>(this,
-                messageWithId -> processMessageWithTask(action, messageWithId),
+                (messageValue, messageId) -> processMessageWithTask(action, messageValue),
                 null,
-                options, EnumSet.of(TargetCore.TargetCoreOptions.REPRESENTS_BLOCK_COMPLETION, TargetCore.TargetCoreOptions.USES_ASYNC_COMPLETION));
+                options, EnumSet.of(TargetCore.TargetCoreOptions.REPRESENTS_BLOCK_COMPLETION, TargetCore.TargetCoreOptions.USES_ASYNC_COMPLETION),
+                MetricsRecorder.create(options));
+
+        // Cancellation completes the block, dropping the messages that haven't been processed.
+        Common.wireCancellationToComplete(options.getCancellationToken(), defaultTarget.getCompletion(),
+                () -> defaultTarget.complete(null, true));
 
-        // TODO: implement the "wire cancellation" stuff.
+        metrics = defaultTarget.createMetrics(null, null);
 
-        // TODO: skipped FEATURE_TRACING
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
     }
 
-    private void ProcessMessage(Consumer<TInput> action, AbstractMap.SimpleEntry<TInput, Long> messageWithId)
+    private void ProcessMessage(Consumer<TInput> action, TInput messageValue)
     {
         try
         {
-            action.accept(messageWithId.getKey());
+            action.accept(messageValue);
         }
-        catch (Exception exc)
+        catch (CancellationException exc)
         {
-            // TODO: implement the cooperative cancellation
+            // Cooperative cancellation just drops the message. Any other exception faults the block.
         }
         finally
         {
@@ -92,24 +117,64 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
         }
     }
 
-    // TODO: implement ProcessMessageWithTask
-    private void processMessageWithTask(Function<TInput, CompletableFuture> action, AbstractMap.SimpleEntry<TInput, Long> messageWithId)
+    /*
+     * Processes the message with a user-provided action that returns a future. The slot the
+     * message occupies within the degree of parallelism is released when the future completes,
+     * not when the action returns.
+     */
+    private void processMessageWithTask(Function<TInput, CompletableFuture> action, TInput messageValue)
     {
-        Future task = null;
+        // Run the user's action to get the future.
+        CompletableFuture<?> task = null;
         Exception caughtException = null;
         try
         {
-            task = action.apply(messageWithId.getKey());
+            task = action.apply(messageValue);
         }
         catch (Exception exc)
         {
             caughtException = exc;
         }
 
-        // TODO: implement the rest of the Async stuff.
+        // If no future is available, we're done.
+        if (task == null)
+        {
+            // If we didn't get a future because an exception occurred, store it
+            // (if the exception was cancellation, just ignore it).
+            if (caughtException != null && !(caughtException instanceof CancellationException))
+                defaultTarget.complete(caughtException, true, true, false, false);
+
+            // Signal that we're done with this message.
+            defaultTarget.signalOneAsyncMessageCompleted(-1);
+        }
+        else
+        {
+            // Otherwise, join with the future when it completes. If it already has,
+            // the continuation runs right away on this thread.
+            task.whenComplete((result, exception) -> asyncCompleteProcessMessageWithTask(exception));
+        }
     }
 
-    // TODO: Implement AsyncCompleteProcessMessageWithTask
+    /*
+     * Completes the processing of an asynchronous message.
+     *
+     * @param exception The exception the future completed with, or null if it completed successfully.
+     */
+    private void asyncCompleteProcessMessageWithTask(Throwable exception)
+    {
+        if (exception instanceof CompletionException && exception.getCause() != null)
+            exception = exception.getCause();
+
+        // A faulted future faults the block. A canceled future is ignored.
+        if (exception != null && !(exception instanceof CancellationException))
+        {
+            Exception fault = exception instanceof Exception ? (Exception) exception : new CompletionException(exception);
+            defaultTarget.complete(fault, true, true, true, false);
+        }
+
+        // Regardless of the outcome, we're done with this message.
+        defaultTarget.signalOneAsyncMessageCompleted(-1);
+    }
 
     public void complete()
     {
@@ -130,13 +195,21 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
             spscTarget.complete(exception);
     }
 
-    // TODO: really implement this function. Don't know how java handles TaskCompletionSource like .NET
+    /*
+     * Gets a future that completes once the block has completed and processed every message. It
+     * completes exceptionally if the block faulted, and is canceled if the block was canceled.
+     */
     public CompletableFuture<?> getCompletion()
     {
-        //return defaultTarget != null ? defaultTarget.getCompletion() : spscTarget.getCompletion();
-        return null;
+        return defaultTarget != null ? defaultTarget.getCompletion() : spscTarget.getCompletion();
     }
 
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+
     public boolean post(TInput item)
     {
         if (defaultTarget != null)
@@ -152,4 +225,13 @@ public class ActionBlock<TInput> implements ITargetBlock<TInput> {
         else
             return spscTarget.offerMessage(messageHeader, messageValue, source, consumeToAccept);
     }
+
+    @Override
+    public int offerMessages(DataflowMessageHeader firstMessageHeader, List<TInput> messageValues, ISourceBlock<TInput> source)
+    {
+        if (defaultTarget != null)
+            return defaultTarget.offerMessages(firstMessageHeader, messageValues, source);
+        else
+            return spscTarget.offerMessages(firstMessageHeader, messageValues, source);
+    }
 }
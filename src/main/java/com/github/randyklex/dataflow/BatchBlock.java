@@ -0,0 +1,810 @@
+package com.github.randyklex.dataflow;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/*
+ * Provides a dataflow block that batches inputs into lists of a fixed size.
+ *
+ * In greedy mode, the default, every offered message is accepted and added to the current batch,
+ * which is output once it holds BatchSize messages. In non-greedy mode, offers are postponed until
+ * BatchSize different sources have offered a message; the block then reserves one message from each
+ * and consumes them all together, so no source gives up a message unless a whole batch can be formed.
+ *
+ * A partial batch is output when the block completes, when @see triggerBatch is called, or once it
+ * has waited for the configured MaxLinger.
+ */
+public class BatchBlock<T> implements IPropagatorBlock<T, List<T>>, IReceivableSourceBlock<List<T>> {
+
+    private final SourceCore<List<T>> source;
+
+    private final GroupingDataflowBlockOptions dataflowBlockOptions;
+
+    private final int batchSize;
+
+    /*
+     * The bounding state, or null if the block is unbounded. Items count against the bound from the
+     * moment they're accepted until the batch holding them leaves the source half.
+     */
+    private final BoundingState boundingState;
+
+    /*
+     * State for consuming postponed messages, or null if the block is greedy and unbounded, in which
+     * case nothing is ever postponed.
+     */
+    private final NonGreedyState<T> nonGreedyState;
+
+    /*
+     * The recorder for the block's metrics, or null if they're disabled.
+     */
+    private final MetricsRecorder metricsRecorder;
+
+    private final DataflowBlockMetrics metrics;
+
+    /*
+     * The batch being filled in greedy mode.
+     */
+    private List<T> messages;
+
+    private long batchesCompleted;
+
+    /*
+     * Incremented whenever a batch is output, so a linger timer can tell whether the batch it was
+     * started for is still the one being filled.
+     */
+    private long batchGeneration;
+
+    private boolean lingerTimerPending;
+
+    private boolean decliningPermanently;
+
+    private boolean completionReserved;
+
+    private boolean faulted;
+
+    public BatchBlock(int batchSize)
+    {
+        this(batchSize, GroupingDataflowBlockOptions.Default);
+    }
+
+    public BatchBlock(int batchSize, GroupingDataflowBlockOptions options)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive.");
+
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        if (options.getBoundedCapacity() > 0 && options.getBoundedCapacity() < batchSize)
+            throw new IllegalArgumentException("batchSize must be no greater than the bounded capacity.");
+
+        options = options.DefaultOrClone();
+        this.dataflowBlockOptions = options;
+        this.batchSize = batchSize;
+        this.messages = new ArrayList<>(batchSize);
+
+        // Batched items count against the bound, so a bounded block releases room as batches leave the source half.
+        BiConsumer<ISourceBlock<List<T>>, Integer> onItemsRemoved = null;
+        FunctionThreeParameters<ISourceBlock<List<T>>, List<T>, List<List<T>>, Integer> countItems = null;
+        if (options.getBoundedCapacity() > 0)
+        {
+            onItemsRemoved = (owningSource, count) -> ((BatchBlock<T>) owningSource).onItemsRemoved(count);
+            countItems = BatchBlock::countItems;
+            boundingState = new BoundingState(options.getBoundedCapacity());
+        }
+        else
+            boundingState = null;
+
+        if (!options.getGreedy() || boundingState != null)
+            nonGreedyState = new NonGreedyState<>(batchSize);
+        else
+            nonGreedyState = null;
+
+        metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> ((BatchBlock<T>) owningSource).complete(),
+                onItemsRemoved,
+                countItems,
+                metricsRecorder);
+
+        // Cancellation completes the block, dropping its partial batch.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(),
+                () -> completeCore(null, false, true));
+
+        metrics = new DataflowBlockMetrics(metricsRecorder, this::getBatchingCount, source::getOutputCount, null,
+                boundingState != null ? this::getBoundedCount : null,
+                nonGreedyState != null ? this::getPostponedCount : null,
+                source::getMessagesOutput);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    private Object getIncomingLock() { return source; }
+
+    /*
+     * Gets the number of items per batch.
+     */
+    public int getBatchSize() { return batchSize; }
+
+    public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (source == null && consumeToAccept)
+            throw new IllegalArgumentException("Can't consume from a null source.");
+
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently)
+            {
+                completeBlockIfPossible();
+                return DataflowMessageStatus.DecliningPermanently;
+            }
+
+            // In greedy mode, we can accept the message directly if we're not bounding, or if there's room
+            // and nothing is postponed ahead of it.
+            if (dataflowBlockOptions.getGreedy() &&
+                    (boundingState == null || (boundingState.countIsLessThanBound() && nonGreedyState.postponedMessages.size() == 0 && !nonGreedyState.taskForInputProcessing)))
+            {
+                if (consumeToAccept)
+                {
+                    TryResult<T> result = source.consumeMessage(messageHeader, this);
+                    if (!result.isSuccess())
+                        return DataflowMessageStatus.NotAvailable;
+                    else
+                        messageValue = result.getResult();
+                }
+
+                addMessageToBatch(messageValue);
+                completeBlockIfPossible();
+                return DataflowMessageStatus.Accepted;
+            }
+            else if (source != null)
+            {
+                // Non-greedy, or no room for now: remember the offer and consume it when we can.
+                nonGreedyState.postponedMessages.put(source, messageHeader);
+                if (metricsRecorder != null) metricsRecorder.messagesPostponed.increment();
+                if (!dataflowBlockOptions.getGreedy() && nonGreedyState.postponedMessages.size() == 1)
+                    startLingerTimerIfNecessary();
+
+                processAsyncIfNecessary();
+                return DataflowMessageStatus.Postponed;
+            }
+
+            return DataflowMessageStatus.Declined;
+        }
+    }
+
+    /*
+     * Accepts as many of a run of messages as the block has room for under a single acquisition of
+     * the incoming lock. Only greedy blocks accept runs; a non-greedy block postpones every message
+     * when it's offered again individually. See @see ITargetBlock#offerMessages.
+     */
+    @Override
+    public int offerMessages(DataflowMessageHeader firstMessageHeader, List<T> messageValues, ISourceBlock<T> source)
+    {
+        if (!firstMessageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (!dataflowBlockOptions.getGreedy())
+            return 0;
+
+        synchronized (getIncomingLock())
+        {
+            int count = messageValues.size();
+            if (boundingState != null)
+            {
+                // Whatever doesn't fit is offered again individually, and gets postponed then.
+                if (nonGreedyState.postponedMessages.size() != 0 || nonGreedyState.taskForInputProcessing)
+                    return 0;
+
+                count = Math.min(count, boundingState.boundedCapacity - boundingState.CurrentCount);
+            }
+
+            int accepted = 0;
+            while (accepted < count && !decliningPermanently)
+                addMessageToBatch(messageValues.get(accepted++));
+
+            completeBlockIfPossible();
+            return accepted;
+        }
+    }
+
+    /*
+     * Adds an accepted message to the current batch, outputting the batch if it's full.
+     * Must be called while holding the incoming lock.
+     */
+    private void addMessageToBatch(T messageValue)
+    {
+        messages.add(messageValue);
+        if (boundingState != null) boundingState.CurrentCount++;
+
+        // Once the messages we hold make up the last batch we're allowed to produce, stop accepting more.
+        if (batchesCompleted + messages.size() / batchSize >= dataflowBlockOptions.getActualMaxNumberOfGroups())
+            decliningPermanently = true;
+
+        if (messages.size() == 1)
+            startLingerTimerIfNecessary();
+
+        makeBatchIfPossible(false);
+    }
+
+    /*
+     * Outputs the current batch if it's full, or if evenIfFewerThanBatchSize and it holds anything.
+     * Must be called while holding the incoming lock.
+     */
+    private void makeBatchIfPossible(boolean evenIfFewerThanBatchSize)
+    {
+        boolean fullBatch = messages.size() >= batchSize;
+        if (fullBatch || (evenIfFewerThanBatchSize && messages.size() > 0))
+        {
+            List<T> batch = messages;
+            messages = new ArrayList<>(batchSize);
+            outputBatch(batch);
+        }
+    }
+
+    /*
+     * Hands a finished batch to the source half. Must be called while holding the incoming lock,
+     * which keeps the source half's producer single-threaded.
+     */
+    private void outputBatch(List<T> batch)
+    {
+        batchesCompleted++;
+        batchGeneration++;
+        if (batchesCompleted >= dataflowBlockOptions.getActualMaxNumberOfGroups())
+            decliningPermanently = true;
+
+        source.addMessage(batch);
+    }
+
+    /*
+     * Outputs the current partial batch now rather than waiting for it to fill up. In non-greedy mode,
+     * the next batch is formed from as many postponed messages as are available, even if that's fewer
+     * than BatchSize.
+     */
+    public void triggerBatch()
+    {
+        synchronized (getIncomingLock())
+        {
+            triggerBatchCore();
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Must be called while holding the incoming lock.
+     */
+    private void triggerBatchCore()
+    {
+        if (decliningPermanently || faulted)
+            return;
+
+        if (dataflowBlockOptions.getGreedy())
+        {
+            makeBatchIfPossible(true);
+        }
+        else
+        {
+            nonGreedyState.acceptFewerThanBatchSize = true;
+            processAsyncIfNecessary();
+        }
+    }
+
+    /*
+     * Starts a timer that triggers the batch being started now once it has waited for MaxLinger,
+     * unless it has been output by then. Must be called while holding the incoming lock.
+     */
+    private void startLingerTimerIfNecessary()
+    {
+        Duration maxLinger = dataflowBlockOptions.getMaxLinger();
+        if (maxLinger == null || lingerTimerPending)
+            return;
+
+        lingerTimerPending = true;
+        long generation = batchGeneration;
+        DataflowScheduler scheduler = dataflowBlockOptions.getScheduler();
+        CompletableFuture.delayedExecutor(maxLinger.toNanos(), TimeUnit.NANOSECONDS, scheduler::schedule)
+                .execute(() -> onLingerTimerElapsed(generation));
+    }
+
+    private void onLingerTimerElapsed(long generation)
+    {
+        synchronized (getIncomingLock())
+        {
+            lingerTimerPending = false;
+            if (generation == batchGeneration)
+            {
+                triggerBatchCore();
+                completeBlockIfPossible();
+            }
+            else if (messages.size() > 0 || (nonGreedyState != null && !dataflowBlockOptions.getGreedy() && nonGreedyState.postponedMessages.size() > 0))
+            {
+                // The batch we were started for has gone out, but another one has started since.
+                startLingerTimerIfNecessary();
+            }
+        }
+    }
+
+    public void complete()
+    {
+        completeCore(null, false, false);
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        completeCore(exception, false, false);
+    }
+
+    private void completeCore(Exception exception, boolean storeExceptionEvenIfAlreadyCompleting, boolean dropPendingMessages)
+    {
+        synchronized (getIncomingLock())
+        {
+            if (exception != null && (!decliningPermanently || storeExceptionEvenIfAlreadyCompleting))
+            {
+                source.addException(exception);
+                faulted = true;
+            }
+
+            if (dropPendingMessages)
+                messages.clear();
+
+            decliningPermanently = true;
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Completes the block once it's declining permanently and nothing is being consumed, outputting
+     * whatever partial batch is left. Must be called while holding the incoming lock.
+     */
+    private void completeBlockIfPossible()
+    {
+        if (completionReserved)
+            return;
+
+        boolean currentlyProcessing = nonGreedyState != null && nonGreedyState.taskForInputProcessing;
+        boolean completedAllDesiredBatches = batchesCompleted >= dataflowBlockOptions.getActualMaxNumberOfGroups();
+        boolean noMoreMessages = decliningPermanently && messages.size() < batchSize;
+
+        if (!currentlyProcessing && (completedAllDesiredBatches || noMoreMessages || faulted))
+        {
+            completionReserved = true;
+            decliningPermanently = true;
+
+            // A faulted block drops its partial batch; otherwise it goes out as the final batch.
+            if (!faulted && messages.size() > 0)
+                makeBatchIfPossible(true);
+
+            // Releasing postponed messages calls back into their sources, so it has to happen outside the
+            // incoming lock. Nothing else touches them once completion is reserved.
+            if (nonGreedyState != null && nonGreedyState.postponedMessages.size() > 0)
+            {
+                try
+                {
+                    dataflowBlockOptions.getScheduler().schedule(this::releasePostponedMessagesAndCompleteSource);
+                }
+                catch (RuntimeException exception)
+                {
+                    source.addException(exception);
+                    source.complete();
+                }
+            }
+            else
+            {
+                source.complete();
+            }
+        }
+    }
+
+    private void releasePostponedMessagesAndCompleteSource()
+    {
+        List<Exception> exceptions = Common.releaseAllPostponedMessages(this, nonGreedyState.postponedMessages, null);
+        if (exceptions != null)
+        {
+            for (Exception exception : exceptions)
+                source.addException(exception);
+        }
+
+        source.complete();
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public boolean post(T item)
+    {
+        return offerMessage(Common.SingleMessageHeader, item, null, false) == DataflowMessageStatus.Accepted;
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<List<T>> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<List<T>> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<List<T>> target, Predicate<List<T>> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<List<T>> target, DataflowLinkOptions linkOptions, Predicate<List<T>> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<List<T>> TryReceive(Predicate<List<T>> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<List<T>>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super List<T>> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<List<T>> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<List<T>> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<List<T>> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<List<T>> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of batches available to be received from this block.
+     */
+    public int getOutputCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer. The input count is the size of the
+     * batch being filled, and the messages output are batches.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+
+    /*
+     * Gets the number of messages in the batch being filled, for the metrics.
+     */
+    private int getBatchingCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return messages.size();
+        }
+    }
+
+    /*
+     * Gets the number of items counted against the bound, for the metrics of a bounded block.
+     */
+    private int getBoundedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.CurrentCount;
+        }
+    }
+
+    /*
+     * Gets the number of postponed messages, for the metrics of a non-greedy or bounded block.
+     */
+    private int getPostponedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return nonGreedyState.postponedMessages.size();
+        }
+    }
+
+    private static <T> int countItems(ISourceBlock<List<T>> owningSource, List<T> singleBatch, List<List<T>> multipleBatches)
+    {
+        if (singleBatch != null)
+            return singleBatch.size();
+
+        int count = 0;
+        for (List<T> batch : multipleBatches)
+            count += batch.size();
+        return count;
+    }
+
+    /*
+     * Notifies the block that batches were removed from the source half, freeing room within the bound.
+     */
+    private void onItemsRemoved(int count)
+    {
+        synchronized (getIncomingLock())
+        {
+            boundingState.CurrentCount -= count;
+
+            processAsyncIfNecessary();
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Starts a task to consume postponed messages if there's enough of them to consume and room for
+     * them, and no such task is already running. Must be called while holding the incoming lock.
+     */
+    private void processAsyncIfNecessary()
+    {
+        if (nonGreedyState == null || nonGreedyState.taskForInputProcessing || decliningPermanently || faulted)
+            return;
+
+        int needed = dataflowBlockOptions.getGreedy() ? 1 : getNonGreedyBatchCount();
+        boolean messagesAvailable = needed > 0 && nonGreedyState.postponedMessages.size() >= needed;
+        boolean boundingAllowed = boundingState == null || boundingState.boundedCapacity - boundingState.CurrentCount >= needed;
+
+        if (messagesAvailable && boundingAllowed)
+        {
+            nonGreedyState.taskForInputProcessing = true;
+
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::processMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // The scheduler refused the work. Revert the processing state and fault the block.
+                nonGreedyState.taskForInputProcessing = false;
+                completeCore(exception, true, false);
+            }
+        }
+    }
+
+    /*
+     * Gets the size of the next non-greedy batch: BatchSize, or if a smaller batch has been asked for,
+     * however many postponed messages there are. Must be called while holding the incoming lock.
+     */
+    private int getNonGreedyBatchCount()
+    {
+        if (nonGreedyState.acceptFewerThanBatchSize)
+            return Math.min(batchSize, nonGreedyState.postponedMessages.size());
+
+        return batchSize;
+    }
+
+    /*
+     * Consumes postponed messages: one at a time into the current batch in greedy mode, or a whole
+     * batch at a time in non-greedy mode.
+     */
+    private void processMessagesLoopCore()
+    {
+        try
+        {
+            int maxMessagesPerTask = dataflowBlockOptions.getActualMaxMessagesPerTask();
+            boolean greedy = dataflowBlockOptions.getGreedy();
+            for (int i = 0; i < maxMessagesPerTask; i++)
+            {
+                if (!(greedy ? consumeOnePostponedMessageGreedy() : consumeBatchNonGreedy()))
+                    break;
+            }
+        }
+        catch (Exception exception)
+        {
+            // Consuming from a postponed source failed. Fault the block.
+            completeCore(exception, true, false);
+        }
+        finally
+        {
+            synchronized (getIncomingLock())
+            {
+                // We're no longer consuming, but there may be more to consume if we stopped
+                // because we hit MaxMessagesPerTask, so start a replacement if necessary.
+                nonGreedyState.taskForInputProcessing = false;
+                processAsyncIfNecessary();
+
+                // If we're declining permanently, we may be able to complete now.
+                completeBlockIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes one postponed message into the current batch, if there's room and one is still available.
+     *
+     * @return Whether a message was added.
+     */
+    private boolean consumeOnePostponedMessageGreedy()
+    {
+        while (true)
+        {
+            ISourceBlock<T> postponedSource;
+            DataflowMessageHeader messageHeader;
+            synchronized (getIncomingLock())
+            {
+                if (decliningPermanently || !boundingState.countIsLessThanBound())
+                    return false;
+
+                QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> postponedMessage = nonGreedyState.polledPostponedMessage;
+                if (!nonGreedyState.postponedMessages.tryPoll(postponedMessage))
+                    return false;
+
+                postponedSource = postponedMessage.key;
+                messageHeader = postponedMessage.value;
+                postponedMessage.clear();
+
+                // Take the room for the message optimistically, so offers can't take it in the meantime.
+                boundingState.CurrentCount++;
+            }
+
+            TryResult<T> result = postponedSource.consumeMessage(messageHeader, this);
+
+            synchronized (getIncomingLock())
+            {
+                // addMessageToBatch counts the message itself.
+                boundingState.CurrentCount--;
+
+                if (result.isSuccess())
+                {
+                    addMessageToBatch(result.getResult());
+                    return true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Reserves one postponed message from each of a batch's worth of sources and, if every reservation
+     * succeeds, consumes them all and outputs them as a batch. If any reservation fails, the ones already
+     * made are released, which makes their sources offer the messages again.
+     *
+     * A source only ever offers the message at its head, so a batch needs a message from as many
+     * different sources as it has items.
+     *
+     * @return Whether a batch was output.
+     */
+    private boolean consumeBatchNonGreedy()
+    {
+        ISourceBlock<T>[] sources = nonGreedyState.reservedSources;
+        DataflowMessageHeader[] headers = nonGreedyState.reservedHeaders;
+        int count;
+
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently)
+                return false;
+
+            count = getNonGreedyBatchCount();
+            if (count == 0 || nonGreedyState.postponedMessages.size() < count)
+                return false;
+
+            if (boundingState != null)
+            {
+                if (boundingState.boundedCapacity - boundingState.CurrentCount < count)
+                    return false;
+
+                // Take the room for the batch optimistically, so offers can't take it in the meantime.
+                boundingState.CurrentCount += count;
+            }
+
+            QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> postponedMessage = nonGreedyState.polledPostponedMessage;
+            for (int i = 0; i < count; i++)
+            {
+                nonGreedyState.postponedMessages.tryPoll(postponedMessage);
+                sources[i] = postponedMessage.key;
+                headers[i] = postponedMessage.value;
+            }
+            postponedMessage.clear();
+        }
+
+        List<T> batch = null;
+        try
+        {
+            int reserved = 0;
+            while (reserved < count && sources[reserved].reserveMessage(headers[reserved], this))
+                reserved++;
+
+            if (reserved < count)
+            {
+                for (int i = 0; i < reserved; i++)
+                    sources[i].releaseReservation(headers[i], this);
+
+                // The message we failed to reserve is gone, and its source will offer its next one. The ones
+                // we never got to are still on offer, so put them back.
+                synchronized (getIncomingLock())
+                {
+                    for (int i = reserved + 1; i < count; i++)
+                        nonGreedyState.postponedMessages.put(sources[i], headers[i]);
+                }
+
+                return false;
+            }
+
+            batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                TryResult<T> result = sources[i].consumeMessage(headers[i], this);
+                if (!result.isSuccess())
+                    throw new IllegalStateException("Failed to consume a reserved message.");
+
+                batch.add(result.getResult());
+            }
+        }
+        finally
+        {
+            Arrays.fill(sources, 0, count, null);
+            Arrays.fill(headers, 0, count, null);
+
+            synchronized (getIncomingLock())
+            {
+                if (batch != null && batch.size() == count)
+                {
+                    nonGreedyState.acceptFewerThanBatchSize = false;
+                    outputBatch(batch);
+                }
+                else if (boundingState != null)
+                {
+                    // We didn't get the batch after all, so give the room back.
+                    boundingState.CurrentCount -= count;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * State used only when the block postpones messages: in non-greedy mode, or when bounded.
+     */
+    private static final class NonGreedyState<T>
+    {
+        final QueuedMap<ISourceBlock<T>, DataflowMessageHeader> postponedMessages;
+
+        // Holds the entry polled from postponedMessages. Only used under the incoming lock.
+        final QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> polledPostponedMessage = new QueuedMap.Entry<>();
+
+        // The messages a non-greedy batch is being formed from. Only used by the processing task.
+        final ISourceBlock<T>[] reservedSources;
+        final DataflowMessageHeader[] reservedHeaders;
+
+        // Whether a task is scheduled or running to consume postponed messages.
+        boolean taskForInputProcessing;
+
+        // Whether the next non-greedy batch may have fewer than BatchSize messages, after a trigger.
+        boolean acceptFewerThanBatchSize;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        NonGreedyState(int batchSize)
+        {
+            postponedMessages = new QueuedMap<>(batchSize);
+            reservedSources = (ISourceBlock<T>[]) new ISourceBlock[batchSize];
+            reservedHeaders = new DataflowMessageHeader[batchSize];
+        }
+    }
+}
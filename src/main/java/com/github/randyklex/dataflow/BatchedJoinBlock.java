@@ -0,0 +1,333 @@
+package com.github.randyklex.dataflow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/*
+ * Provides a dataflow block that batches inputs of two types received by its targets. A batch is a
+ * Tuple of the lists of messages each target received, and is output once the targets have received
+ * BatchSize messages between them, in whatever proportion they arrived.
+ *
+ * The block is always greedy and unbounded: a batch doesn't need a message from each target, so there's
+ * nothing for a non-greedy block to wait for. A partial batch is output once every target has completed.
+ */
+public final class BatchedJoinBlock<T1, T2> implements IReceivableSourceBlock<Tuple<List<T1>, List<T2>>> {
+
+    private final SourceCore<Tuple<List<T1>, List<T2>>> source;
+
+    private final GroupingDataflowBlockOptions dataflowBlockOptions;
+
+    private final int batchSize;
+
+    private final BatchedJoinBlockTarget<T1> target1;
+
+    private final BatchedJoinBlockTarget<T2> target2;
+
+    private final DataflowBlockMetrics metrics;
+
+    /*
+     * The number of messages the targets hold between them.
+     */
+    private int remainingItemsInBatch;
+
+    private long batchesCreated;
+
+    private boolean decliningPermanently;
+
+    private boolean completionReserved;
+
+    public BatchedJoinBlock(int batchSize)
+    {
+        this(batchSize, GroupingDataflowBlockOptions.Default);
+    }
+
+    public BatchedJoinBlock(int batchSize, GroupingDataflowBlockOptions options)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive.");
+
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        if (!options.getGreedy())
+            throw new IllegalArgumentException("BatchedJoinBlock must be greedy.");
+
+        if (options.getBoundedCapacity() != DataflowBlockOptions.Unbounded)
+            throw new IllegalArgumentException("BatchedJoinBlock must be unbounded.");
+
+        options = options.DefaultOrClone();
+        this.dataflowBlockOptions = options;
+        this.batchSize = batchSize;
+        this.remainingItemsInBatch = batchSize;
+
+        MetricsRecorder metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> ((BatchedJoinBlock<T1, T2>) owningSource).complete(),
+                null,
+                null,
+                metricsRecorder);
+
+        target1 = new BatchedJoinBlockTarget<>();
+        target2 = new BatchedJoinBlockTarget<>();
+
+        // Cancellation completes the block, dropping its partial batch.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(), () -> dropMessagesAndComplete(null));
+
+        metrics = new DataflowBlockMetrics(metricsRecorder, this::getBatchingCount, source::getOutputCount, null, null, null,
+                source::getMessagesOutput);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    private Object getIncomingLock() { return source; }
+
+    /*
+     * Gets the number of items per batch, across both targets.
+     */
+    public int getBatchSize() { return batchSize; }
+
+    /*
+     * Gets the target that supplies the first list of each batch.
+     */
+    public ITargetBlock<T1> getTarget1() { return target1; }
+
+    /*
+     * Gets the target that supplies the second list of each batch.
+     */
+    public ITargetBlock<T2> getTarget2() { return target2; }
+
+    /*
+     * Records that a target accepted a message, outputting the batch if it's full.
+     * Must be called while holding the incoming lock.
+     */
+    private void messageAccepted()
+    {
+        if (--remainingItemsInBatch == 0)
+            outputBatch();
+    }
+
+    /*
+     * Outputs whatever the targets hold as a batch. Must be called while holding the incoming lock,
+     * which keeps the source half's producer single-threaded.
+     */
+    private void outputBatch()
+    {
+        source.addMessage(new Tuple<>(target1.takeMessages(), target2.takeMessages()));
+        remainingItemsInBatch = batchSize;
+
+        if (++batchesCreated >= dataflowBlockOptions.getActualMaxNumberOfGroups())
+            decliningPermanently = true;
+    }
+
+    public void complete()
+    {
+        synchronized (getIncomingLock())
+        {
+            target1.decliningPermanently = true;
+            target2.decliningPermanently = true;
+            completeBlockIfPossible();
+        }
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        dropMessagesAndComplete(exception);
+    }
+
+    /*
+     * Completes the block without outputting its partial batch, faulting it if exception isn't null.
+     */
+    private void dropMessagesAndComplete(Exception exception)
+    {
+        synchronized (getIncomingLock())
+        {
+            if (exception != null && !decliningPermanently)
+                source.addException(exception);
+
+            decliningPermanently = true;
+
+            // A faulted or canceled block drops its partial batch.
+            target1.takeMessages();
+            target2.takeMessages();
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Completes the block once it's declining permanently or both targets have completed, outputting
+     * whatever partial batch is left. Must be called while holding the incoming lock.
+     */
+    private void completeBlockIfPossible()
+    {
+        if (completionReserved)
+            return;
+
+        if (decliningPermanently || (target1.decliningPermanently && target2.decliningPermanently))
+        {
+            completionReserved = true;
+
+            if (!decliningPermanently && remainingItemsInBatch < batchSize)
+                outputBatch();
+
+            decliningPermanently = true;
+            source.complete();
+        }
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<List<T1>, List<T2>>> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<List<T1>, List<T2>>> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<List<T1>, List<T2>>> target, Predicate<Tuple<List<T1>, List<T2>>> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<List<T1>, List<T2>>> target, DataflowLinkOptions linkOptions, Predicate<Tuple<List<T1>, List<T2>>> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<Tuple<List<T1>, List<T2>>> TryReceive(Predicate<Tuple<List<T1>, List<T2>>> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<Tuple<List<T1>, List<T2>>>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super Tuple<List<T1>, List<T2>>> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<Tuple<List<T1>, List<T2>>> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<List<T1>, List<T2>>> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<List<T1>, List<T2>>> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<List<T1>, List<T2>>> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of batches available to be received from this block.
+     */
+    public int getOutputCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer. The input count is the size of the
+     * batch being filled, and the messages output are batches.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+
+    private int getBatchingCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return batchSize - remainingItemsInBatch;
+        }
+    }
+
+    /*
+     * One of the targets of the block, collecting its messages for the current batch.
+     */
+    private final class BatchedJoinBlockTarget<T> implements ITargetBlock<T>
+    {
+        // Only used while holding the incoming lock.
+        private List<T> messages = new ArrayList<>();
+
+        private boolean decliningPermanently;
+
+        /*
+         * Takes the messages received for the current batch. Must be called while holding the incoming lock.
+         */
+        List<T> takeMessages()
+        {
+            List<T> taken = messages;
+            messages = new ArrayList<>();
+            return taken;
+        }
+
+        public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+        {
+            if (!messageHeader.isValid())
+                throw new IllegalArgumentException("message header is invalid.");
+
+            if (source == null && consumeToAccept)
+                throw new IllegalArgumentException("Can't consume from a null source.");
+
+            synchronized (getIncomingLock())
+            {
+                if (decliningPermanently || BatchedJoinBlock.this.decliningPermanently)
+                    return DataflowMessageStatus.DecliningPermanently;
+
+                if (consumeToAccept)
+                {
+                    TryResult<T> result = source.consumeMessage(messageHeader, this);
+                    if (!result.isSuccess())
+                        return DataflowMessageStatus.NotAvailable;
+                    else
+                        messageValue = result.getResult();
+                }
+
+                messages.add(messageValue);
+                messageAccepted();
+                completeBlockIfPossible();
+                return DataflowMessageStatus.Accepted;
+            }
+        }
+
+        public void complete()
+        {
+            synchronized (getIncomingLock())
+            {
+                decliningPermanently = true;
+                completeBlockIfPossible();
+            }
+        }
+
+        public void fault(Exception exception)
+        {
+            BatchedJoinBlock.this.fault(exception);
+        }
+
+        public CompletableFuture<?> getCompletion()
+        {
+            return BatchedJoinBlock.this.getCompletion();
+        }
+    }
+}
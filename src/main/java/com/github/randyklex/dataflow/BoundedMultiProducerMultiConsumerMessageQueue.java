@@ -0,0 +1,214 @@
+package com.github.randyklex.dataflow;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/*
+ * A fixed-capacity IMessageQueue for any number of concurrent producers and consumers, after
+ * Dmitry Vyukov's bounded MPMC queue.
+ *
+ * Messages and IDs live in preallocated arrays, so adding and polling don't allocate. Every slot
+ * has a sequence number that tells producers and consumers whose turn it is: a slot at position p
+ * is free for the producer claiming p when its sequence is p, and holds a message for the consumer
+ * claiming p when its sequence is p + 1. Producers and consumers claim positions with a CAS on
+ * their own counter, and the size is the difference between the two counters.
+ */
+final class BoundedMultiProducerMultiConsumerMessageQueue<T> extends BoundedMultiProducerMultiConsumerMessageQueuePositions implements IMessageQueue<T> {
+
+    /*
+     * The largest capacity worth preallocating. Blocks bounded above it use a linked queue instead.
+     */
+    static final int MAX_CAPACITY = 1 << 16;
+
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int mask;
+    private final Object[] values;
+    private final long[] ids;
+    private final long[] sequences;
+
+    /*
+     * @param capacity The number of messages the queue must be able to hold, rounded up to a power of two.
+     */
+    BoundedMultiProducerMultiConsumerMessageQueue(int capacity)
+    {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ".");
+
+        int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        mask = size - 1;
+        values = new Object[size];
+        ids = new long[size];
+        sequences = new long[size];
+        for (int i = 0; i < size; i++)
+            sequences[i] = i;
+    }
+
+    /*
+     * Adds a message. The owner's bounding must keep the queue from ever holding more messages than
+     * its capacity, so running out of room is a bug rather than something to wait out.
+     */
+    public void add(T item, long id)
+    {
+        if (!tryAdd(item, id))
+            throw new IllegalStateException("The queue is full.");
+    }
+
+    boolean tryAdd(T item, long id)
+    {
+        long position = getEnqueuePosition();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = (long) SEQUENCE.getAcquire(sequences, index) - position;
+            if (difference == 0)
+            {
+                if (casEnqueuePosition(position, position + 1))
+                {
+                    values[index] = item;
+                    ids[index] = id;
+                    SEQUENCE.setRelease(sequences, index, position + 1);
+                    return true;
+                }
+
+                position = getEnqueuePosition();
+            }
+            else if (difference < 0)
+            {
+                // The slot still holds the message from a lap ago, so the queue is full.
+                return false;
+            }
+            else
+            {
+                // Another producer claimed this position first.
+                position = getEnqueuePosition();
+            }
+        }
+    }
+
+    public boolean tryPoll(MessageWithId<T> destination)
+    {
+        long position = getDequeuePosition();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = (long) SEQUENCE.getAcquire(sequences, index) - (position + 1);
+            if (difference == 0)
+            {
+                if (casDequeuePosition(position, position + 1))
+                {
+                    // values only ever holds items passed to tryAdd.
+                    @SuppressWarnings("unchecked")
+                    T value = (T) values[index];
+                    destination.set(value, ids[index]);
+                    values[index] = null;
+                    SEQUENCE.setRelease(sequences, index, position + mask + 1);
+                    return true;
+                }
+
+                position = getDequeuePosition();
+            }
+            else if (difference < 0)
+            {
+                // The slot hasn't been filled for this lap, so the queue is empty.
+                return false;
+            }
+            else
+            {
+                // Another consumer took this position first.
+                position = getDequeuePosition();
+            }
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    public int size()
+    {
+        // Read the dequeue position first, so a concurrent poll can only make the size look larger.
+        long dequeuePosition = getDequeuePosition();
+        long enqueuePosition = getEnqueuePosition();
+        long size = enqueuePosition - dequeuePosition;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int sizeSafe(Object syncObj)
+    {
+        return size();
+    }
+}
+
+/*
+ * The producer and consumer positions of a BoundedMultiProducerMultiConsumerMessageQueue, each on a
+ * cache line of its own. The JVM lays out a superclass's fields before its subclass's, so padding
+ * classes in between keep the two apart.
+ */
+abstract class BoundedMultiProducerMultiConsumerMessageQueuePadding0
+{
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class BoundedMultiProducerMultiConsumerMessageQueueEnqueuePosition extends BoundedMultiProducerMultiConsumerMessageQueuePadding0
+{
+    private static final VarHandle ENQUEUE_POSITION;
+
+    static
+    {
+        try
+        {
+            ENQUEUE_POSITION = MethodHandles.lookup().findVarHandle(BoundedMultiProducerMultiConsumerMessageQueueEnqueuePosition.class, "enqueuePosition", long.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long enqueuePosition;
+
+    final long getEnqueuePosition() { return enqueuePosition; }
+
+    final boolean casEnqueuePosition(long expected, long value)
+    {
+        return ENQUEUE_POSITION.compareAndSet(this, expected, value);
+    }
+}
+
+abstract class BoundedMultiProducerMultiConsumerMessageQueuePadding1 extends BoundedMultiProducerMultiConsumerMessageQueueEnqueuePosition
+{
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class BoundedMultiProducerMultiConsumerMessageQueueDequeuePosition extends BoundedMultiProducerMultiConsumerMessageQueuePadding1
+{
+    private static final VarHandle DEQUEUE_POSITION;
+
+    static
+    {
+        try
+        {
+            DEQUEUE_POSITION = MethodHandles.lookup().findVarHandle(BoundedMultiProducerMultiConsumerMessageQueueDequeuePosition.class, "dequeuePosition", long.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long dequeuePosition;
+
+    final long getDequeuePosition() { return dequeuePosition; }
+
+    final boolean casDequeuePosition(long expected, long value)
+    {
+        return DEQUEUE_POSITION.compareAndSet(this, expected, value);
+    }
+}
+
+abstract class BoundedMultiProducerMultiConsumerMessageQueuePositions extends BoundedMultiProducerMultiConsumerMessageQueueDequeuePosition
+{
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
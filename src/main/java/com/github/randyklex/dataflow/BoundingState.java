@@ -25,6 +25,9 @@ class BoundingStateWithPostponed<TInput> extends BoundingState
 
     final QueuedMap<ISourceBlock<TInput>, DataflowMessageHeader> postponedMessages = new QueuedMap<>();
 
+    // Holds the entry polled from postponedMessages. Only used under the target's incoming lock.
+    final QueuedMap.Entry<ISourceBlock<TInput>, DataflowMessageHeader> polledPostponedMessage = new QueuedMap.Entry<>();
+
     BoundingStateWithPostponed(int boundedCapacity)
     {
         super(boundedCapacity);
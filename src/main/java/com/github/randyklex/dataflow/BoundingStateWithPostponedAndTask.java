@@ -0,0 +1,15 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * Bounding state for a block that consumes its postponed messages from a task of its own.
+ */
+class BoundingStateWithPostponedAndTask<TInput> extends BoundingStateWithPostponed<TInput>
+{
+    // Whether a task is scheduled or running to consume postponed messages.
+    boolean taskForInputProcessing;
+
+    BoundingStateWithPostponedAndTask(int boundedCapacity)
+    {
+        super(boundedCapacity);
+    }
+}
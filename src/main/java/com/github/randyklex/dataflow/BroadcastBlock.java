@@ -0,0 +1,1020 @@
+package com.github.randyklex.dataflow;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/*
+ * Provides a buffer for storing at most one element at a time, overwriting each message with the next
+ * as it arrives. Every message is offered to all of the linked targets, and receiving the current
+ * message doesn't remove it.
+ *
+ * Without a cloning function, every target is offered the same instance, so fanning out costs one
+ * offer per target and nothing more. With one, each target consumes its own clone.
+ *
+ * A target that postpones a message, such as a bounded block that's full, can only consume the message
+ * while it's still the current one. Once it's overwritten, the target is offered the new message instead,
+ * so a slow consumer skips stale values rather than building up a backlog.
+ */
+public class BroadcastBlock<T> implements IPropagatorBlock<T, T>, IReceivableSourceBlock<T> {
+
+    private final BroadcastingSourceCore<T> source;
+
+    /*
+     * The bounding state, or null if the block is unbounded. Messages count against the bound until
+     * they become the current message.
+     */
+    private final BoundingStateWithPostponedAndTask<T> boundingState;
+
+    /*
+     * The recorder for the block's metrics, or null if they're disabled.
+     */
+    private final MetricsRecorder metricsRecorder;
+
+    private final DataflowBlockMetrics metrics;
+
+    private boolean decliningPermanently;
+
+    private boolean completionReserved;
+
+    /*
+     * @param cloningFunction The function used to clone the message offered to each target and
+     * handed to each receiver, or null to hand out the message itself.
+     */
+    public BroadcastBlock(Function<T, T> cloningFunction)
+    {
+        this(cloningFunction, DataflowBlockOptions.Default);
+    }
+
+    public BroadcastBlock(Function<T, T> cloningFunction, DataflowBlockOptions options)
+    {
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        options = options.DefaultOrClone();
+
+        // Messages count against the bound, so a bounded block releases room as they're broadcast.
+        BiConsumer<ISourceBlock<T>, Integer> onItemsRemoved = null;
+        if (options.getBoundedCapacity() > 0)
+        {
+            onItemsRemoved = (owningSource, count) -> ((BroadcastBlock<T>) owningSource).onItemsRemoved(count);
+            boundingState = new BoundingStateWithPostponedAndTask<>(options.getBoundedCapacity());
+        }
+        else
+            boundingState = null;
+
+        metricsRecorder = MetricsRecorder.create(options);
+        source = new BroadcastingSourceCore<>(this, cloningFunction, options,
+                owningSource -> ((BroadcastBlock<T>) owningSource).complete(),
+                onItemsRemoved,
+                metricsRecorder);
+
+        // Cancellation completes the block, which drops its messages once the source half sees the request.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(), this::complete);
+
+        metrics = new DataflowBlockMetrics(metricsRecorder, null, source::getOutputCount, null,
+                boundingState != null ? this::getBoundedCount : null,
+                boundingState != null ? this::getPostponedCount : null,
+                source::getMessagesOutput);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    private Object getIncomingLock() { return source; }
+
+    public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (source == null && consumeToAccept)
+            throw new IllegalArgumentException("Can't consume from a null source.");
+
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently)
+            {
+                completeTargetIfPossible();
+                return DataflowMessageStatus.DecliningPermanently;
+            }
+
+            // We can directly accept the message if we're not bounding, or if we are bounding, there's room
+            // available, and nothing is postponed or being consumed ahead of it.
+            if (boundingState == null || (boundingState.countIsLessThanBound() && boundingState.postponedMessages.size() == 0 && !boundingState.taskForInputProcessing))
+            {
+                if (consumeToAccept)
+                {
+                    TryResult<T> result = source.consumeMessage(messageHeader, this);
+                    if (!result.isSuccess())
+                        return DataflowMessageStatus.NotAvailable;
+                    else
+                        messageValue = result.getResult();
+                }
+
+                this.source.addMessage(messageValue);
+                if (boundingState != null) boundingState.CurrentCount++;
+                return DataflowMessageStatus.Accepted;
+            }
+            else if (source != null)
+            {
+                boundingState.postponedMessages.put(source, messageHeader);
+                if (metricsRecorder != null) metricsRecorder.messagesPostponed.increment();
+                consumeAsyncIfNecessary();
+                return DataflowMessageStatus.Postponed;
+            }
+
+            return DataflowMessageStatus.Declined;
+        }
+    }
+
+    /*
+     * Accepts as many of a run of messages as the block has room for under a single acquisition
+     * of the incoming lock. See @see ITargetBlock#offerMessages.
+     */
+    @Override
+    public int offerMessages(DataflowMessageHeader firstMessageHeader, List<T> messageValues, ISourceBlock<T> source)
+    {
+        if (!firstMessageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently)
+            {
+                completeTargetIfPossible();
+                return 0;
+            }
+
+            int count = messageValues.size();
+            if (boundingState != null)
+            {
+                // Whatever doesn't fit is offered again individually, and gets postponed then.
+                if (boundingState.postponedMessages.size() != 0 || boundingState.taskForInputProcessing)
+                    return 0;
+
+                count = Math.min(count, boundingState.boundedCapacity - boundingState.CurrentCount);
+                if (count <= 0)
+                    return 0;
+
+                boundingState.CurrentCount += count;
+            }
+
+            for (int i = 0; i < count; i++)
+                this.source.addMessage(messageValues.get(i));
+
+            return count;
+        }
+    }
+
+    public boolean post(T item)
+    {
+        return offerMessage(Common.SingleMessageHeader, item, null, false) == DataflowMessageStatus.Accepted;
+    }
+
+    public void complete()
+    {
+        completeCore(null, false);
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        completeCore(exception, false);
+    }
+
+    private void completeCore(Exception exception, boolean storeExceptionEvenIfAlreadyCompleting)
+    {
+        synchronized (getIncomingLock())
+        {
+            if (exception != null && (!decliningPermanently || storeExceptionEvenIfAlreadyCompleting))
+                source.addException(exception);
+
+            decliningPermanently = true;
+            completeTargetIfPossible();
+        }
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions, null);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, Predicate<T> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, DataflowLinkOptions linkOptions, Predicate<T> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    /*
+     * Receives the current message if it passes the filter. The message stays current.
+     */
+    public TryResult<T> TryReceive(Predicate<T> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    /*
+     * Receives the current message as a list of one. The message stays current.
+     */
+    public TryResult<List<T>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    /*
+     * Receives the current message into destination, if there is one and maxElements allows it.
+     * The message stays current, so this receives at most one message however often it's called.
+     */
+    public int drainTo(Collection<? super T> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<T> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+
+    /*
+     * Gets the number of messages counted against the bound, for the metrics of a bounded block.
+     */
+    private int getBoundedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.CurrentCount;
+        }
+    }
+
+    /*
+     * Gets the number of postponed messages, for the metrics of a bounded block.
+     */
+    private int getPostponedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.postponedMessages.size();
+        }
+    }
+
+    /*
+     * Notifies the block that messages were broadcast, freeing room within the bound.
+     */
+    private void onItemsRemoved(int count)
+    {
+        synchronized (getIncomingLock())
+        {
+            boundingState.CurrentCount -= count;
+
+            consumeAsyncIfNecessary();
+            completeTargetIfPossible();
+        }
+    }
+
+    /*
+     * Starts a task to consume postponed messages if there are any, there's room for them, and no
+     * such task is already running. Must be called while holding the incoming lock.
+     */
+    private void consumeAsyncIfNecessary()
+    {
+        if (!decliningPermanently &&
+                !boundingState.taskForInputProcessing &&
+                boundingState.postponedMessages.size() > 0 &&
+                boundingState.countIsLessThanBound())
+        {
+            boundingState.taskForInputProcessing = true;
+
+            try
+            {
+                source.getDataflowBlockOptions().getScheduler().schedule(this::consumeMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // The scheduler refused the work. Revert the processing state and fault the block.
+                boundingState.taskForInputProcessing = false;
+                source.addException(exception);
+                decliningPermanently = true;
+                completeTargetIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes postponed messages into the block while there's room for them.
+     */
+    private void consumeMessagesLoopCore()
+    {
+        try
+        {
+            int maxMessagesPerTask = source.getDataflowBlockOptions().getActualMaxMessagesPerTask();
+            for (int i = 0; i < maxMessagesPerTask && consumeAndStoreOneMessageIfAvailable(); i++)
+            {
+            }
+        }
+        catch (Exception exception)
+        {
+            // Consuming from a postponed source failed. Fault the block.
+            completeCore(exception, true);
+        }
+        finally
+        {
+            synchronized (getIncomingLock())
+            {
+                // We're no longer consuming, but there may be more to consume if we stopped
+                // because we hit MaxMessagesPerTask, so start a replacement if necessary.
+                boundingState.taskForInputProcessing = false;
+                consumeAsyncIfNecessary();
+
+                // If we're declining permanently, we may be able to complete now.
+                completeTargetIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes one postponed message into the block, if there's room and one is still available.
+     *
+     * @return Whether a message was stored.
+     */
+    private boolean consumeAndStoreOneMessageIfAvailable()
+    {
+        while (true)
+        {
+            ISourceBlock<T> postponedSource;
+            DataflowMessageHeader messageHeader;
+            synchronized (getIncomingLock())
+            {
+                // If we're declining permanently or there's no room, bail.
+                if (decliningPermanently || !boundingState.countIsLessThanBound())
+                    return false;
+
+                QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> postponedMessage = boundingState.polledPostponedMessage;
+                if (!boundingState.postponedMessages.tryPoll(postponedMessage))
+                    return false;
+
+                postponedSource = postponedMessage.key;
+                messageHeader = postponedMessage.value;
+                postponedMessage.clear();
+
+                // Take the room for the message optimistically, so offers can't take it in the meantime.
+                boundingState.CurrentCount++;
+            }
+
+            boolean consumed = false;
+            try
+            {
+                TryResult<T> result = postponedSource.consumeMessage(messageHeader, this);
+                if (result.isSuccess())
+                {
+                    consumed = true;
+
+                    // While this task runs, offers don't add messages directly, so this is the only producer.
+                    source.addMessage(result.getResult());
+                    return true;
+                }
+            }
+            finally
+            {
+                // The source didn't give us the message after all, so give the room back.
+                if (!consumed)
+                {
+                    synchronized (getIncomingLock())
+                    {
+                        boundingState.CurrentCount--;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Completes the source half once the target half is declining permanently and nothing is
+     * being consumed. Must be called while holding the incoming lock.
+     */
+    private void completeTargetIfPossible()
+    {
+        if (decliningPermanently &&
+                !completionReserved &&
+                (boundingState == null || !boundingState.taskForInputProcessing))
+        {
+            completionReserved = true;
+
+            // Releasing postponed messages calls back into their sources, so it has to happen outside the
+            // incoming lock. Nothing else touches them once completion is reserved.
+            if (boundingState != null && boundingState.postponedMessages.size() > 0)
+            {
+                try
+                {
+                    source.getDataflowBlockOptions().getScheduler().schedule(this::releasePostponedMessagesAndCompleteSource);
+                }
+                catch (RuntimeException exception)
+                {
+                    source.addException(exception);
+                    source.complete();
+                }
+            }
+            else
+            {
+                source.complete();
+            }
+        }
+    }
+
+    private void releasePostponedMessagesAndCompleteSource()
+    {
+        List<Exception> exceptions = Common.releaseAllPostponedMessages(this, boundingState.postponedMessages, null);
+        if (exceptions != null)
+        {
+            for (Exception exception : exceptions)
+                source.addException(exception);
+        }
+
+        source.complete();
+    }
+
+    /*
+     * The source half of a BroadcastBlock. Unlike SourceCore, which hands each message to a single
+     * target, it makes each message in turn the current one and offers it to every linked target.
+     * The current message stays available to be consumed or received until it's overwritten.
+     */
+    private static final class BroadcastingSourceCore<T>
+    {
+        private final TargetRegistry<T> targetRegistry;
+
+        private final CompletableFuture<Void> completionTask = new CompletableFuture<>();
+
+        /*
+         * The messages waiting to become the current message. Added to under the owning block's
+         * incoming lock and polled only by the offering loop.
+         */
+        private final SingleProducerSingleConsumerQueue<T> messages = new SingleProducerSingleConsumerQueue<>();
+
+        // Holds the message polled from messages. Only used by the offering loop.
+        private final MessageWithId<T> polledMessage = new MessageWithId<>();
+
+        private final BroadcastBlock<T> owningSource;
+
+        private final Function<T, T> cloningFunction;
+
+        private final DataflowBlockOptions dataflowBlockOptions;
+
+        private final Consumer<ISourceBlock<T>> completeAction;
+
+        private final BiConsumer<ISourceBlock<T>, Integer> itemsRemovedAction;
+
+        /*
+         * The message most recently offered to the targets. Only used while holding the outgoing lock.
+         */
+        private T currentMessage;
+
+        private boolean currentMessageIsValid;
+
+        private long currentMessageId;
+
+        /*
+         * Records when messages are queued and become the current message, or null unless the block records
+         * metrics or is traced. Messages are sampled by their sequence number, which is their ID less one.
+         */
+        private final MetricsRecorder metrics;
+
+        // The number of messages added, as the sequence number of the next. Only used by the producer.
+        private long messagesAdded;
+
+        private ITargetBlock<T> nextMessageReservedFor;
+
+        private volatile boolean decliningPermanently;
+
+        private boolean completionReserved;
+
+        /*
+         * Whether a task is currently scheduled or running to offer messages to the linked targets.
+         */
+        private volatile boolean outputProcessingScheduled;
+
+        private volatile List<Exception> exceptions;
+
+        private Object getOutgoingLock() { return completionTask; }
+
+        private Object getValueLock() { return targetRegistry; }
+
+        BroadcastingSourceCore(BroadcastBlock<T> owningSource,
+                               Function<T, T> cloningFunction,
+                               DataflowBlockOptions dataflowBlockOptions,
+                               Consumer<ISourceBlock<T>> completeAction,
+                               BiConsumer<ISourceBlock<T>, Integer> itemsRemovedAction,
+                               MetricsRecorder metrics)
+        {
+            this.owningSource = owningSource;
+            this.cloningFunction = cloningFunction;
+            this.dataflowBlockOptions = dataflowBlockOptions;
+            this.completeAction = completeAction;
+            this.itemsRemovedAction = itemsRemovedAction;
+            this.metrics = metrics;
+
+            this.targetRegistry = new TargetRegistry<>(owningSource);
+        }
+
+        DataflowBlockOptions getDataflowBlockOptions() { return dataflowBlockOptions; }
+
+        CompletableFuture<Void> getCompletion() { return completionTask; }
+
+        private T cloneItem(T item)
+        {
+            return cloningFunction != null ? cloningFunction.apply(item) : item;
+        }
+
+        AutoCloseable LinkTo(ITargetBlock<T> target, DataflowLinkOptions linkOptions, Predicate<T> predicate)
+        {
+            if (target == null)
+                throw new IllegalArgumentException("target cannot be null");
+
+            if (linkOptions == null)
+                throw new IllegalArgumentException("linkOptions cannot be null.");
+
+            synchronized (getOutgoingLock())
+            {
+                if (!completionReserved)
+                {
+                    // The registry may wrap the target if it is already linked, so offer to whatever it registered.
+                    target = targetRegistry.add(target, linkOptions, predicate);
+
+                    // A new target gets the current message, if there is one and it passes the target's
+                    // filter, like every other target did.
+                    if (currentMessageIsValid && (predicate == null || predicate.test(currentMessage)))
+                        offerMessageToTarget(new DataflowMessageHeader(currentMessageId), currentMessage, target);
+
+                    return Common.CreateUnlinker(getOutgoingLock(), targetRegistry, target);
+                }
+            }
+
+            // The source has completed, or is about to. Propagate its completion to the target once it has.
+            if (linkOptions.getPropagateCompletion())
+                Common.propagateCompletionOnceCompleted(completionTask, target);
+
+            return AutoCloseables.Nop;
+        }
+
+        /*
+         * Receives the current message if it passes the filter. A null filter accepts any message.
+         */
+        TryResult<T> tryReceive(Predicate<T> filter)
+        {
+            T item;
+            synchronized (getOutgoingLock())
+            {
+                if (!currentMessageIsValid || (filter != null && !filter.test(currentMessage)))
+                    return new TryResult<>(false, null);
+
+                item = currentMessage;
+            }
+
+            return new TryResult<>(true, cloneItem(item));
+        }
+
+        TryResult<List<T>> tryReceiveAll()
+        {
+            TryResult<T> result = tryReceive(null);
+            if (!result.isSuccess())
+                return new TryResult<>(false, null);
+
+            List<T> items = new ArrayList<>(1);
+            items.add(result.getResult());
+            return new TryResult<>(true, items);
+        }
+
+        int drainTo(Collection<? super T> destination, int maxElements)
+        {
+            if (destination == null)
+                throw new IllegalArgumentException("destination cannot be null.");
+
+            if (maxElements <= 0)
+                return 0;
+
+            TryResult<T> result = tryReceive(null);
+            if (!result.isSuccess())
+                return 0;
+
+            destination.add(result.getResult());
+            return 1;
+        }
+
+        /*
+         * Gets the number of messages waiting to become the current message.
+         */
+        int getOutputCount()
+        {
+            synchronized (getOutgoingLock())
+            {
+                return messages.size();
+            }
+        }
+
+        /*
+         * Gets the number of messages that have become the current message.
+         */
+        long getMessagesOutput()
+        {
+            synchronized (getOutgoingLock())
+            {
+                return currentMessageId;
+            }
+        }
+
+        /*
+         * Adds a message to be broadcast. Calls to addMessage must not be made concurrently.
+         */
+        void addMessage(T item)
+        {
+            if (decliningPermanently)
+                return;
+
+            if (metrics != null) metrics.messagesOutput(messagesAdded++, 1);
+            messages.add(item);
+
+            // Make sure the read of outputProcessingScheduled below isn't reordered before the write to the queue.
+            // This pairs with the fence after the offering loop clears the flag.
+            VarHandle.fullFence();
+
+            if (!outputProcessingScheduled)
+                offerAsyncIfNecessaryWithValueLock();
+        }
+
+        TryResult<T> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+        {
+            if (!messageHeader.isValid())
+                throw new IllegalArgumentException("messageHeader is invalid.");
+
+            if (target == null)
+                throw new IllegalArgumentException("target cannot be null.");
+
+            T item;
+            synchronized (getOutgoingLock())
+            {
+                // Only the current message can be consumed, and only if it isn't reserved by someone else.
+                if (messageHeader.getId() != currentMessageId || !currentMessageIsValid)
+                    return new TryResult<>(false, null);
+
+                if (nextMessageReservedFor != target && nextMessageReservedFor != null)
+                    return new TryResult<>(false, null);
+
+                item = currentMessage;
+                targetRegistry.Remove(target, true);
+
+                if (nextMessageReservedFor != null)
+                {
+                    // The reservation held back the offering loop, which may have more to do now.
+                    nextMessageReservedFor = null;
+                    synchronized (getValueLock())
+                    {
+                        offerAsyncIfNecessary(false);
+                        completeBlockIfPossible();
+                    }
+                }
+            }
+
+            // Every consumer of the current message gets its own copy, so the message isn't removed.
+            return new TryResult<>(true, cloneItem(item));
+        }
+
+        boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+        {
+            if (!messageHeader.isValid())
+                throw new IllegalArgumentException("messageHeader is invalid.");
+
+            if (target == null)
+                throw new IllegalArgumentException("target cannot be null.");
+
+            synchronized (getOutgoingLock())
+            {
+                // The current message can be reserved if no one else holds a reservation. While it's
+                // reserved, the offering loop doesn't overwrite it.
+                if (nextMessageReservedFor == null && currentMessageIsValid && messageHeader.getId() == currentMessageId)
+                {
+                    nextMessageReservedFor = target;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+        {
+            if (!messageHeader.isValid())
+                throw new IllegalArgumentException("messageHeader is invalid.");
+
+            if (target == null)
+                throw new IllegalArgumentException("target cannot be null.");
+
+            synchronized (getOutgoingLock())
+            {
+                if (nextMessageReservedFor != target || messageHeader.getId() != currentMessageId)
+                    throw new IllegalStateException("The message was not reserved by the target.");
+
+                nextMessageReservedFor = null;
+
+                // Now that there is no longer a reservation, there may be more messages to offer.
+                synchronized (getValueLock())
+                {
+                    offerAsyncIfNecessary(false);
+                    completeBlockIfPossible();
+                }
+            }
+        }
+
+        /*
+         * Signals that no more messages will be added. The source completes once its queued messages
+         * have been broadcast.
+         */
+        void complete()
+        {
+            synchronized (getValueLock())
+            {
+                decliningPermanently = true;
+            }
+
+            // Complete from a scheduled task, since the caller may hold locks of its owning block.
+            Runnable completeIfPossible = () -> {
+                synchronized (getOutgoingLock())
+                {
+                    synchronized (getValueLock())
+                    {
+                        completeBlockIfPossible();
+                    }
+                }
+            };
+
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(completeIfPossible);
+            }
+            catch (RuntimeException exception)
+            {
+                addException(exception);
+                completeIfPossible.run();
+            }
+        }
+
+        /*
+         * Stores an exception that will fault the source's completion.
+         */
+        void addException(Throwable exception)
+        {
+            exception = Common.unwrapCompletionException(exception);
+
+            synchronized (getValueLock())
+            {
+                if (exceptions == null)
+                    exceptions = new ArrayList<>();
+
+                exceptions.add(exception instanceof Exception ? (Exception) exception : new CompletionException(exception));
+            }
+        }
+
+        private boolean getCanceledOrFaulted()
+        {
+            return dataflowBlockOptions.getCancellationToken().isCancellationRequested() || (exceptions != null && decliningPermanently);
+        }
+
+        /*
+         * Completes the block if we're declining permanently and have nothing left to broadcast.
+         * Must be called while holding the outgoing and value locks.
+         */
+        private void completeBlockIfPossible()
+        {
+            if (!completionReserved &&
+                    decliningPermanently &&
+                    !outputProcessingScheduled &&
+                    nextMessageReservedFor == null &&
+                    (messages.isEmpty() || getCanceledOrFaulted()))
+            {
+                completionReserved = true;
+
+                // Get out from under the locks the caller holds before completing.
+                try
+                {
+                    dataflowBlockOptions.getScheduler().schedule(this::completeBlockOncePossible);
+                }
+                catch (RuntimeException exception)
+                {
+                    addException(exception);
+                    completeBlockOncePossible();
+                }
+            }
+        }
+
+        private void completeBlockOncePossible()
+        {
+            List<Exception> exceptions;
+            TargetRegistry<T>.LinkedTargetInfo[] linkedTargets;
+
+            synchronized (getOutgoingLock())
+            {
+                // Drop any targets. Completion is final.
+                linkedTargets = targetRegistry.ClearEntryPoints();
+
+                // Drop all messages.
+                synchronized (getValueLock())
+                {
+                    messages.clear();
+                    exceptions = this.exceptions != null ? new ArrayList<>(this.exceptions) : null;
+                }
+            }
+
+            Common.completeWithExceptions(completionTask, exceptions, dataflowBlockOptions.getCancellationToken());
+
+            // Now that the source has completed, complete the targets that asked for it.
+            targetRegistry.propagateCompletion(linkedTargets);
+        }
+
+        private void offerAsyncIfNecessaryWithValueLock()
+        {
+            synchronized (getValueLock())
+            {
+                offerAsyncIfNecessary(false);
+            }
+        }
+
+        /*
+         * Starts an offering loop if no loop is running and there are messages to broadcast. Messages
+         * become current even with no targets linked, so receivers always see the latest one.
+         * Must be called while holding the value lock.
+         */
+        private void offerAsyncIfNecessary(boolean isReplacementReplica)
+        {
+            if (!outputProcessingScheduled && !messages.isEmpty() && !getCanceledOrFaulted())
+            {
+                outputProcessingScheduled = true;
+
+                try
+                {
+                    dataflowBlockOptions.getScheduler().schedule(this::offerMessagesLoopCore);
+                }
+                catch (RuntimeException exception)
+                {
+                    // Log the exception while the processing state is still set, which keeps the block
+                    // from completing. Then revert the processing state and try to complete the block.
+                    addException(exception);
+                    outputProcessingScheduled = false;
+                    decliningPermanently = true;
+
+                    // Get out from under the currently held locks by re-taking them in a separate task.
+                    Runnable completeIfPossible = () -> {
+                        synchronized (getOutgoingLock())
+                        {
+                            synchronized (getValueLock())
+                            {
+                                completeBlockIfPossible();
+                            }
+                        }
+                    };
+                    dataflowBlockOptions.getScheduler().schedule(completeIfPossible);
+                }
+            }
+        }
+
+        /*
+         * Makes each queued message in turn the current message and offers it to every target, until
+         * the queue is empty, the current message is reserved, or MaxMessagesPerTask messages have been
+         * broadcast.
+         */
+        private void offerMessagesLoopCore()
+        {
+            try
+            {
+                int maxMessagesPerTask = dataflowBlockOptions.getActualMaxMessagesPerTask();
+                for (int messageCounter = 0; messageCounter < maxMessagesPerTask && !getCanceledOrFaulted(); messageCounter++)
+                {
+                    synchronized (getOutgoingLock())
+                    {
+                        // A reserved message can't be overwritten until the reservation is consumed or released.
+                        if (nextMessageReservedFor != null || !messages.tryPoll(polledMessage))
+                            break;
+
+                        currentMessage = polledMessage.value;
+                        currentMessageIsValid = true;
+                        if (metrics != null) metrics.messagesHandedOff(currentMessageId, 1);
+                        currentMessageId++;
+                        polledMessage.clear();
+
+                        offerCurrentMessageToTargets();
+                    }
+
+                    // Notify the owner block that our count has decreased.
+                    if (itemsRemovedAction != null)
+                        itemsRemovedAction.accept(owningSource, 1);
+                }
+            }
+            catch (Exception exception)
+            {
+                // Record the exception and notify the owning block that it should stop accepting new messages.
+                addException(exception);
+                completeAction.accept(owningSource);
+            }
+            finally
+            {
+                synchronized (getOutgoingLock())
+                {
+                    synchronized (getValueLock())
+                    {
+                        // We're no longer processing, so clear the processing flag.
+                        outputProcessingScheduled = false;
+
+                        // Synchronize with addMessage and its read of outputProcessingScheduled.
+                        VarHandle.fullFence();
+
+                        // However, we may have given up early because we hit our own configured
+                        // processing limits rather than because we ran out of work to do. If that's
+                        // the case, make sure we spin up another task to keep going.
+                        if (nextMessageReservedFor == null)
+                            offerAsyncIfNecessary(true);
+
+                        // If, however, we stopped because we ran out of work to do and we
+                        // know we'll never get more, then complete.
+                        completeBlockIfPossible();
+                    }
+                }
+            }
+        }
+
+        /*
+         * Offers the current message to every linked target whose filter it passes, in a single walk of
+         * the registry, whatever each of them does with it. Must be called while holding the outgoing lock.
+         */
+        private void offerCurrentMessageToTargets()
+        {
+            DataflowMessageHeader header = new DataflowMessageHeader(currentMessageId);
+            // The route isn't affected by targets unlinking themselves while they're offered the message.
+            TargetRegistry<T>.Route route = targetRegistry.route(currentMessage);
+            for (int i = 0; i < route.targets.length; i++)
+            {
+                if (route.passes(i, currentMessage))
+                    offerMessageToTarget(header, currentMessage, route.targets[i].Target);
+            }
+        }
+
+        /*
+         * Offers a message to a single target. Without a cloning function the target is handed the
+         * message itself; with one, it has to consume its own clone. Must be called while holding
+         * the outgoing lock.
+         */
+        private void offerMessageToTarget(DataflowMessageHeader header, T message, ITargetBlock<T> target)
+        {
+            DataflowMessageStatus offerResult = target.offerMessage(header, message, owningSource, cloningFunction != null);
+
+            if (offerResult == DataflowMessageStatus.Accepted)
+            {
+                // Only count the message against the link if the target didn't already consume it.
+                if (cloningFunction == null)
+                    targetRegistry.Remove(target, true);
+            }
+            else if (offerResult == DataflowMessageStatus.DecliningPermanently)
+            {
+                targetRegistry.Remove(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/*
+ * Provides a buffer for storing data. Messages are handed out in the order they arrived,
+ * either to linked targets or to receivers, and each message goes to exactly one of them.
+ *
+ * With a BoundedCapacity, offers from linked sources are postponed while the buffer is full
+ * and consumed in arrival order as room frees up.
+ */
+public class BufferBlock<T> implements IPropagatorBlock<T, T>, IReceivableSourceBlock<T> {
+
+    private final SourceCore<T> source;
+
+    /*
+     * The bounding state, or null if the block is unbounded.
+     */
+    private final BoundingStateWithPostponedAndTask<T> boundingState;
+
+    /*
+     * The recorder for the block's metrics, or null if they're disabled.
+     */
+    private final MetricsRecorder metricsRecorder;
+
+    private final DataflowBlockMetrics metrics;
+
+    private boolean targetDecliningPermanently;
+
+    private boolean targetCompletionReserved;
+
+    public BufferBlock()
+    {
+        this(DataflowBlockOptions.Default);
+    }
+
+    public BufferBlock(DataflowBlockOptions options)
+    {
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        options = options.DefaultOrClone();
+
+        // Buffered items count against the bound, so a bounded block releases room as they leave.
+        BiConsumer<ISourceBlock<T>, Integer> onItemsRemoved = null;
+        if (options.getBoundedCapacity() > 0)
+        {
+            onItemsRemoved = (owningSource, count) -> ((BufferBlock<T>) owningSource).onItemsRemoved(count);
+            boundingState = new BoundingStateWithPostponedAndTask<>(options.getBoundedCapacity());
+        }
+        else
+            boundingState = null;
+
+        metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> ((BufferBlock<T>) owningSource).complete(),
+                onItemsRemoved,
+                null,
+                metricsRecorder);
+
+        // Cancellation completes the block, which drops its messages once the source half sees the request.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(), this::complete);
+
+        metrics = new DataflowBlockMetrics(metricsRecorder, null, source::getOutputCount, null,
+                boundingState != null ? this::getBoundedCount : null,
+                boundingState != null ? this::getPostponedCount : null,
+                source::getMessagesOutput);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    private Object getIncomingLock() { return source; }
+
+    public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (source == null && consumeToAccept)
+            throw new IllegalArgumentException("Can't consume from a null source.");
+
+        synchronized (getIncomingLock())
+        {
+            if (targetDecliningPermanently)
+            {
+                completeTargetIfPossible();
+                return DataflowMessageStatus.DecliningPermanently;
+            }
+
+            // We can directly accept the message if we're not bounding, or if we are bounding, there's room
+            // available, and nothing is postponed or being consumed ahead of it.
+            if (boundingState == null || (boundingState.countIsLessThanBound() && boundingState.postponedMessages.size() == 0 && !boundingState.taskForInputProcessing))
+            {
+                if (consumeToAccept)
+                {
+                    TryResult<T> result = source.consumeMessage(messageHeader, this);
+                    if (!result.isSuccess())
+                        return DataflowMessageStatus.NotAvailable;
+                    else
+                        messageValue = result.getResult();
+                }
+
+                this.source.addMessage(messageValue);
+                if (boundingState != null) boundingState.CurrentCount++;
+                return DataflowMessageStatus.Accepted;
+            }
+            else if (source != null)
+            {
+                boundingState.postponedMessages.put(source, messageHeader);
+                if (metricsRecorder != null) metricsRecorder.messagesPostponed.increment();
+                consumeAsyncIfNecessary();
+                return DataflowMessageStatus.Postponed;
+            }
+
+            return DataflowMessageStatus.Declined;
+        }
+    }
+
+    /*
+     * Accepts as many of a run of messages as the buffer has room for under a single acquisition
+     * of the incoming lock. See @see ITargetBlock#offerMessages.
+     */
+    @Override
+    public int offerMessages(DataflowMessageHeader firstMessageHeader, List<T> messageValues, ISourceBlock<T> source)
+    {
+        if (!firstMessageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        synchronized (getIncomingLock())
+        {
+            if (targetDecliningPermanently)
+            {
+                completeTargetIfPossible();
+                return 0;
+            }
+
+            int count = messageValues.size();
+            if (boundingState != null)
+            {
+                // Whatever doesn't fit is offered again individually, and gets postponed then.
+                if (boundingState.postponedMessages.size() != 0 || boundingState.taskForInputProcessing)
+                    return 0;
+
+                count = Math.min(count, boundingState.boundedCapacity - boundingState.CurrentCount);
+                if (count <= 0)
+                    return 0;
+
+                boundingState.CurrentCount += count;
+            }
+
+            for (int i = 0; i < count; i++)
+                this.source.addMessage(messageValues.get(i));
+
+            return count;
+        }
+    }
+
+    public boolean post(T item)
+    {
+        return offerMessage(Common.SingleMessageHeader, item, null, false) == DataflowMessageStatus.Accepted;
+    }
+
+    public void complete()
+    {
+        completeCore(null, false);
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        completeCore(exception, false);
+    }
+
+    private void completeCore(Exception exception, boolean storeExceptionEvenIfAlreadyCompleting)
+    {
+        synchronized (getIncomingLock())
+        {
+            if (exception != null && (!targetDecliningPermanently || storeExceptionEvenIfAlreadyCompleting))
+                source.addException(exception);
+
+            targetDecliningPermanently = true;
+            completeTargetIfPossible();
+        }
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, Predicate<T> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<T> target, DataflowLinkOptions linkOptions, Predicate<T> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<T> TryReceive(Predicate<T> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<T>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super T> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<T> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of items currently stored in the buffer.
+     */
+    public int getCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+
+    /*
+     * Gets the number of messages counted against the bound, for the metrics of a bounded block.
+     */
+    private int getBoundedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.CurrentCount;
+        }
+    }
+
+    /*
+     * Gets the number of postponed messages, for the metrics of a bounded block.
+     */
+    private int getPostponedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.postponedMessages.size();
+        }
+    }
+
+    /*
+     * Notifies the block that items were removed from the source half, freeing room within the bound.
+     */
+    private void onItemsRemoved(int count)
+    {
+        synchronized (getIncomingLock())
+        {
+            boundingState.CurrentCount -= count;
+
+            consumeAsyncIfNecessary();
+            completeTargetIfPossible();
+        }
+    }
+
+    /*
+     * Starts a task to consume postponed messages if there are any, there's room for them, and no
+     * such task is already running. Must be called while holding the incoming lock.
+     */
+    private void consumeAsyncIfNecessary()
+    {
+        if (!targetDecliningPermanently &&
+                !boundingState.taskForInputProcessing &&
+                boundingState.postponedMessages.size() > 0 &&
+                boundingState.countIsLessThanBound())
+        {
+            boundingState.taskForInputProcessing = true;
+
+            try
+            {
+                source.getDataflowBlockOptions().getScheduler().schedule(this::consumeMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // The scheduler refused the work. Revert the processing state and fault the block.
+                boundingState.taskForInputProcessing = false;
+                source.addException(exception);
+                targetDecliningPermanently = true;
+                completeTargetIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes postponed messages into the buffer while there's room for them.
+     */
+    private void consumeMessagesLoopCore()
+    {
+        try
+        {
+            int maxMessagesPerTask = source.getDataflowBlockOptions().getActualMaxMessagesPerTask();
+            for (int i = 0; i < maxMessagesPerTask && consumeAndStoreOneMessageIfAvailable(); i++)
+            {
+            }
+        }
+        catch (Exception exception)
+        {
+            // Consuming from a postponed source failed. Fault the block.
+            completeCore(exception, true);
+        }
+        finally
+        {
+            synchronized (getIncomingLock())
+            {
+                // We're no longer consuming, but there may be more to consume if we stopped
+                // because we hit MaxMessagesPerTask, so start a replacement if necessary.
+                boundingState.taskForInputProcessing = false;
+                consumeAsyncIfNecessary();
+
+                // If we're declining permanently, we may be able to complete now.
+                completeTargetIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes one postponed message into the buffer, if there's room and one is still available.
+     *
+     * @return Whether a message was stored.
+     */
+    private boolean consumeAndStoreOneMessageIfAvailable()
+    {
+        while (true)
+        {
+            ISourceBlock<T> postponedSource;
+            DataflowMessageHeader messageHeader;
+            synchronized (getIncomingLock())
+            {
+                // If we're declining permanently or there's no room, bail.
+                if (targetDecliningPermanently || !boundingState.countIsLessThanBound())
+                    return false;
+
+                QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> postponedMessage = boundingState.polledPostponedMessage;
+                if (!boundingState.postponedMessages.tryPoll(postponedMessage))
+                    return false;
+
+                postponedSource = postponedMessage.key;
+                messageHeader = postponedMessage.value;
+                postponedMessage.clear();
+
+                // Take the room for the message optimistically, so offers can't take it in the meantime.
+                boundingState.CurrentCount++;
+            }
+
+            boolean consumed = false;
+            try
+            {
+                TryResult<T> result = postponedSource.consumeMessage(messageHeader, this);
+                if (result.isSuccess())
+                {
+                    consumed = true;
+
+                    // While this task runs, offers don't add messages directly, so this is the only producer.
+                    source.addMessage(result.getResult());
+                    return true;
+                }
+            }
+            finally
+            {
+                // The source didn't give us the message after all, so give the room back.
+                if (!consumed)
+                {
+                    synchronized (getIncomingLock())
+                    {
+                        boundingState.CurrentCount--;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Completes the source half once the target half is declining permanently and nothing is
+     * being consumed. Must be called while holding the incoming lock.
+     */
+    private void completeTargetIfPossible()
+    {
+        if (targetDecliningPermanently &&
+                !targetCompletionReserved &&
+                (boundingState == null || !boundingState.taskForInputProcessing))
+        {
+            targetCompletionReserved = true;
+
+            // Releasing postponed messages calls back into their sources, so it has to happen outside the
+            // incoming lock. Nothing else touches them once completion is reserved.
+            if (boundingState != null && boundingState.postponedMessages.size() > 0)
+            {
+                try
+                {
+                    source.getDataflowBlockOptions().getScheduler().schedule(this::releasePostponedMessagesAndCompleteSource);
+                }
+                catch (RuntimeException exception)
+                {
+                    source.addException(exception);
+                    source.complete();
+                }
+            }
+            else
+            {
+                source.complete();
+            }
+        }
+    }
+
+    private void releasePostponedMessagesAndCompleteSource()
+    {
+        List<Exception> exceptions = Common.releaseAllPostponedMessages(this, boundingState.postponedMessages, null);
+        if (exceptions != null)
+        {
+            for (Exception exception : exceptions)
+                source.addException(exception);
+        }
+
+        source.complete();
+    }
+}
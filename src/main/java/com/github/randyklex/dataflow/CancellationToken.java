@@ -0,0 +1,66 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * Propagates notification that processing should be canceled. Tokens are obtained from a
+ * @see CancellationTokenSource, except for @see None, which can never be canceled.
+ */
+public final class CancellationToken {
+
+    /*
+     * A token that can never be canceled. The default for every block.
+     */
+    public static final CancellationToken None = new CancellationToken(null);
+
+    private final CancellationTokenSource source;
+
+    CancellationToken(CancellationTokenSource source)
+    {
+        this.source = source;
+    }
+
+    public boolean isCancellationRequested()
+    {
+        return source != null && source.isCancellationRequested();
+    }
+
+    public boolean canBeCanceled() { return source != null; }
+
+    /*
+     * Registers a callback to run when cancellation is requested. If it already has been, the
+     * callback runs right away on the calling thread.
+     *
+     * @return A registration that unregisters the callback when closed.
+     */
+    public Registration register(Runnable callback)
+    {
+        if (callback == null)
+            throw new IllegalArgumentException("callback cannot be null.");
+
+        if (source == null)
+            return new Registration(null, callback);
+
+        return source.register(callback);
+    }
+
+    /*
+     * A callback registered with a token. Closing it after the callback ran has no effect.
+     */
+    public static final class Registration implements AutoCloseable
+    {
+        private final CancellationTokenSource source;
+        final Runnable callback;
+
+        Registration(CancellationTokenSource source, Runnable callback)
+        {
+            this.source = source;
+            this.callback = callback;
+        }
+
+        @Override
+        public void close()
+        {
+            if (source != null)
+                source.unregister(this);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.randyklex.dataflow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Signals to a @see CancellationToken that it should be canceled.
+ *
+ * Handing the token to a block through @see DataflowBlockOptions#setCancellationToken lets the
+ * owner of the source cancel the block: once @see cancel is called the block stops processing,
+ * drops its messages, releases any postponed ones back to their sources, and its completion
+ * future completes as canceled.
+ */
+public final class CancellationTokenSource {
+
+    private final CancellationToken token = new CancellationToken(this);
+
+    private volatile boolean cancellationRequested;
+
+    // The callbacks to run on cancellation. Guarded by this; null once cancellation has been requested.
+    private List<CancellationToken.Registration> registrations = new ArrayList<>();
+
+    public CancellationTokenSource()
+    { }
+
+    public CancellationToken getToken() { return token; }
+
+    public boolean isCancellationRequested() { return cancellationRequested; }
+
+    /*
+     * Requests cancellation, running every registered callback on the calling thread. Calling it
+     * again has no effect.
+     *
+     * If callbacks throw, every callback still runs, and the first exception is rethrown with the
+     * others suppressed.
+     */
+    public void cancel()
+    {
+        List<CancellationToken.Registration> toRun;
+        synchronized (this)
+        {
+            if (cancellationRequested)
+                return;
+
+            cancellationRequested = true;
+            toRun = registrations;
+            registrations = null;
+        }
+
+        RuntimeException failure = null;
+        for (CancellationToken.Registration registration : toRun)
+        {
+            try
+            {
+                registration.callback.run();
+            }
+            catch (RuntimeException exception)
+            {
+                if (failure == null)
+                    failure = exception;
+                else
+                    failure.addSuppressed(exception);
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    CancellationToken.Registration register(Runnable callback)
+    {
+        CancellationToken.Registration registration = new CancellationToken.Registration(this, callback);
+        synchronized (this)
+        {
+            if (!cancellationRequested)
+            {
+                registrations.add(registration);
+                return registration;
+            }
+        }
+
+        // Already canceled, so the callback runs right away.
+        callback.run();
+        return registration;
+    }
+
+    void unregister(CancellationToken.Registration registration)
+    {
+        synchronized (this)
+        {
+            if (registrations != null)
+                registrations.remove(registration);
+        }
+    }
+}
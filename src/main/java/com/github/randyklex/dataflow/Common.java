@@ -1,5 +1,12 @@
 package com.github.randyklex.dataflow;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
 class Common {
 
     // An invalid ID to assign for reordering purposes. This value is chosen to be the last
@@ -19,6 +26,151 @@ class Common {
 
     static final int KEEP_ALIVE_BAN_COUNT = 1000;
 
+    /*
+     * Keeping alive processing tasks: the number of times to spin, each twice as long as the last,
+     * waiting for another message before giving up. Spinning can't help on a single processor,
+     * where the producer can't run while the task spins.
+     */
+    static final int KEEP_ALIVE_SPIN_COUNT = 7;
+
+    static final boolean IS_SINGLE_PROCESSOR = Runtime.getRuntime().availableProcessors() == 1;
+
+    /*
+     * Waiting for a message within a block's IdleWaitNanos: the number of times to spin before yielding
+     * instead, and how often to check the clock while spinning.
+     */
+    static final int IDLE_WAIT_SPIN_COUNT = 1000;
+
+    static final int IDLE_WAIT_CLOCK_CHECK_INTERVAL = 64;
+
+    /*
+     * Bounds on the number of messages a processing task handles between checks for other work queued
+     * on its scheduler, when MaxMessagesPerTask is unbounded.
+     */
+    static final int MIN_MESSAGES_PER_QUANTUM = 16;
+
+    static final int MAX_MESSAGES_PER_QUANTUM = 256;
+
+    /*
+     * Completes a block's completion future. If any exceptions were stored the future is faulted
+     * with the first of them, and the rest are attached to it as suppressed exceptions.
+     */
+    static void completeWithExceptions(CompletableFuture<Void> completion, List<Exception> exceptions)
+    {
+        if (exceptions == null || exceptions.isEmpty())
+        {
+            completion.complete(null);
+            return;
+        }
+
+        Exception fault = exceptions.get(0);
+        for (int i = 1; i < exceptions.size(); i++)
+        {
+            if (exceptions.get(i) != fault)
+                fault.addSuppressed(exceptions.get(i));
+        }
+
+        completion.completeExceptionally(fault);
+    }
+
+    /*
+     * Completes a block's completion future as @see completeWithExceptions does, except that a block
+     * that stopped because of cancellation, and stored no exceptions, completes as canceled.
+     */
+    static void completeWithExceptions(CompletableFuture<Void> completion, List<Exception> exceptions, CancellationToken cancellationToken)
+    {
+        if ((exceptions == null || exceptions.isEmpty()) && cancellationToken.isCancellationRequested())
+            completion.cancel(false);
+        else
+            completeWithExceptions(completion, exceptions);
+    }
+
+    /*
+     * Runs the action that completes a block when the token is canceled, or right away if it already
+     * has been. The registration is dropped once the block completes, however it completes.
+     */
+    static void wireCancellationToComplete(CancellationToken cancellationToken, CompletableFuture<?> completion, Runnable completeAction)
+    {
+        if (cancellationToken.isCancellationRequested())
+        {
+            completeAction.run();
+        }
+        else if (cancellationToken.canBeCanceled())
+        {
+            CancellationToken.Registration registration = cancellationToken.register(completeAction);
+            completion.whenComplete((result, exception) -> registration.close());
+        }
+    }
+
+    /*
+     * Releases every postponed message back to its source, so the source can offer it to other
+     * targets: reserving a message and then releasing the reservation tells the source this target
+     * is done with it. Calls back into the sources, so must be called without holding the target's
+     * incoming lock, once the target is declining permanently and nothing else touches the map.
+     *
+     * @param exceptions The list to add any exceptions the sources throw to, or null.
+     * @return The list of exceptions, which is only created if one was thrown.
+     */
+    static <T> List<Exception> releaseAllPostponedMessages(ITargetBlock<T> target,
+                                                           QueuedMap<ISourceBlock<T>, DataflowMessageHeader> postponedMessages,
+                                                           List<Exception> exceptions)
+    {
+        QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> postponedMessage = new QueuedMap.Entry<>();
+        while (postponedMessages.tryPoll(postponedMessage))
+        {
+            try
+            {
+                if (postponedMessage.key.reserveMessage(postponedMessage.value, target))
+                    postponedMessage.key.releaseReservation(postponedMessage.value, target);
+            }
+            catch (Exception exception)
+            {
+                if (exceptions == null)
+                    exceptions = new ArrayList<>();
+
+                exceptions.add(exception);
+            }
+        }
+
+        return exceptions;
+    }
+
+    /*
+     * Gets the exception a CompletionException or ExecutionException is wrapping, if any.
+     */
+    static Throwable unwrapCompletionException(Throwable exception)
+    {
+        if ((exception instanceof CompletionException || exception instanceof ExecutionException) && exception.getCause() != null)
+            return exception.getCause();
+
+        return exception;
+    }
+
+    /*
+     * Completes a target the way its source completed: a faulted source faults the target with the
+     * same exception, and a source that completed successfully or was canceled completes it.
+     *
+     * @param exception The exception the source's completion future completed with, or null.
+     */
+    static void propagateCompletion(Throwable exception, IDataflowBlock target)
+    {
+        exception = unwrapCompletionException(exception);
+        if (exception != null && !(exception instanceof CancellationException))
+            target.fault(exception instanceof Exception ? (Exception) exception : new CompletionException(exception));
+        else
+            target.complete();
+    }
+
+    /*
+     * Propagates the source's completion to a target once the source completes, through a callback on
+     * its completion future rather than a waiting thread. If the source has already completed, the
+     * target is completed right away on the calling thread.
+     */
+    static void propagateCompletionOnceCompleted(CompletableFuture<?> sourceCompletion, IDataflowBlock target)
+    {
+        sourceCompletion.whenComplete((result, exception) -> propagateCompletion(exception, target));
+    }
+
     static <TOutput> AutoCloseable CreateUnlinker(Object outgoingLock, TargetRegistry<TOutput> targetRegistry, ITargetBlock<TOutput> targetBlock)
     {
         assert outgoingLock != null;
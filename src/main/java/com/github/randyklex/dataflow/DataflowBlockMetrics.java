@@ -0,0 +1,197 @@
+package com.github.randyklex.dataflow;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * A live view of a block's queue depths, throughput and latencies, obtained through the block's getMetrics.
+ *
+ * Queue depths are read from the block as they're asked for. Counters and histograms are only recorded
+ * when the block was created with DataflowBlockOptions.MetricsEnabled set or is traced, and read 0
+ * otherwise. The histograms are sampled, timing one message in every 1024 (or as often as the block's
+ * tracer asks), so their counts are a fraction of the messages processed and a block needs some
+ * traffic before they fill in.
+ *
+ * Values that don't apply to a block, such as the input count of a block with no input queue, read 0.
+ */
+public final class DataflowBlockMetrics implements DataflowBlockMetricsMXBean {
+
+    private static final LatencyHistogram EMPTY_HISTOGRAM = new LatencyHistogram();
+
+    private final MetricsRecorder recorder;
+    private final IntSupplier inputCount;
+    private final IntSupplier outputCount;
+    private final IntSupplier outstandingOperations;
+    private final IntSupplier boundedCount;
+    private final IntSupplier postponedCount;
+    private final LongSupplier messagesOutput;
+
+    private ObjectName registeredName;
+
+    /*
+     * Any of the arguments may be null, for a block that doesn't record metrics or doesn't have the
+     * corresponding queue.
+     */
+    DataflowBlockMetrics(MetricsRecorder recorder,
+                         IntSupplier inputCount,
+                         IntSupplier outputCount,
+                         IntSupplier outstandingOperations,
+                         IntSupplier boundedCount,
+                         IntSupplier postponedCount,
+                         LongSupplier messagesOutput)
+    {
+        this.recorder = recorder;
+        this.inputCount = inputCount;
+        this.outputCount = outputCount;
+        this.outstandingOperations = outstandingOperations;
+        this.boundedCount = boundedCount;
+        this.postponedCount = postponedCount;
+        this.messagesOutput = messagesOutput;
+    }
+
+    /*
+     * Gets whether the block records counters and histograms.
+     */
+    public boolean isEnabled() { return recorder != null; }
+
+    /*
+     * Gets the number of messages waiting in the block's input queue.
+     */
+    public int getInputCount() { return get(inputCount); }
+
+    /*
+     * Gets the number of messages waiting in the block's output queue.
+     */
+    public int getOutputCount() { return get(outputCount); }
+
+    /*
+     * Gets the number of messages being processed by the block's action.
+     */
+    public int getOutstandingOperations() { return get(outstandingOperations); }
+
+    /*
+     * Gets the number of messages counted against the block's bounded capacity.
+     */
+    public int getBoundedCount() { return get(boundedCount); }
+
+    /*
+     * Gets the number of messages currently postponed by the block.
+     */
+    public int getPostponedCount() { return get(postponedCount); }
+
+    /*
+     * Gets the number of messages the block's action has processed.
+     */
+    public long getMessagesProcessed()
+    {
+        return recorder == null ? 0 : recorder.messagesProcessed.sum();
+    }
+
+    /*
+     * Gets the number of messages that have left the block's output queue, offered to a target or received.
+     */
+    public long getMessagesOutput()
+    {
+        return messagesOutput == null ? 0 : messagesOutput.getAsLong();
+    }
+
+    /*
+     * Gets the number of times the block postponed a message offered to it.
+     */
+    public long getMessagesPostponed()
+    {
+        return recorder == null ? 0 : recorder.messagesPostponed.sum();
+    }
+
+    /*
+     * Gets the histogram of how long the block's action took on the sampled messages.
+     */
+    public LatencyHistogram getActionTime()
+    {
+        return recorder == null ? EMPTY_HISTOGRAM : recorder.actionTime;
+    }
+
+    /*
+     * Gets the histogram of how long the sampled messages waited in the block's input queue.
+     */
+    public LatencyHistogram getQueueWait()
+    {
+        return recorder == null ? EMPTY_HISTOGRAM : recorder.queueWait;
+    }
+
+    /*
+     * Gets the histogram of how long the sampled messages waited in the block's output queue before
+     * being accepted by a linked target or received.
+     */
+    public LatencyHistogram getOutputWait()
+    {
+        return recorder == null ? EMPTY_HISTOGRAM : recorder.outputWait;
+    }
+
+    public long getActionTimeSampleCount() { return getActionTime().getCount(); }
+
+    public long getActionTimeP50Nanos() { return getActionTime().getValueAtPercentile(50); }
+
+    public long getActionTimeP99Nanos() { return getActionTime().getValueAtPercentile(99); }
+
+    public long getActionTimeMaxNanos() { return getActionTime().getMaxNanos(); }
+
+    public long getQueueWaitSampleCount() { return getQueueWait().getCount(); }
+
+    public long getQueueWaitP50Nanos() { return getQueueWait().getValueAtPercentile(50); }
+
+    public long getQueueWaitP99Nanos() { return getQueueWait().getValueAtPercentile(99); }
+
+    public long getQueueWaitMaxNanos() { return getQueueWait().getMaxNanos(); }
+
+    public long getOutputWaitSampleCount() { return getOutputWait().getCount(); }
+
+    public long getOutputWaitP50Nanos() { return getOutputWait().getValueAtPercentile(50); }
+
+    public long getOutputWaitP99Nanos() { return getOutputWait().getValueAtPercentile(99); }
+
+    public long getOutputWaitMaxNanos() { return getOutputWait().getMaxNanos(); }
+
+    /*
+     * Registers these metrics with the platform MBean server, under
+     * com.github.randyklex.dataflow:type=DataflowBlock,name="<name>".
+     *
+     * @throws JMException If the name is taken, or the registration otherwise fails.
+     */
+    public synchronized void registerMBean(String name) throws JMException
+    {
+        if (name == null)
+            throw new IllegalArgumentException("name cannot be null.");
+
+        if (registeredName != null)
+            throw new IllegalStateException("The metrics are already registered.");
+
+        ObjectName objectName = new ObjectName("com.github.randyklex.dataflow:type=DataflowBlock,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /*
+     * Unregisters these metrics from the platform MBean server, if they're registered.
+     */
+    public synchronized void unregisterMBean() throws JMException
+    {
+        if (registeredName == null)
+            return;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registeredName))
+            server.unregisterMBean(registeredName);
+
+        registeredName = null;
+    }
+
+    private static int get(IntSupplier supplier)
+    {
+        return supplier == null ? 0 : supplier.getAsInt();
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * The management interface through which @see DataflowBlockMetrics are exported over JMX.
+ *
+ * Durations are in nanoseconds. Counters and histograms read 0 unless the block was created with
+ * DataflowBlockOptions.MetricsEnabled set; queue depths are always reported.
+ */
+public interface DataflowBlockMetricsMXBean {
+
+    boolean isEnabled();
+
+    int getInputCount();
+
+    int getOutputCount();
+
+    int getOutstandingOperations();
+
+    int getBoundedCount();
+
+    int getPostponedCount();
+
+    long getMessagesProcessed();
+
+    long getMessagesOutput();
+
+    long getMessagesPostponed();
+
+    long getActionTimeSampleCount();
+
+    long getActionTimeP50Nanos();
+
+    long getActionTimeP99Nanos();
+
+    long getActionTimeMaxNanos();
+
+    long getQueueWaitSampleCount();
+
+    long getQueueWaitP50Nanos();
+
+    long getQueueWaitP99Nanos();
+
+    long getQueueWaitMaxNanos();
+
+    long getOutputWaitSampleCount();
+
+    long getOutputWaitP50Nanos();
+
+    long getOutputWaitP99Nanos();
+
+    long getOutputWaitMaxNanos();
+}
@@ -26,6 +26,26 @@ public class DataflowBlockOptions {
      */
     private boolean ensureOrdered = true;
 
+    /*
+     * The scheduler used to run the block's processing.
+     */
+    private DataflowScheduler scheduler = DataflowScheduler.Default;
+
+    /*
+     * The token to monitor for cancellation requests.
+     */
+    private CancellationToken cancellationToken = CancellationToken.None;
+
+    /*
+     * Whether the block records the metrics it exposes through getMetrics.
+     */
+    private boolean metricsEnabled = false;
+
+    /*
+     * The tracer the block reports its latencies to, or null if it isn't traced.
+     */
+    private DataflowTracer tracer;
+
     static final DataflowBlockOptions Default = new DataflowBlockOptions();
 
     DataflowBlockOptions DefaultOrClone()
@@ -39,6 +59,10 @@ public class DataflowBlockOptions {
             rval.setBoundedCapacity(this.getBoundedCapacity());
             rval.setNameFormat(this.getNameFormat());
             rval.setEnsureOrdered(this.getEnsureOrdered());
+            rval.setScheduler(this.getScheduler());
+            rval.setCancellationToken(this.getCancellationToken());
+            rval.setMetricsEnabled(this.getMetricsEnabled());
+            rval.setTracer(this.getTracer());
             return rval;
         }
     }
@@ -47,6 +71,74 @@ public class DataflowBlockOptions {
     public DataflowBlockOptions()
     { }
 
+    /*
+     * Gets the scheduler used to run the processing performed by the block.
+     */
+    public DataflowScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    public void setScheduler(DataflowScheduler value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null.");
+
+        scheduler = value;
+    }
+
+    /*
+     * Gets the token monitored for cancellation requests. Once it's canceled the block stops
+     * processing, drops its messages and releases any postponed ones, and its completion future
+     * completes as canceled.
+     */
+    public CancellationToken getCancellationToken()
+    {
+        return cancellationToken;
+    }
+
+    public void setCancellationToken(CancellationToken value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null.");
+
+        cancellationToken = value;
+    }
+
+    /*
+     * Gets whether the block records metrics: how many messages it processed and postponed, and sampled
+     * histograms of how long messages waited in its queue and how long its action took on them. Without
+     * them a block's metrics report only its queue depths.
+     */
+    public boolean getMetricsEnabled()
+    {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean value)
+    {
+        metricsEnabled = value;
+    }
+
+    /*
+     * Gets the tracer the block reports to as a stage of a pipeline, or null if it isn't traced. A traced
+     * block records the same metrics as one with MetricsEnabled set, sampled as often as the tracer asks.
+     */
+    public DataflowTracer getTracer()
+    {
+        return tracer;
+    }
+
+    public void setTracer(DataflowTracer value)
+    {
+        tracer = value;
+    }
+
+    /*
+     * Gets the maximum number of messages a processing task may handle before giving up its thread.
+     * When unbounded, an ActionBlock's or TransformBlock's task instead gives up its thread whenever
+     * it finds other work waiting on the scheduler, checking less often the longer it goes uncontended.
+     */
     public int getMaxMessagesPerTask()
     {
         return maxMessagesPerTask;
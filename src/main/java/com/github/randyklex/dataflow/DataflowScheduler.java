@@ -0,0 +1,279 @@
+package com.github.randyklex.dataflow;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Schedules the processing work of dataflow blocks.
+ *
+ * This is the counterpart of the .NET TaskScheduler. Blocks never create threads of their own;
+ * every processing loop is handed to the scheduler configured on the block's DataflowBlockOptions.
+ * Unless told otherwise, all blocks share the work-stealing pool behind @see Default.
+ */
+public abstract class DataflowScheduler {
+
+    /*
+     * The scheduler used by blocks that aren't configured with one. It is backed by a single
+     * work-stealing pool that is shared by every block in the process.
+     */
+    public static final DataflowScheduler Default = new ForkJoinPoolScheduler(createDefaultPool());
+
+    /*
+     * Queues a unit of block processing work for execution.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the work can't be accepted.
+     */
+    public abstract void schedule(Runnable task);
+
+    /*
+     * Gets the maximum number of tasks this scheduler is able to run concurrently.
+     */
+    public int getMaximumConcurrencyLevel()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    /*
+     * Gets whether work is queued on this scheduler waiting for a thread to run it.
+     *
+     * A block whose MaxMessagesPerTask is unbounded asks this every so often while it has messages,
+     * and gives up its thread when the answer is yes, so that it doesn't keep other blocks on the same
+     * scheduler waiting. The answer only needs to be a hint. Schedulers that can't tell return false,
+     * which leaves blocks processing until their queues are empty.
+     */
+    public boolean hasQueuedWork()
+    {
+        return false;
+    }
+
+    /*
+     * Creates a scheduler that runs block processing on the provided fork/join pool.
+     */
+    public static DataflowScheduler fromForkJoinPool(ForkJoinPool pool)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool cannot be null.");
+
+        return new ForkJoinPoolScheduler(pool);
+    }
+
+    /*
+     * Creates a scheduler that runs block processing on the provided executor.
+     */
+    public static DataflowScheduler fromExecutor(Executor executor)
+    {
+        if (executor == null)
+            throw new IllegalArgumentException("executor cannot be null.");
+
+        return new ExecutorScheduler(executor, Integer.MAX_VALUE);
+    }
+
+    /*
+     * Creates a scheduler backed by its own pool of a fixed number of daemon threads.
+     * Closing the returned scheduler shuts the pool down.
+     */
+    public static FixedThreadPoolScheduler newFixedThreadPool(int numberOfThreads)
+    {
+        if (numberOfThreads < 1)
+            throw new IllegalArgumentException("numberOfThreads must be greater than 0.");
+
+        return new FixedThreadPoolScheduler(numberOfThreads);
+    }
+
+    /*
+     * Gets a scheduler that runs every unit of block processing on a new virtual thread.
+     *
+     * Intended for blocks whose actions block on I/O: a processing loop parked on a blocking call
+     * releases its carrier thread, so MaxDegreeOfParallelism can be raised into the thousands
+     * without a platform thread per loop.
+     */
+    public static DataflowScheduler virtualThreadPerTask()
+    {
+        return VirtualThreadScheduler.Instance;
+    }
+
+    /*
+     * Gets a scheduler that runs block processing synchronously on the thread that requested it.
+     *
+     * Work scheduled while the current thread is already running scheduled work is deferred
+     * until that work returns, so a block re-scheduling itself doesn't grow the stack.
+     */
+    public static DataflowScheduler currentThread()
+    {
+        return CurrentThreadScheduler.Instance;
+    }
+
+    private static ForkJoinPool createDefaultPool()
+    {
+        // asyncMode gives FIFO scheduling of tasks that are never joined, which is what block processing loops are.
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                null,
+                true);
+    }
+
+    static final class ForkJoinPoolScheduler extends DataflowScheduler
+    {
+        private final ForkJoinPool pool;
+
+        ForkJoinPoolScheduler(ForkJoinPool pool)
+        {
+            this.pool = pool;
+        }
+
+        @Override
+        public void schedule(Runnable task)
+        {
+            pool.execute(task);
+        }
+
+        @Override
+        public boolean hasQueuedWork()
+        {
+            return pool.hasQueuedSubmissions() || pool.getQueuedTaskCount() > 0;
+        }
+
+        @Override
+        public int getMaximumConcurrencyLevel()
+        {
+            return pool.getParallelism();
+        }
+    }
+
+    static class ExecutorScheduler extends DataflowScheduler
+    {
+        private final Executor executor;
+        private final int maximumConcurrencyLevel;
+
+        ExecutorScheduler(Executor executor, int maximumConcurrencyLevel)
+        {
+            this.executor = executor;
+            this.maximumConcurrencyLevel = maximumConcurrencyLevel;
+        }
+
+        @Override
+        public void schedule(Runnable task)
+        {
+            executor.execute(task);
+        }
+
+        @Override
+        public boolean hasQueuedWork()
+        {
+            return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+        }
+
+        @Override
+        public int getMaximumConcurrencyLevel()
+        {
+            return maximumConcurrencyLevel;
+        }
+    }
+
+    public static final class FixedThreadPoolScheduler extends ExecutorScheduler implements AutoCloseable
+    {
+        private final ExecutorService executorService;
+
+        private FixedThreadPoolScheduler(int numberOfThreads)
+        {
+            this(Executors.newFixedThreadPool(numberOfThreads, new DaemonThreadFactory()), numberOfThreads);
+        }
+
+        private FixedThreadPoolScheduler(ExecutorService executorService, int numberOfThreads)
+        {
+            super(executorService, numberOfThreads);
+            this.executorService = executorService;
+        }
+
+        /*
+         * Shuts down the underlying pool. Work that was already scheduled is still run.
+         */
+        @Override
+        public void close()
+        {
+            executorService.shutdown();
+        }
+    }
+
+    static final class VirtualThreadScheduler extends DataflowScheduler
+    {
+        static final VirtualThreadScheduler Instance = new VirtualThreadScheduler();
+
+        private final ThreadFactory threadFactory = Thread.ofVirtual().name("dataflow-virtual-", 1).factory();
+
+        @Override
+        public void schedule(Runnable task)
+        {
+            threadFactory.newThread(task).start();
+        }
+    }
+
+    static final class CurrentThreadScheduler extends DataflowScheduler
+    {
+        static final CurrentThreadScheduler Instance = new CurrentThreadScheduler();
+
+        // Work deferred by the thread while it is already running scheduled work. Null when the thread isn't.
+        private final ThreadLocal<ArrayDeque<Runnable>> deferredTasks = new ThreadLocal<>();
+
+        @Override
+        public void schedule(Runnable task)
+        {
+            ArrayDeque<Runnable> deferred = deferredTasks.get();
+            if (deferred != null)
+            {
+                deferred.add(task);
+                return;
+            }
+
+            deferred = new ArrayDeque<>();
+            deferredTasks.set(deferred);
+            try
+            {
+                do
+                {
+                    task.run();
+                    task = deferred.poll();
+                }
+                while (task != null);
+            }
+            finally
+            {
+                deferredTasks.remove();
+            }
+        }
+
+        @Override
+        public boolean hasQueuedWork()
+        {
+            ArrayDeque<Runnable> deferred = deferredTasks.get();
+            return deferred != null && !deferred.isEmpty();
+        }
+
+        @Override
+        public int getMaximumConcurrencyLevel()
+        {
+            return 1;
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix = "dataflow-pool-" + poolNumber.getAndIncrement() + "-thread-";
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
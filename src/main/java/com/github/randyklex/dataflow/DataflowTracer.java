@@ -0,0 +1,163 @@
+package com.github.randyklex.dataflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Traces the latency of messages through a pipeline, broken down by stage.
+ *
+ * Every block created with the tracer set in its options becomes a stage, named by the options'
+ * NameFormat, in the order the blocks were created. A stage times the messages it samples at each
+ * step of their way through it:
+ *   - queue wait, from being accepted by the block to its action starting on them,
+ *   - action time, from the action starting to it returning,
+ *   - output wait, from being queued at the block's output to being accepted by a linked target or
+ *     received. This is the hand-off across the block's outgoing links.
+ * Blocks without an action, such as a BufferBlock, only have an output wait; an ActionBlock has no
+ * output.
+ *
+ * Messages are sampled by their position in each block's input and output, so tracing one message in
+ * every sampleInterval costs little more than the null check of an untraced block. Samples aren't
+ * correlated across blocks: a transform's output is a different message from its input. Comparing the
+ * stages' percentiles shows where a pipeline's latency comes from, which @see getSlowestStage does for
+ * the 99th percentile.
+ *
+ * A tracer holds on to its stages, and through them the blocks, for as long as it's reachable.
+ */
+public final class DataflowTracer {
+
+    private final int sampleInterval;
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+    /*
+     * Creates a tracer that samples as often as a block with metrics enabled does, one message in 1024.
+     */
+    public DataflowTracer()
+    {
+        this(MetricsRecorder.DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /*
+     * @param sampleInterval One message in this many is timed at each step. Must be a power of two;
+     * 1 times every message.
+     */
+    public DataflowTracer(int sampleInterval)
+    {
+        if (sampleInterval < 1 || Integer.bitCount(sampleInterval) != 1)
+            throw new IllegalArgumentException("sampleInterval must be a positive power of two.");
+
+        this.sampleInterval = sampleInterval;
+    }
+
+    public int getSampleInterval() { return sampleInterval; }
+
+    /*
+     * Registers a block as the next stage. Called by each traced block as it's constructed.
+     */
+    void blockCreated(IDataflowBlock block, DataflowBlockOptions options, DataflowBlockMetrics metrics)
+    {
+        synchronized (stages)
+        {
+            String name = options.getNameFormat()
+                    .replace("{0}", block.getClass().getSimpleName())
+                    .replace("{1}", Integer.toString(stages.size() + 1));
+            stages.add(new Stage(name, metrics));
+        }
+    }
+
+    /*
+     * Gets the stages traced so far, in the order their blocks were created.
+     */
+    public List<Stage> getStages()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(stages));
+    }
+
+    /*
+     * Gets the stage whose queue wait, action time and output wait add up to the most at the 99th
+     * percentile, or null if no stage has recorded a sample.
+     */
+    public Stage getSlowestStage()
+    {
+        Stage slowest = null;
+        for (Stage stage : stages)
+        {
+            if (stage.getP99Nanos() > 0 && (slowest == null || stage.getP99Nanos() > slowest.getP99Nanos()))
+                slowest = stage;
+        }
+
+        return slowest;
+    }
+
+    /*
+     * Formats the stages' latency breakdowns as a table, one row per stage, in microseconds.
+     */
+    public String report()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-32s %10s %21s %21s %21s%n",
+                "stage", "samples", "queue p50/p99", "action p50/p99", "output p50/p99"));
+
+        for (Stage stage : stages)
+        {
+            DataflowBlockMetrics metrics = stage.getMetrics();
+            long samples = Math.max(metrics.getQueueWait().getCount(), metrics.getOutputWait().getCount());
+            report.append(String.format(Locale.ROOT, "%-32s %10d %21s %21s %21s%n",
+                    stage.getName(), samples,
+                    formatPercentiles(metrics.getQueueWait()),
+                    formatPercentiles(metrics.getActionTime()),
+                    formatPercentiles(metrics.getOutputWait())));
+        }
+
+        return report.toString();
+    }
+
+    private static String formatPercentiles(LatencyHistogram histogram)
+    {
+        if (histogram.getCount() == 0)
+            return "-";
+
+        return String.format(Locale.ROOT, "%.1f/%.1f",
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0);
+    }
+
+    /*
+     * One traced block.
+     */
+    public static final class Stage
+    {
+        private final String name;
+        private final DataflowBlockMetrics metrics;
+
+        Stage(String name, DataflowBlockMetrics metrics)
+        {
+            this.name = name;
+            this.metrics = metrics;
+        }
+
+        public String getName() { return name; }
+
+        /*
+         * Gets the block's metrics, whose histograms hold the stage's samples.
+         */
+        public DataflowBlockMetrics getMetrics() { return metrics; }
+
+        /*
+         * Gets the sum of the stage's queue wait, action time and output wait at the 99th percentile.
+         */
+        public long getP99Nanos()
+        {
+            return metrics.getQueueWait().getValueAtPercentile(99)
+                    + metrics.getActionTime().getValueAtPercentile(99)
+                    + metrics.getOutputWait().getValueAtPercentile(99);
+        }
+
+        @Override
+        public String toString() { return name; }
+    }
+}
@@ -14,6 +14,18 @@ public class ExecutionDataflowBlockOptions extends DataflowBlockOptions {
      */
     private boolean singleProducerConstrained = false;
 
+    /*
+     * How long an idle single-producer consumer waits for another message before giving up its thread.
+     */
+    private long idleWaitNanos = 0;
+
+    /*
+     * Whether a single-producer block processes its messages on a thread of its own.
+     */
+    private boolean dedicatedThread = false;
+
+    private WaitStrategy waitStrategy = WaitStrategy.Blocking;
+
     static final ExecutionDataflowBlockOptions Default = new ExecutionDataflowBlockOptions();
 
     ExecutionDataflowBlockOptions DefaultOrClone()
@@ -27,8 +39,15 @@ public class ExecutionDataflowBlockOptions extends DataflowBlockOptions {
             rval.setBoundedCapacity(this.getBoundedCapacity());
             rval.setNameFormat(this.getNameFormat());
             rval.setEnsureOrdered(this.getEnsureOrdered());
+            rval.setScheduler(this.getScheduler());
+            rval.setCancellationToken(this.getCancellationToken());
+            rval.setMetricsEnabled(this.getMetricsEnabled());
+            rval.setTracer(this.getTracer());
             rval.setMaxDegreeOfParallelism(this.getMaxDegreeOfParallelism());
             rval.setSingleProducerConstrained(this.getSingleProducerConstrained());
+            rval.setIdleWaitNanos(this.getIdleWaitNanos());
+            rval.setDedicatedThread(this.getDedicatedThread());
+            rval.setWaitStrategy(this.getWaitStrategy());
             return rval;
         }
     }
@@ -53,6 +72,11 @@ public class ExecutionDataflowBlockOptions extends DataflowBlockOptions {
 
     /*
      * Gets whether code using the dataflow block is constrained to one producer at a time.
+     *
+     * An ActionBlock with a synchronous action that is SingleProducerConstrained, has a
+     * MaxDegreeOfParallelism of 1, and is unbounded uses a cheaper single-producer queue. Canceling its
+     * CancellationToken drops the messages it hasn't processed, as for any other block. Otherwise the
+     * option is ignored.
      */
     public boolean getSingleProducerConstrained()
     {
@@ -64,6 +88,62 @@ public class ExecutionDataflowBlockOptions extends DataflowBlockOptions {
         singleProducerConstrained = value;
     }
 
+    /*
+     * Gets how long, in nanoseconds, the processing task of a block that is SingleProducerConstrained
+     * waits for another message once its queue is empty, before giving up its thread.
+     *
+     * The task spins and then yields while it waits, so it costs a processor for the whole wait. In
+     * exchange, a message posted within the wait is picked up by the running task, rather than by a
+     * new one that has to be scheduled first. Zero, the default, gives up the thread right away.
+     */
+    public long getIdleWaitNanos()
+    {
+        return idleWaitNanos;
+    }
+
+    public void setIdleWaitNanos(long value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("value must be >= 0.");
+
+        idleWaitNanos = value;
+    }
+
+    /*
+     * Gets whether the block processes its messages on a long-lived thread of its own, rather than
+     * scheduling processing tasks onto its Scheduler. Posting to the block never hands work to a pool, so
+     * there's no scheduling jitter, and messages are always processed on the same thread.
+     *
+     * Only an ActionBlock with a synchronous action that is SingleProducerConstrained, has a
+     * MaxDegreeOfParallelism of 1, and is unbounded can have a dedicated thread.
+     * The thread is a daemon, and exits once the block completes or faults.
+     */
+    public boolean getDedicatedThread()
+    {
+        return dedicatedThread;
+    }
+
+    public void setDedicatedThread(boolean value)
+    {
+        dedicatedThread = value;
+    }
+
+    /*
+     * Gets how the block's dedicated thread waits while its queue is empty. Ignored unless DedicatedThread is set.
+     */
+    public WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException("value cannot be null.");
+
+        waitStrategy = value;
+    }
+
     /*
      * Gets a MaxDegreeOfParallelism value that may be used for comparison purposes.
      */
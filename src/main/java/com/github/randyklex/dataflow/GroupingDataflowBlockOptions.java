@@ -1,5 +1,7 @@
 package com.github.randyklex.dataflow;
 
+import java.time.Duration;
+
 public class GroupingDataflowBlockOptions extends DataflowBlockOptions {
 
     static final GroupingDataflowBlockOptions Default = new GroupingDataflowBlockOptions();
@@ -14,6 +16,11 @@ public class GroupingDataflowBlockOptions extends DataflowBlockOptions {
      */
     private long maxNumberOfGroups = Unbounded;
 
+    /*
+     * How long a partial batch may wait for more messages before it's output anyway. Null if it may wait indefinitely.
+     */
+    private Duration maxLinger;
+
     public GroupingDataflowBlockOptions()
     { }
 
@@ -23,14 +30,17 @@ public class GroupingDataflowBlockOptions extends DataflowBlockOptions {
         else {
             GroupingDataflowBlockOptions rval = new GroupingDataflowBlockOptions();
 
-            /* TODO: Have to add the TaskScheduler and CancellationToken stuff */
-
             rval.setMaxMessagesPerTask(this.getMaxMessagesPerTask());
             rval.setBoundedCapacity(this.getBoundedCapacity());
             rval.setNameFormat(this.getNameFormat());
             rval.setEnsureOrdered(this.getEnsureOrdered());
+            rval.setScheduler(this.getScheduler());
+            rval.setCancellationToken(this.getCancellationToken());
+            rval.setMetricsEnabled(this.getMetricsEnabled());
+            rval.setTracer(this.getTracer());
             rval.setGreedy(this.getGreedy());
             rval.setMaxNumberOfGroups(this.getMaxNumberOfGroups());
+            rval.maxLinger = this.maxLinger;
 
             return rval;
         }
@@ -65,6 +75,27 @@ public class GroupingDataflowBlockOptions extends DataflowBlockOptions {
         maxNumberOfGroups = value;
     }
 
+    /*
+     * Gets how long a partial batch may wait for more messages before a BatchBlock outputs it anyway,
+     * as if @see BatchBlock#triggerBatch had been called. Null, the default, means a partial batch waits
+     * until the batch fills up, the block completes or a batch is triggered.
+     */
+    public Duration getMaxLinger()
+    {
+        return maxLinger;
+    }
+
+    public void setMaxLinger(Duration value)
+    {
+        if (this == Default)
+            throw new IllegalStateException("Default instance is supposed to be immutable.");
+
+        if (value != null && (value.isNegative() || value.isZero()))
+            throw new IllegalArgumentException("value must be positive or null.");
+
+        maxLinger = value;
+    }
+
     /*
      * Gets a MaxNumberOfGroups value that may be used for comparison purposes.
      * This method will always return a positive value.
@@ -0,0 +1,22 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * A queue of messages and their IDs, stored side by side rather than wrapped together, and
+ * polled into a caller-supplied MessageWithId rather than returned in a new TryResult.
+ */
+interface IMessageQueue<T> {
+    void add(T item, long id);
+
+    /*
+     * Moves the message at the head of the queue into destination.
+     *
+     * @return true if there was a message, false if the queue was empty.
+     */
+    boolean tryPoll(MessageWithId<T> destination);
+
+    boolean isEmpty();
+
+    int size();
+
+    int sizeSafe(Object syncObj);
+}
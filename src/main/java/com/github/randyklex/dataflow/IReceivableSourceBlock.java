@@ -1,5 +1,6 @@
 package com.github.randyklex.dataflow;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.function.Predicate;
 
@@ -8,4 +9,12 @@ public interface IReceivableSourceBlock<TOutput> extends ISourceBlock<TOutput> {
     TryResult<TOutput> TryReceive(Predicate<TOutput> filter);
 
     TryResult<List<TOutput>> TryReceiveAll();
+
+    /*
+     * Receives up to maxElements of the messages currently available into destination, in order,
+     * under a single acquisition of the source's locks and without allocating per message.
+     *
+     * @return The number of messages received, which is zero if none were available.
+     */
+    int drainTo(Collection<? super TOutput> destination, int maxElements);
 }
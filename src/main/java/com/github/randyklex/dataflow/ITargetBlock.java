@@ -1,9 +1,38 @@
 package com.github.randyklex.dataflow;
 
+import java.util.List;
+
 public interface ITargetBlock<TInput> extends IDataflowBlock {
 
     DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader,
                                        TInput messageValue,
                                        ISourceBlock<TInput> source,
                                        boolean consumeToAccept);
+
+    /*
+     * Offers a run of messages with consecutive IDs to the target in a single call.
+     *
+     * The target accepts a prefix of the messages and returns its length. Messages past that prefix
+     * remain owned by the source, which offers them again one at a time; the target keeps no record of
+     * them. The list is only valid for the duration of the call.
+     *
+     * Targets that can take a whole run under one lock acquisition should override this; the default
+     * offers each message in turn and stops at the first one that isn't accepted.
+     *
+     * @param firstMessageHeader The header of the first message. Message i has ID firstMessageHeader.getId() + i.
+     * @return The number of messages accepted.
+     */
+    default int offerMessages(DataflowMessageHeader firstMessageHeader,
+                              List<TInput> messageValues,
+                              ISourceBlock<TInput> source)
+    {
+        long firstId = firstMessageHeader.getId();
+        for (int i = 0; i < messageValues.size(); i++)
+        {
+            if (offerMessage(new DataflowMessageHeader(firstId + i), messageValues.get(i), source, false) != DataflowMessageStatus.Accepted)
+                return i;
+        }
+
+        return messageValues.size();
+    }
 }
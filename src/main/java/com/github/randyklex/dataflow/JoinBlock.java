@@ -0,0 +1,179 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/*
+ * Provides a dataflow block that joins across two sources, outputting a Tuple of one message
+ * received by each of its targets.
+ *
+ * In greedy mode, the default, each target accepts every message offered to it and a tuple is output
+ * as soon as both have one. In non-greedy mode, targets postpone their offers; once both have one, the
+ * block reserves both messages and consumes them only if both reservations succeed, so neither source
+ * gives up a message unless the join can be formed.
+ *
+ * For a join across three sources, see @see JoinBlock3.
+ */
+public final class JoinBlock<T1, T2> implements IReceivableSourceBlock<Tuple<T1, T2>> {
+
+    private final SourceCore<Tuple<T1, T2>> source;
+
+    private final JoinBlockTargetSharedResources sharedResources;
+
+    private final DataflowBlockMetrics metrics;
+
+    private final JoinBlockTarget<T1> target1;
+
+    private final JoinBlockTarget<T2> target2;
+
+    public JoinBlock()
+    {
+        this(GroupingDataflowBlockOptions.Default);
+    }
+
+    public JoinBlock(GroupingDataflowBlockOptions options)
+    {
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        options = options.DefaultOrClone();
+
+        // Joins count against the bound, so a bounded block releases room as they leave the source half.
+        BiConsumer<ISourceBlock<Tuple<T1, T2>>, Integer> onItemsRemoved = null;
+        if (options.getBoundedCapacity() > 0)
+            onItemsRemoved = (owningSource, count) -> ((JoinBlock<T1, T2>) owningSource).sharedResources.onItemsRemoved(count);
+
+        MetricsRecorder metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> ((JoinBlock<T1, T2>) owningSource).complete(),
+                onItemsRemoved,
+                null,
+                metricsRecorder);
+
+        JoinBlockTarget<?>[] targets = new JoinBlockTarget<?>[2];
+        sharedResources = new JoinBlockTargetSharedResources(targets, options,
+                this::outputJoin,
+                source::addException,
+                source::complete,
+                source.getCompletion(),
+                metricsRecorder);
+
+        targets[0] = target1 = new JoinBlockTarget<>(sharedResources);
+        targets[1] = target2 = new JoinBlockTarget<>(sharedResources);
+
+        // Cancellation completes every target, which drops the messages that haven't been joined.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(), sharedResources::completeEachTarget);
+
+        metrics = sharedResources.createMetrics(source);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    /*
+     * Takes a message from each target and outputs them as a join. Called under the incoming lock,
+     * which keeps the source half's producer single-threaded.
+     */
+    private void outputJoin()
+    {
+        source.addMessage(new Tuple<>(target1.getOneMessage(), target2.getOneMessage()));
+    }
+
+    /*
+     * Gets the target that supplies the first item of each join.
+     */
+    public ITargetBlock<T1> getTarget1() { return target1; }
+
+    /*
+     * Gets the target that supplies the second item of each join.
+     */
+    public ITargetBlock<T2> getTarget2() { return target2; }
+
+    public void complete()
+    {
+        sharedResources.completeEachTarget();
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        sharedResources.fault(exception);
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<T1, T2>> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<T1, T2>> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<T1, T2>> target, Predicate<Tuple<T1, T2>> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple<T1, T2>> target, DataflowLinkOptions linkOptions, Predicate<Tuple<T1, T2>> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<Tuple<T1, T2>> TryReceive(Predicate<Tuple<T1, T2>> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<Tuple<T1, T2>>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super Tuple<T1, T2>> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<Tuple<T1, T2>> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<T1, T2>> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<T1, T2>> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<Tuple<T1, T2>> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of joins available to be received from this block.
+     */
+    public int getOutputCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+}
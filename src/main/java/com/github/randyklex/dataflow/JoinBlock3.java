@@ -0,0 +1,181 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/*
+ * Provides a dataflow block that joins across three sources, outputting a Tuple3 of one message
+ * received by each of its targets. Java can't overload a class name by its number of type parameters,
+ * so this is the three-way counterpart of @see JoinBlock, and behaves the same way.
+ */
+public final class JoinBlock3<T1, T2, T3> implements IReceivableSourceBlock<Tuple3<T1, T2, T3>> {
+
+    private final SourceCore<Tuple3<T1, T2, T3>> source;
+
+    private final JoinBlockTargetSharedResources sharedResources;
+
+    private final DataflowBlockMetrics metrics;
+
+    private final JoinBlockTarget<T1> target1;
+
+    private final JoinBlockTarget<T2> target2;
+
+    private final JoinBlockTarget<T3> target3;
+
+    public JoinBlock3()
+    {
+        this(GroupingDataflowBlockOptions.Default);
+    }
+
+    public JoinBlock3(GroupingDataflowBlockOptions options)
+    {
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        options = options.DefaultOrClone();
+
+        // Joins count against the bound, so a bounded block releases room as they leave the source half.
+        BiConsumer<ISourceBlock<Tuple3<T1, T2, T3>>, Integer> onItemsRemoved = null;
+        if (options.getBoundedCapacity() > 0)
+            onItemsRemoved = (owningSource, count) -> ((JoinBlock3<T1, T2, T3>) owningSource).sharedResources.onItemsRemoved(count);
+
+        MetricsRecorder metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> ((JoinBlock3<T1, T2, T3>) owningSource).complete(),
+                onItemsRemoved,
+                null,
+                metricsRecorder);
+
+        JoinBlockTarget<?>[] targets = new JoinBlockTarget<?>[3];
+        sharedResources = new JoinBlockTargetSharedResources(targets, options,
+                this::outputJoin,
+                source::addException,
+                source::complete,
+                source.getCompletion(),
+                metricsRecorder);
+
+        targets[0] = target1 = new JoinBlockTarget<>(sharedResources);
+        targets[1] = target2 = new JoinBlockTarget<>(sharedResources);
+        targets[2] = target3 = new JoinBlockTarget<>(sharedResources);
+
+        // Cancellation completes every target, which drops the messages that haven't been joined.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(), sharedResources::completeEachTarget);
+
+        metrics = sharedResources.createMetrics(source);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    /*
+     * Takes a message from each target and outputs them as a join. Called under the incoming lock,
+     * which keeps the source half's producer single-threaded.
+     */
+    private void outputJoin()
+    {
+        source.addMessage(new Tuple3<>(target1.getOneMessage(), target2.getOneMessage(), target3.getOneMessage()));
+    }
+
+    /*
+     * Gets the target that supplies the first item of each join.
+     */
+    public ITargetBlock<T1> getTarget1() { return target1; }
+
+    /*
+     * Gets the target that supplies the second item of each join.
+     */
+    public ITargetBlock<T2> getTarget2() { return target2; }
+
+    /*
+     * Gets the target that supplies the third item of each join.
+     */
+    public ITargetBlock<T3> getTarget3() { return target3; }
+
+    public void complete()
+    {
+        sharedResources.completeEachTarget();
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        sharedResources.fault(exception);
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple3<T1, T2, T3>> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple3<T1, T2, T3>> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple3<T1, T2, T3>> target, Predicate<Tuple3<T1, T2, T3>> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<Tuple3<T1, T2, T3>> target, DataflowLinkOptions linkOptions, Predicate<Tuple3<T1, T2, T3>> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<Tuple3<T1, T2, T3>> TryReceive(Predicate<Tuple3<T1, T2, T3>> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<Tuple3<T1, T2, T3>>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super Tuple3<T1, T2, T3>> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<Tuple3<T1, T2, T3>> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple3<T1, T2, T3>> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<Tuple3<T1, T2, T3>> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<Tuple3<T1, T2, T3>> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of joins available to be received from this block.
+     */
+    public int getOutputCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+}
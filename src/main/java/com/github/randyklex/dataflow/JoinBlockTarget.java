@@ -0,0 +1,352 @@
+package com.github.randyklex.dataflow;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * One of the targets of a JoinBlock. Every target of a join takes the incoming lock of the
+ * shared resources, which also decide when a join can be formed.
+ */
+final class JoinBlockTarget<T> implements ITargetBlock<T> {
+
+    private final JoinBlockTargetSharedResources sharedResources;
+
+    /*
+     * The messages accepted in greedy mode, or null in non-greedy mode.
+     * Only used while holding the incoming lock.
+     */
+    private final SingleProducerSingleConsumerQueue<T> messages;
+
+    // Holds the message polled from messages. Only used under the incoming lock.
+    private final MessageWithId<T> polledMessage = new MessageWithId<>();
+
+    /*
+     * The offers postponed in non-greedy mode or while a bounded block is full, or null if the
+     * block is greedy and unbounded, in which case nothing is ever postponed.
+     */
+    private final QueuedMap<ISourceBlock<T>, DataflowMessageHeader> postponedMessages;
+
+    // Holds the entry polled from postponedMessages. Only used under the incoming lock.
+    private final QueuedMap.Entry<ISourceBlock<T>, DataflowMessageHeader> polledPostponedMessage;
+
+    // The message a non-greedy join is being attempted with. Only used by the processing task.
+    private ISourceBlock<T> reservedSource;
+    private DataflowMessageHeader reservedHeader;
+
+    // The message consumed for the next non-greedy join.
+    private T consumedMessage;
+    private boolean hasConsumedMessage;
+
+    // The number of postponed messages being consumed by a greedy bounded block.
+    private int messagesInTransfer;
+
+    private boolean decliningPermanently;
+
+    JoinBlockTarget(JoinBlockTargetSharedResources sharedResources)
+    {
+        this.sharedResources = sharedResources;
+
+        GroupingDataflowBlockOptions options = sharedResources.dataflowBlockOptions;
+        messages = options.getGreedy() ? new SingleProducerSingleConsumerQueue<>() : null;
+
+        if (!options.getGreedy() || sharedResources.boundingState != null)
+        {
+            postponedMessages = new QueuedMap<>();
+            polledPostponedMessage = new QueuedMap.Entry<>();
+        }
+        else
+        {
+            postponedMessages = null;
+            polledPostponedMessage = null;
+        }
+    }
+
+    public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, T messageValue, ISourceBlock<T> source, boolean consumeToAccept)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (source == null && consumeToAccept)
+            throw new IllegalArgumentException("Can't consume from a null source.");
+
+        synchronized (sharedResources.getIncomingLock())
+        {
+            if (decliningPermanently || sharedResources.decliningPermanently)
+            {
+                sharedResources.completeBlockIfPossible();
+                return DataflowMessageStatus.DecliningPermanently;
+            }
+
+            // In greedy mode, we can accept the message directly if there's room for it and nothing
+            // is postponed ahead of it.
+            if (sharedResources.dataflowBlockOptions.getGreedy() && hasRoomForGreedyMessage() &&
+                    (postponedMessages == null || (postponedMessages.size() == 0 && messagesInTransfer == 0)))
+            {
+                if (consumeToAccept)
+                {
+                    TryResult<T> result = source.consumeMessage(messageHeader, this);
+                    if (!result.isSuccess())
+                        return DataflowMessageStatus.NotAvailable;
+                    else
+                        messageValue = result.getResult();
+                }
+
+                messages.add(messageValue);
+                sharedResources.joinIfPossibleGreedy();
+                return DataflowMessageStatus.Accepted;
+            }
+            else if (source != null)
+            {
+                // Non-greedy, or no room for now: remember the offer and consume it when we can.
+                postponedMessages.put(source, messageHeader);
+                if (sharedResources.metricsRecorder != null) sharedResources.metricsRecorder.messagesPostponed.increment();
+                sharedResources.processAsyncIfNecessary();
+                return DataflowMessageStatus.Postponed;
+            }
+
+            return DataflowMessageStatus.Declined;
+        }
+    }
+
+    /*
+     * Gets whether a greedy target can take another message without exceeding the bound. Joins
+     * waiting in the source half and messages waiting here for a join both count against it.
+     * Must be called while holding the incoming lock.
+     */
+    boolean hasRoomForGreedyMessage()
+    {
+        BoundingState boundingState = sharedResources.boundingState;
+        return boundingState == null ||
+                boundingState.CurrentCount + messages.size() + messagesInTransfer < boundingState.boundedCapacity;
+    }
+
+    /*
+     * Gets whether this target has a message ready to be joined. Must be called while holding the incoming lock.
+     */
+    boolean hasAtLeastOneMessageAvailable()
+    {
+        if (messages != null)
+            return !messages.isEmpty();
+
+        return hasConsumedMessage;
+    }
+
+    /*
+     * Must be called while holding the incoming lock.
+     */
+    boolean hasAtLeastOnePostponedMessage()
+    {
+        return postponedMessages != null && postponedMessages.size() > 0;
+    }
+
+    boolean isDecliningPermanently() { return decliningPermanently; }
+
+    /*
+     * Gets the number of messages waiting for a join. Must be called while holding the incoming lock.
+     */
+    int getMessageCount()
+    {
+        if (messages != null)
+            return messages.size();
+
+        return hasConsumedMessage ? 1 : 0;
+    }
+
+    /*
+     * Gets the number of postponed messages. Must be called while holding the incoming lock.
+     */
+    int getPostponedCount()
+    {
+        return postponedMessages != null ? postponedMessages.size() : 0;
+    }
+
+    /*
+     * Takes the message to be joined. Must only be called while holding the incoming lock, once
+     * @see hasAtLeastOneMessageAvailable has returned true.
+     */
+    T getOneMessage()
+    {
+        if (messages != null)
+        {
+            messages.tryPoll(polledMessage);
+            T value = polledMessage.value;
+            polledMessage.clear();
+            return value;
+        }
+
+        T value = consumedMessage;
+        consumedMessage = null;
+        hasConsumedMessage = false;
+        return value;
+    }
+
+    /*
+     * Consumes one postponed message into a greedy target, if there's room and one is still available.
+     *
+     * @return Whether a message was added.
+     */
+    boolean consumeOnePostponedMessageGreedy()
+    {
+        while (true)
+        {
+            ISourceBlock<T> postponedSource;
+            DataflowMessageHeader messageHeader;
+            synchronized (sharedResources.getIncomingLock())
+            {
+                if (decliningPermanently || sharedResources.decliningPermanently || !hasRoomForGreedyMessage())
+                    return false;
+
+                if (!postponedMessages.tryPoll(polledPostponedMessage))
+                    return false;
+
+                postponedSource = polledPostponedMessage.key;
+                messageHeader = polledPostponedMessage.value;
+                polledPostponedMessage.clear();
+
+                // Take the room for the message optimistically, so offers can't take it in the meantime.
+                messagesInTransfer++;
+            }
+
+            TryResult<T> result = postponedSource.consumeMessage(messageHeader, this);
+
+            synchronized (sharedResources.getIncomingLock())
+            {
+                messagesInTransfer--;
+
+                if (result.isSuccess())
+                {
+                    messages.add(result.getResult());
+                    return true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Takes the oldest postponed message as the one a non-greedy join will be attempted with.
+     * Must be called while holding the incoming lock, once @see hasAtLeastOnePostponedMessage has returned true.
+     */
+    void takePostponedMessageForReservation()
+    {
+        postponedMessages.tryPoll(polledPostponedMessage);
+        reservedSource = polledPostponedMessage.key;
+        reservedHeader = polledPostponedMessage.value;
+        polledPostponedMessage.clear();
+    }
+
+    boolean reserveMessage()
+    {
+        return reservedSource.reserveMessage(reservedHeader, this);
+    }
+
+    void releaseReservedMessage()
+    {
+        try
+        {
+            reservedSource.releaseReservation(reservedHeader, this);
+        }
+        finally
+        {
+            dropMessageForReservation();
+        }
+    }
+
+    /*
+     * Forgets the message a join was attempted with. Its source will offer its next one.
+     */
+    void dropMessageForReservation()
+    {
+        reservedSource = null;
+        reservedHeader = null;
+    }
+
+    /*
+     * Puts back a message a join was attempted with but never reserved, since it's still on offer.
+     * Must be called while holding the incoming lock.
+     */
+    void restorePostponedMessage()
+    {
+        postponedMessages.put(reservedSource, reservedHeader);
+        dropMessageForReservation();
+    }
+
+    /*
+     * Consumes the reserved message, keeping it for the join.
+     */
+    void consumeReservedMessage()
+    {
+        try
+        {
+            TryResult<T> result = reservedSource.consumeMessage(reservedHeader, this);
+            if (!result.isSuccess())
+                throw new IllegalStateException("Failed to consume a reserved message.");
+
+            synchronized (sharedResources.getIncomingLock())
+            {
+                consumedMessage = result.getResult();
+                hasConsumedMessage = true;
+            }
+        }
+        finally
+        {
+            dropMessageForReservation();
+        }
+    }
+
+    /*
+     * Drops the messages that will never be joined. Must be called while holding the incoming lock.
+     */
+    void clearMessages()
+    {
+        if (messages != null)
+            messages.clear();
+
+        consumedMessage = null;
+        hasConsumedMessage = false;
+    }
+
+    /*
+     * Releases this target's postponed messages back to their sources. Must be called without holding
+     * the incoming lock, once completion is reserved. See @see Common#releaseAllPostponedMessages.
+     */
+    List<Exception> releasePostponedMessages(List<Exception> exceptions)
+    {
+        if (postponedMessages == null)
+            return exceptions;
+
+        return Common.releaseAllPostponedMessages(this, postponedMessages, exceptions);
+    }
+
+    /*
+     * Stops this target from accepting more messages. Must be called while holding the incoming lock.
+     */
+    void completeCore()
+    {
+        decliningPermanently = true;
+    }
+
+    public void complete()
+    {
+        synchronized (sharedResources.getIncomingLock())
+        {
+            completeCore();
+            sharedResources.completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Faults the whole join: a join can't be formed without every one of its targets.
+     */
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        sharedResources.fault(exception);
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return sharedResources.getCompletion();
+    }
+}
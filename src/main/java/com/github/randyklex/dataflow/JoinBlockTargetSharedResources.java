@@ -0,0 +1,460 @@
+package com.github.randyklex.dataflow;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/*
+ * The state shared by the targets of a JoinBlock: the incoming lock they all take, the bounding state,
+ * and the logic that forms joins out of one message from every target.
+ *
+ * In greedy mode, targets accept messages into their own queues and a join is formed, under the lock,
+ * as soon as every target has one. In non-greedy mode, targets only postpone offers; once every target
+ * has a postponed message, a processing task reserves one from each target in order and consumes them
+ * only if every reservation succeeded, releasing the ones it got otherwise. Sources are never called
+ * while holding the incoming lock, so a join can't deadlock with its sources, and a failed attempt ends
+ * the task rather than retrying: the next one starts when a released source offers its message again.
+ */
+final class JoinBlockTargetSharedResources {
+
+    final JoinBlockTarget<?>[] targets;
+
+    final GroupingDataflowBlockOptions dataflowBlockOptions;
+
+    /*
+     * The bounding state, or null if the block is unbounded. Joins count against the bound until they
+     * leave the source half, and greedy targets' queued messages count against it too.
+     */
+    final BoundingState boundingState;
+
+    /*
+     * The recorder for the block's metrics, or null if they're disabled.
+     */
+    final MetricsRecorder metricsRecorder;
+
+    /*
+     * Takes one message from every target and outputs the join. Called under the incoming lock.
+     */
+    private final Runnable joinFilledAction;
+
+    private final Consumer<Exception> exceptionAction;
+
+    private final Runnable completeAction;
+
+    private final CompletableFuture<?> completion;
+
+    boolean decliningPermanently;
+
+    private boolean taskForInputProcessing;
+
+    private boolean completionReserved;
+
+    private boolean faulted;
+
+    private long joinsCreated;
+
+    /*
+     * @param targets The targets of the join, in order. May be filled in after this constructor runs.
+     * @param joinFilledAction Takes one message from every target and outputs the join.
+     * @param exceptionAction Stores an exception that faults the block.
+     * @param completeAction Completes the block's source half.
+     * @param completion The block's completion.
+     * @param metricsRecorder The recorder for the block's metrics, or null if they're disabled.
+     */
+    JoinBlockTargetSharedResources(JoinBlockTarget<?>[] targets,
+                                   GroupingDataflowBlockOptions dataflowBlockOptions,
+                                   Runnable joinFilledAction,
+                                   Consumer<Exception> exceptionAction,
+                                   Runnable completeAction,
+                                   CompletableFuture<?> completion,
+                                   MetricsRecorder metricsRecorder)
+    {
+        this.targets = targets;
+        this.dataflowBlockOptions = dataflowBlockOptions;
+        this.joinFilledAction = joinFilledAction;
+        this.exceptionAction = exceptionAction;
+        this.completeAction = completeAction;
+        this.completion = completion;
+        this.metricsRecorder = metricsRecorder;
+
+        if (dataflowBlockOptions.getBoundedCapacity() != DataflowBlockOptions.Unbounded)
+            boundingState = new BoundingState(dataflowBlockOptions.getBoundedCapacity());
+        else
+            boundingState = null;
+    }
+
+    Object getIncomingLock() { return targets; }
+
+    CompletableFuture<?> getCompletion() { return completion; }
+
+    /*
+     * Creates the metrics of the block. The input count is the number of messages waiting in the
+     * targets for a join, and the messages output are joins.
+     */
+    DataflowBlockMetrics createMetrics(SourceCore<?> source)
+    {
+        return new DataflowBlockMetrics(metricsRecorder, this::getMessageCount, source::getOutputCount, null,
+                boundingState != null ? this::getBoundedCount : null,
+                this::getPostponedCount,
+                source::getMessagesOutput);
+    }
+
+    private int getMessageCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            int count = 0;
+            for (JoinBlockTarget<?> target : targets)
+                count += target.getMessageCount();
+            return count;
+        }
+    }
+
+    private int getBoundedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            return boundingState.CurrentCount;
+        }
+    }
+
+    private int getPostponedCount()
+    {
+        synchronized (getIncomingLock())
+        {
+            int count = 0;
+            for (JoinBlockTarget<?> target : targets)
+                count += target.getPostponedCount();
+            return count;
+        }
+    }
+
+    /*
+     * Forms as many joins as the targets' queued messages allow. Only used in greedy mode.
+     * Must be called while holding the incoming lock.
+     */
+    void joinIfPossibleGreedy()
+    {
+        while (!decliningPermanently && allTargetsHaveAtLeastOneMessage())
+        {
+            joinFilledAction.run();
+            joinCreated();
+        }
+
+        completeBlockIfPossible();
+    }
+
+    private boolean allTargetsHaveAtLeastOneMessage()
+    {
+        for (JoinBlockTarget<?> target : targets)
+        {
+            if (!target.hasAtLeastOneMessageAvailable())
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean allTargetsHaveAtLeastOnePostponedMessage()
+    {
+        for (JoinBlockTarget<?> target : targets)
+        {
+            if (!target.hasAtLeastOnePostponedMessage())
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Records that a join was output. Must be called while holding the incoming lock.
+     */
+    private void joinCreated()
+    {
+        joinsCreated++;
+        if (boundingState != null) boundingState.CurrentCount++;
+
+        if (joinsCreated >= dataflowBlockOptions.getActualMaxNumberOfGroups())
+            decliningPermanently = true;
+    }
+
+    /*
+     * Notifies the targets that joins were removed from the source half, freeing room within the bound.
+     */
+    void onItemsRemoved(int count)
+    {
+        synchronized (getIncomingLock())
+        {
+            boundingState.CurrentCount -= count;
+
+            processAsyncIfNecessary();
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Starts a task to consume postponed messages if there's work for one and no such task is already
+     * running. Must be called while holding the incoming lock.
+     */
+    void processAsyncIfNecessary()
+    {
+        if (taskForInputProcessing || decliningPermanently || faulted)
+            return;
+
+        if (boundingState != null && !boundingState.countIsLessThanBound())
+            return;
+
+        boolean hasWork;
+        if (dataflowBlockOptions.getGreedy())
+        {
+            hasWork = false;
+            for (JoinBlockTarget<?> target : targets)
+                hasWork |= target.hasAtLeastOnePostponedMessage() && target.hasRoomForGreedyMessage();
+        }
+        else
+        {
+            hasWork = allTargetsHaveAtLeastOnePostponedMessage();
+        }
+
+        if (hasWork)
+        {
+            taskForInputProcessing = true;
+
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::processMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // The scheduler refused the work. Revert the processing state and fault the block.
+                taskForInputProcessing = false;
+                fault(exception);
+            }
+        }
+    }
+
+    private void processMessagesLoopCore()
+    {
+        try
+        {
+            int maxMessagesPerTask = dataflowBlockOptions.getActualMaxMessagesPerTask();
+            boolean greedy = dataflowBlockOptions.getGreedy();
+            for (int i = 0; i < maxMessagesPerTask; i++)
+            {
+                if (!(greedy ? consumePostponedMessagesGreedy() : retrieveAndJoinNonGreedy()))
+                    break;
+            }
+        }
+        catch (Exception exception)
+        {
+            // Consuming from a postponed source failed. Fault the block.
+            fault(exception);
+        }
+        finally
+        {
+            synchronized (getIncomingLock())
+            {
+                // We're no longer consuming, but there may be more to consume if we stopped
+                // because we hit MaxMessagesPerTask, so start a replacement if necessary.
+                taskForInputProcessing = false;
+                processAsyncIfNecessary();
+
+                // If we're declining permanently, we may be able to complete now.
+                completeBlockIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Consumes one postponed message into each greedy target that has one and room for it,
+     * then forms whatever joins are now possible.
+     *
+     * @return Whether any message was consumed.
+     */
+    private boolean consumePostponedMessagesGreedy()
+    {
+        boolean consumedAny = false;
+        for (JoinBlockTarget<?> target : targets)
+            consumedAny |= target.consumeOnePostponedMessageGreedy();
+
+        synchronized (getIncomingLock())
+        {
+            joinIfPossibleGreedy();
+        }
+
+        return consumedAny;
+    }
+
+    /*
+     * Takes a postponed message from every target, reserves them all in target order and, if every
+     * reservation succeeds, consumes them and outputs the join.
+     *
+     * @return Whether a join was output.
+     */
+    private boolean retrieveAndJoinNonGreedy()
+    {
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently || faulted || !allTargetsHaveAtLeastOnePostponedMessage())
+                return false;
+
+            if (boundingState != null)
+            {
+                if (!boundingState.countIsLessThanBound())
+                    return false;
+
+                // Take the room for the join optimistically, so it can't be taken in the meantime.
+                boundingState.CurrentCount++;
+            }
+
+            for (JoinBlockTarget<?> target : targets)
+                target.takePostponedMessageForReservation();
+        }
+
+        int reserved = 0;
+        boolean joined = false;
+        try
+        {
+            while (reserved < targets.length && targets[reserved].reserveMessage())
+                reserved++;
+
+            if (reserved < targets.length)
+            {
+                // Someone else got one of the messages first. Give back the ones we reserved, which makes
+                // their sources offer them again, and keep the ones we didn't get to for the next attempt.
+                for (int i = 0; i < reserved; i++)
+                    targets[i].releaseReservedMessage();
+
+                synchronized (getIncomingLock())
+                {
+                    targets[reserved].dropMessageForReservation();
+                    for (int i = reserved + 1; i < targets.length; i++)
+                        targets[i].restorePostponedMessage();
+                }
+
+                return false;
+            }
+
+            for (JoinBlockTarget<?> target : targets)
+                target.consumeReservedMessage();
+
+            synchronized (getIncomingLock())
+            {
+                // joinCreated counts the join itself.
+                if (boundingState != null) boundingState.CurrentCount--;
+
+                joinFilledAction.run();
+                joinCreated();
+                joined = true;
+            }
+
+            return true;
+        }
+        finally
+        {
+            if (!joined && boundingState != null)
+            {
+                synchronized (getIncomingLock())
+                {
+                    // We didn't get the join after all, so give the room back.
+                    boundingState.CurrentCount--;
+                }
+            }
+        }
+    }
+
+    /*
+     * Stores an exception and stops the block from accepting more messages.
+     */
+    void fault(Exception exception)
+    {
+        synchronized (getIncomingLock())
+        {
+            if (!faulted)
+                exceptionAction.accept(exception);
+
+            faulted = true;
+            decliningPermanently = true;
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Completes every target.
+     */
+    void completeEachTarget()
+    {
+        synchronized (getIncomingLock())
+        {
+            for (JoinBlockTarget<?> target : targets)
+                target.completeCore();
+
+            completeBlockIfPossible();
+        }
+    }
+
+    /*
+     * Completes the block once no more joins can be formed: it's declining permanently, or a target
+     * has been completed and has nothing left to join. Must be called while holding the incoming lock.
+     */
+    void completeBlockIfPossible()
+    {
+        if (completionReserved || taskForInputProcessing)
+            return;
+
+        boolean noMoreJoins = decliningPermanently || dataflowBlockOptions.getCancellationToken().isCancellationRequested();
+        for (JoinBlockTarget<?> target : targets)
+        {
+            if (target.isDecliningPermanently() && !target.hasAtLeastOneMessageAvailable())
+                noMoreJoins = true;
+        }
+
+        if (noMoreJoins)
+        {
+            completionReserved = true;
+            decliningPermanently = true;
+
+            // Messages that can never be joined are dropped.
+            for (JoinBlockTarget<?> target : targets)
+                target.clearMessages();
+
+            // Releasing postponed messages calls back into their sources, so it has to happen outside the
+            // incoming lock. Nothing else touches them once completion is reserved.
+            boolean anyPostponedMessages = false;
+            for (JoinBlockTarget<?> target : targets)
+                anyPostponedMessages |= target.hasAtLeastOnePostponedMessage();
+
+            if (anyPostponedMessages)
+            {
+                try
+                {
+                    dataflowBlockOptions.getScheduler().schedule(this::releasePostponedMessagesAndComplete);
+                }
+                catch (RuntimeException exception)
+                {
+                    exceptionAction.accept(exception);
+                    completeAction.run();
+                }
+            }
+            else
+            {
+                completeAction.run();
+            }
+        }
+    }
+
+    private void releasePostponedMessagesAndComplete()
+    {
+        List<Exception> exceptions = null;
+        for (JoinBlockTarget<?> target : targets)
+            exceptions = target.releasePostponedMessages(exceptions);
+
+        if (exceptions != null)
+        {
+            for (Exception exception : exceptions)
+                exceptionAction.accept(exception);
+        }
+
+        completeAction.run();
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/*
+ * Routes a source's messages to its links by a key extracted from each message.
+ *
+ * Each link is made with a predicate from @see keyEquals, which passes messages whose key equals the
+ * given one. Used like any other predicate, it extracts the key every time it's tested. Linked to a
+ * source, though, the source recognizes it: it extracts each message's key once and looks up the links
+ * for that key in a table, rather than testing the predicate of every link in turn. Messages are offered
+ * to the same links, in the same order, either way.
+ *
+ * A source routes by a single KeyRouter: the one behind the first of its links made with one. Links
+ * made with another router's predicates are tested like any other predicate.
+ */
+public final class KeyRouter<T, K> {
+
+    private final Function<T, K> keyExtractor;
+
+    public KeyRouter(Function<T, K> keyExtractor)
+    {
+        if (keyExtractor == null)
+            throw new IllegalArgumentException("keyExtractor cannot be null.");
+
+        this.keyExtractor = keyExtractor;
+    }
+
+    /*
+     * Gets a predicate that passes the messages whose key equals the given key, which may be null.
+     */
+    public Predicate<T> keyEquals(K key)
+    {
+        return new KeyPredicate<>(this, key);
+    }
+
+    K keyOf(T message)
+    {
+        return keyExtractor.apply(message);
+    }
+
+    static final class KeyPredicate<T, K> implements Predicate<T>
+    {
+        final KeyRouter<T, K> router;
+        final K key;
+
+        KeyPredicate(KeyRouter<T, K> router, K key)
+        {
+            this.router = router;
+            this.key = key;
+        }
+
+        @Override
+        public boolean test(T message)
+        {
+            return Objects.equals(router.keyOf(message), key);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.randyklex.dataflow;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A histogram of durations in nanoseconds, recorded concurrently without locks.
+ *
+ * Buckets are laid out the way an HDR histogram lays them out: each power of two is split into
+ * SUB_BUCKET_COUNT linear sub-buckets, so every recorded value is kept to within 1/16th of itself
+ * across the whole range of a long, in a fixed array of under a thousand counters.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    LatencyHistogram()
+    { }
+
+    void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.getAndIncrement(indexOf(nanos));
+        totalCount.getAndIncrement();
+        totalNanos.getAndAdd(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() { return totalCount.get(); }
+
+    public long getMaxNanos() { return maxNanos.get(); }
+
+    public double getMeanNanos()
+    {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalNanos.get() / count;
+    }
+
+    /*
+     * Gets the value below which the given percentage of recorded values fall, as the highest value
+     * of the bucket it's in. Returns 0 if nothing has been recorded.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile must be between 0 and 100.");
+
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), getMaxNanos());
+        }
+
+        // Values recorded while we were scanning can push the rank past what we saw.
+        return getMaxNanos();
+    }
+
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long lowest = (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * A message paired with its ID. Instances are reused as the destination of a poll,
+ * so taking a message off a queue doesn't allocate.
+ */
+final class MessageWithId<T> {
+    T value;
+    long id;
+
+    void set(T value, long id)
+    {
+        this.value = value;
+        this.id = id;
+    }
+
+    /*
+     * Drops the reference to the message so it doesn't outlive its processing.
+     */
+    void clear()
+    {
+        value = null;
+        id = 0;
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.randyklex.dataflow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Collects a block's counters and latency histograms when DataflowBlockOptions.MetricsEnabled is set,
+ * or when the block is traced by a @see DataflowTracer. Blocks hold a null recorder otherwise, so
+ * instrumentation costs a null check when it's off.
+ *
+ * To stay cheap enough to leave on, only one message in every sample interval is timed: sampled
+ * messages are picked by their sequence number, so the producer that queues a message and the task
+ * that takes it agree on whether it's sampled without sharing any state. The times at which the
+ * sampled messages in flight were queued are kept in a small ring, which a slow consumer may overrun;
+ * a sample whose time was overwritten is simply not recorded.
+ */
+final class MetricsRecorder {
+
+    // A sample reads System.nanoTime three times, which is what sampling pays for; at tens of nanoseconds a
+    // read, sampling more often than this costs busy blocks more than a couple of percent of throughput.
+    static final int DEFAULT_SAMPLE_INTERVAL = 1024;
+
+    // The ring of queue times covers at least this many messages in flight, however often they're sampled.
+    private static final int MIN_MESSAGES_COVERED = 4096;
+    private static final int MIN_RING_SIZE = 64;
+
+    final LongAdder messagesProcessed = new LongAdder();
+    final LongAdder messagesPostponed = new LongAdder();
+
+    // From a message being queued at the block's input to its processing starting.
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram actionTime = new LatencyHistogram();
+    // From a message being queued at the block's output to it being accepted by a linked target or received.
+    final LatencyHistogram outputWait = new LatencyHistogram();
+
+    private final long sampleMask;
+    private final SampleTimes inputTimes;
+    private final SampleTimes outputTimes;
+
+    /*
+     * @param sampleInterval One message in this many is timed. Must be a power of two.
+     */
+    MetricsRecorder(int sampleInterval)
+    {
+        assert Integer.bitCount(sampleInterval) == 1;
+
+        sampleMask = sampleInterval - 1;
+        inputTimes = new SampleTimes(sampleInterval);
+        outputTimes = new SampleTimes(sampleInterval);
+    }
+
+    /*
+     * Creates the recorder for a block, sampling as often as its tracer asks if it's traced, or returns
+     * null if the block is neither traced nor has metrics enabled.
+     */
+    static MetricsRecorder create(DataflowBlockOptions options)
+    {
+        DataflowTracer tracer = options.getTracer();
+        if (tracer != null)
+            return new MetricsRecorder(tracer.getSampleInterval());
+
+        return options.getMetricsEnabled() ? new MetricsRecorder(DEFAULT_SAMPLE_INTERVAL) : null;
+    }
+
+    boolean isSampled(long sequence)
+    {
+        return (sequence & sampleMask) == 0;
+    }
+
+    /*
+     * Records that the messages with count consecutive sequence numbers starting at firstSequence were
+     * queued at the block's input, noting the time for the sampled ones among them.
+     */
+    void messagesQueued(long firstSequence, int count)
+    {
+        // Kept small enough to inline into the offer paths, since almost every call returns right away.
+        if (containsSample(firstSequence, count))
+            inputTimes.stamp(firstSampleFrom(firstSequence), firstSequence + count);
+    }
+
+    /*
+     * Records the queue wait of a sampled message that's about to be processed.
+     *
+     * @return The current time, to be passed to @see sampledMessageProcessed.
+     */
+    long sampledMessageStarting(long sequence)
+    {
+        long now = System.nanoTime();
+        inputTimes.recordElapsed(sequence, now, queueWait);
+        return now;
+    }
+
+    /*
+     * Records the action time of a sampled message.
+     *
+     * @param startNanos The time returned by @see sampledMessageStarting.
+     */
+    void sampledMessageProcessed(long startNanos)
+    {
+        actionTime.record(System.nanoTime() - startNanos);
+    }
+
+    /*
+     * Records that the messages with count consecutive sequence numbers starting at firstSequence were
+     * queued at the block's output.
+     */
+    void messagesOutput(long firstSequence, int count)
+    {
+        if (containsSample(firstSequence, count))
+            outputTimes.stamp(firstSampleFrom(firstSequence), firstSequence + count);
+    }
+
+    /*
+     * Records that the messages with count consecutive sequence numbers starting at firstSequence left
+     * the block's output, accepted by a linked target or received.
+     */
+    void messagesHandedOff(long firstSequence, int count)
+    {
+        if (containsSample(firstSequence, count))
+        {
+            long now = System.nanoTime();
+            for (long sampled = firstSampleFrom(firstSequence); sampled < firstSequence + count; sampled += sampleMask + 1)
+                outputTimes.recordElapsed(sampled, now, outputWait);
+        }
+    }
+
+    private boolean containsSample(long firstSequence, int count)
+    {
+        return firstSampleFrom(firstSequence) < firstSequence + count;
+    }
+
+    private long firstSampleFrom(long sequence)
+    {
+        return (sequence + sampleMask) & ~sampleMask;
+    }
+
+    /*
+     * The times at which the sampled messages in flight were stamped, in a ring indexed by their
+     * sequence number. A slot's sequence number is cleared while its time is written, so a reader that
+     * sees the same number before and after reading the time knows the time belongs to it.
+     */
+    private static final class SampleTimes
+    {
+        private final int sampleInterval;
+        private final int ringMask;
+        private final AtomicLongArray sequences;
+        private final AtomicLongArray nanos;
+
+        SampleTimes(int sampleInterval)
+        {
+            int ringSize = Math.max(MIN_RING_SIZE, MIN_MESSAGES_COVERED / sampleInterval);
+            this.sampleInterval = sampleInterval;
+            this.ringMask = ringSize - 1;
+            this.sequences = new AtomicLongArray(ringSize);
+            this.nanos = new AtomicLongArray(ringSize);
+            for (int i = 0; i < ringSize; i++)
+                sequences.set(i, -1);
+        }
+
+        /*
+         * Stamps the sampled sequence numbers from firstSample up to end with the current time.
+         */
+        void stamp(long firstSample, long end)
+        {
+            long now = System.nanoTime();
+            for (long sampled = firstSample; sampled < end; sampled += sampleInterval)
+            {
+                int slot = slotOf(sampled);
+                sequences.set(slot, -1);
+                nanos.set(slot, now);
+                sequences.set(slot, sampled);
+            }
+        }
+
+        void recordElapsed(long sequence, long now, LatencyHistogram histogram)
+        {
+            int slot = slotOf(sequence);
+            if (sequences.get(slot) == sequence)
+            {
+                long stamped = nanos.get(slot);
+                if (sequences.get(slot) == sequence)
+                    histogram.record(now - stamped);
+            }
+        }
+
+        private int slotOf(long sequence)
+        {
+            return (int) (sequence / sampleInterval) & ringMask;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.randyklex.dataflow;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * An IMessageQueue for any number of concurrent producers and consumers.
+ *
+ * The linked queue underneath needs a node per item whatever it stores, so each message and its ID
+ * share a single MessageWithId rather than adding a boxed ID on top. Bounded blocks use
+ * BoundedMultiProducerMultiConsumerMessageQueue instead, which doesn't allocate at all.
+ *
+ * The linked queue's own size walks every node, so the size is counted separately.
+ */
+final class MultiProducerMultiConsumerMessageQueue<T> implements IMessageQueue<T> {
+
+    private final ConcurrentLinkedQueue<MessageWithId<T>> queue = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder count = new LongAdder();
+
+    public void add(T item, long id)
+    {
+        MessageWithId<T> messageWithId = new MessageWithId<>();
+        messageWithId.set(item, id);
+        queue.add(messageWithId);
+        count.increment();
+    }
+
+    public boolean tryPoll(MessageWithId<T> destination)
+    {
+        MessageWithId<T> messageWithId = queue.poll();
+        if (messageWithId == null)
+            return false;
+
+        count.decrement();
+
+        destination.set(messageWithId.value, messageWithId.id);
+        return true;
+    }
+
+    public boolean isEmpty()
+    {
+        return queue.isEmpty();
+    }
+
+    public int size()
+    {
+        // A poll can run between an add and its increment, so the count can briefly dip below zero.
+        return (int) Math.max(0, count.sum());
+    }
+
+    public int sizeSafe(Object syncObj)
+    {
+        return size();
+    }
+}
@@ -1,143 +1,242 @@
 package com.github.randyklex.dataflow;
 
-import java.util.*;
-
+import java.util.Arrays;
+
+/*
+ * A map that keeps its keys in insertion order and hands them back first-in, first-out.
+ *
+ * Entries live in parallel arrays and are chained into a queue through next indices; removed
+ * slots go onto a free list chained the same way, so an entry keeps its slot for as long as it
+ * is in the map. Keys are found through an open-addressing index of slot numbers, so put, replace
+ * and tryPoll are all O(1) and none of them allocate once the arrays are large enough.
+ *
+ * Not thread-safe; a target only touches its postponed messages under its incoming lock.
+ */
 final class QueuedMap<TKey, TValue> {
 
-    private final ArrayBasedLinkedQueue<AbstractMap.SimpleEntry<TKey, TValue>> queue;
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final int TERMINATOR_INDEX = -1;
+
+    // An empty bucket in the index. Buckets store slot + 1, so that a new index is all empty.
+    private static final int EMPTY_BUCKET = 0;
+
+    private TKey[] keys;
+    private TValue[] values;
+    private int[] hashes;
+    private int[] next;
+
+    private int headIndex = TERMINATOR_INDEX;
+    private int tailIndex = TERMINATOR_INDEX;
+    private int freeIndex = TERMINATOR_INDEX;
+
+    // The number of slots ever handed out; slots below it are either in the queue or free.
+    private int usedSlots;
 
-    private final HashMap<TKey, Integer> mapKeyToIndex;
+    private int[] buckets;
+    private int bucketShift;
+
+    private int size;
 
     QueuedMap()
     {
-        queue = new ArrayBasedLinkedQueue<>();
-        mapKeyToIndex = new HashMap<>();
+        this(DEFAULT_CAPACITY);
     }
 
     QueuedMap(int capacity)
     {
-        queue = new ArrayBasedLinkedQueue<>(capacity);
-        mapKeyToIndex = new HashMap<>(capacity);
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive.");
+
+        keys = newArray(capacity);
+        values = newArray(capacity);
+        hashes = new int[capacity];
+        next = new int[capacity];
+        resizeBuckets(capacity);
     }
 
+    /*
+     * Adds a key to the back of the queue, or replaces the value of a key that is already queued
+     * without changing its place.
+     */
     void put(TKey key, TValue value)
     {
-        int indexOfKeyInQueue;
+        int hash = hash(key);
+        int slot = findSlot(key, hash);
+        if (slot != TERMINATOR_INDEX)
+        {
+            values[slot] = value;
+            return;
+        }
+
+        if (freeIndex == TERMINATOR_INDEX && usedSlots == keys.length)
+            growSlots();
 
-        if (mapKeyToIndex.containsKey(key)) {
-            indexOfKeyInQueue = mapKeyToIndex.get(key);
-            queue.replace(indexOfKeyInQueue, new AbstractMap.SimpleEntry<TKey, TValue>(key, value));
+        if (freeIndex != TERMINATOR_INDEX)
+        {
+            slot = freeIndex;
+            freeIndex = next[slot];
         }
         else
         {
-            indexOfKeyInQueue = queue.add(new AbstractMap.SimpleEntry<>(key, value));
-            mapKeyToIndex.put(key, indexOfKeyInQueue);
+            slot = usedSlots++;
         }
+
+        keys[slot] = key;
+        values[slot] = value;
+        hashes[slot] = hash;
+        next[slot] = TERMINATOR_INDEX;
+
+        if (headIndex == TERMINATOR_INDEX)
+            headIndex = slot;
+        else
+            next[tailIndex] = slot;
+        tailIndex = slot;
+
+        if (++size * 2 > buckets.length)
+            resizeBuckets(buckets.length);
+        else
+            insertIntoBuckets(slot, hash);
     }
 
     // TODO: Originally this was "TryPop" in the C# implememtation.
     /*
-     * Try to poll the next element from the data structure.
+     * Try to poll the next element from the data structure into destination.
      */
-    TryResult<AbstractMap.SimpleEntry<TKey, TValue>> tryPoll()
+    boolean tryPoll(Entry<TKey, TValue> destination)
     {
-        TryResult<AbstractMap.SimpleEntry<TKey, TValue>> result = queue.tryPoll();
-        if (result.isSuccess())
-            mapKeyToIndex.remove(result.getResult().getKey());
-
-        return result;
+        int slot = headIndex;
+        if (slot == TERMINATOR_INDEX)
+            return false;
+
+        destination.set(keys[slot], values[slot]);
+        removeFromBuckets(slot);
+
+        headIndex = next[slot];
+        if (headIndex == TERMINATOR_INDEX)
+            tailIndex = TERMINATOR_INDEX;
+
+        keys[slot] = null;
+        values[slot] = null;
+        next[slot] = freeIndex;
+        freeIndex = slot;
+        size--;
+        return true;
     }
 
     // TODO: implement the PopRange
 
     int size() {
-        return mapKeyToIndex.size();
+        return size;
     }
 
-    private final class ArrayBasedLinkedQueue<T>
+    private int findSlot(Object key, int hash)
     {
-        private static final int TERMINATOR_INDEX = -1;
+        int mask = buckets.length - 1;
+        for (int bucket = hash >>> bucketShift; ; bucket = (bucket + 1) & mask)
+        {
+            int slot = buckets[bucket] - 1;
+            if (slot == TERMINATOR_INDEX)
+                return TERMINATOR_INDEX;
 
-        private final List<AbstractMap.SimpleEntry<Integer, T>> storage;
+            if (hashes[slot] == hash && key.equals(keys[slot]))
+                return slot;
+        }
+    }
 
-        private int headIndex = TERMINATOR_INDEX;
-        private int tailIndex = TERMINATOR_INDEX;
-        private int freeIndex = TERMINATOR_INDEX;
+    private void insertIntoBuckets(int slot, int hash)
+    {
+        int mask = buckets.length - 1;
+        int bucket = hash >>> bucketShift;
+        while (buckets[bucket] != EMPTY_BUCKET)
+            bucket = (bucket + 1) & mask;
 
-        ArrayBasedLinkedQueue()
-        {
-            storage = new ArrayList<>();
-        }
+        buckets[bucket] = slot + 1;
+    }
 
-        ArrayBasedLinkedQueue(int capacity)
-        {
-            storage = new ArrayList<>(capacity);
-        }
+    /*
+     * Removes a slot from the index, moving later entries of the same probe run back into the gap
+     * so that lookups never need tombstones.
+     */
+    private void removeFromBuckets(int slot)
+    {
+        int mask = buckets.length - 1;
+        int gap = hashes[slot] >>> bucketShift;
+        while (buckets[gap] != slot + 1)
+            gap = (gap + 1) & mask;
 
-        int add(T item)
+        for (int bucket = (gap + 1) & mask; buckets[bucket] != EMPTY_BUCKET; bucket = (bucket + 1) & mask)
         {
-            int newIndex;
-
-            if (freeIndex != TERMINATOR_INDEX)
-            {
-                newIndex = freeIndex;
-                freeIndex = storage.get(freeIndex).getKey();
-                storage.add(newIndex, new AbstractMap.SimpleEntry<>(TERMINATOR_INDEX, item));
-            }
-            else
-            {
-                newIndex = storage.size();
-                storage.add(new AbstractMap.SimpleEntry<>(TERMINATOR_INDEX, item));
-            }
+            int home = hashes[buckets[bucket] - 1] >>> bucketShift;
 
-            if (headIndex == TERMINATOR_INDEX)
+            // An entry can fill the gap only if its home bucket isn't between the gap and where it sits.
+            if (((bucket - home) & mask) >= ((bucket - gap) & mask))
             {
-                headIndex = newIndex;
+                buckets[gap] = buckets[bucket];
+                gap = bucket;
             }
-            else
-            {
-                storage.add(tailIndex, new AbstractMap.SimpleEntry<>(newIndex, storage.get(tailIndex).getValue()));
-            }
-
-            tailIndex = newIndex;
-            return newIndex;
         }
 
-        // TODO: this was originall "TryDequeue" in the C# implementation.
-        TryResult<T> tryPoll()
-        {
-            T item;
+        buckets[gap] = EMPTY_BUCKET;
+    }
 
-            if (headIndex == TERMINATOR_INDEX)
-            {
-                TryResult<T> result = new TryResult<>(false, null);
-                return result;
-            }
+    /*
+     * Creates a slot array. It is only ever read through its erased element type, so an Object[] will do.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(int length)
+    {
+        return (T[]) new Object[length];
+    }
 
-            // TODO: insert the assertion here.
-            item = storage.get(headIndex).getValue();
+    private void growSlots()
+    {
+        int capacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        next = Arrays.copyOf(next, capacity);
+    }
 
-            int newHeadIndex = storage.get(headIndex).getKey();
-            storage.add(headIndex, new AbstractMap.SimpleEntry<>(freeIndex, null));
-            freeIndex = headIndex;
-            headIndex = newHeadIndex;
-            if (headIndex == TERMINATOR_INDEX) tailIndex = TERMINATOR_INDEX;
+    /*
+     * Rebuilds the index with room for at least twice minimumEntries, keeping it at most half full.
+     */
+    private void resizeBuckets(int minimumEntries)
+    {
+        int bucketCount = Integer.highestOneBit(Math.max(2, minimumEntries) - 1) << 2;
+        buckets = new int[bucketCount];
+        bucketShift = Integer.numberOfLeadingZeros(bucketCount) + 1;
 
-            return new TryResult<>(true, item);
-        }
+        for (int slot = headIndex; slot != TERMINATOR_INDEX; slot = next[slot])
+            insertIntoBuckets(slot, hashes[slot]);
+    }
 
-        void replace(int index, T item)
-        {
+    /*
+     * Fibonacci hashing: the multiply mixes every bit of the hash code into the top bits,
+     * which are the ones the index uses.
+     */
+    private static int hash(Object key)
+    {
+        return key.hashCode() * 0x9E3779B9;
+    }
 
-            // TODO: implement the assertions here.
+    /*
+     * A reusable holder for an entry polled from a QueuedMap.
+     */
+    static final class Entry<TKey, TValue>
+    {
+        TKey key;
+        TValue value;
 
-            AbstractMap.SimpleEntry<Integer, T> entry = storage.get(index);
-            storage.remove(entry);
-            storage.add(index, new AbstractMap.SimpleEntry<Integer, T>(entry.getKey(), item));
+        void set(TKey key, TValue value)
+        {
+            this.key = key;
+            this.value = value;
         }
 
-        boolean isEmpty() { return headIndex == TERMINATOR_INDEX; }
+        void clear()
+        {
+            key = null;
+            value = null;
+        }
     }
-
-
 }
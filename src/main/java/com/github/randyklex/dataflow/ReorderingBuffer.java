@@ -47,6 +47,10 @@ public class ReorderingBuffer<TOutput> implements IReorderingBuffer {
         if (itemIsValid)
             outputAction.accept(owningSource, theNextItem);
 
+        // In the common case nothing has arrived out of order, so don't box an ID to look for it.
+        if (reorderingBuffer.isEmpty())
+            return;
+
         AbstractMap.SimpleEntry<Boolean, TOutput> nextOutputItemWithValidity;
 
         nextOutputItemWithValidity = reorderingBuffer.getOrDefault(nextReorderedIdToOutput, null);
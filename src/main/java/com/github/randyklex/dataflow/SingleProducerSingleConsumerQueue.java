@@ -1,133 +1,308 @@
 package com.github.randyklex.dataflow;
 
-import java.lang.reflect.Array;
-
-class SingleProducerSingleConsumerQueue<T> implements IProducerConsumerQueue<T> {
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.Predicate;
+
+/*
+ * A lock-free queue for exactly one producer thread and one consumer thread at a time.
+ *
+ * Items are stored in a linked list of ring segments, each twice the size of the one before it.
+ * The producer publishes an item by writing it and then advancing the segment's last index with
+ * release semantics; the consumer reads last with acquire semantics before reading the item, and
+ * frees a slot the same way through first. A new segment is published through next, also with
+ * release semantics, so a consumer that sees it also sees every item written to the old segment.
+ *
+ * The producer's and the consumer's indices live on separate cache lines so that the two sides
+ * don't invalidate each other's caches on every operation.
+ */
+class SingleProducerSingleConsumerQueue<T> implements IProducerConsumerQueue<T>, IMessageQueue<T> {
 
     private static final int INIT_SEGMENT_SIZE = 32; // must be a power of 2
     private static final int MAX_SEGMENT_SIZE = 0x1000000; // this could be made as a large as int32.maxValue / 2
-    private Segment head;
+
+    private static final VarHandle FIRST;
+    private static final VarHandle LAST;
+    private static final VarHandle NEXT;
+
+    static
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            FIRST = lookup.findVarHandle(SegmentStateConsumerFields.class, "first", int.class);
+            LAST = lookup.findVarHandle(SegmentStateProducerFields.class, "last", int.class);
+            NEXT = lookup.findVarHandle(Segment.class, "next", Segment.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final boolean storesIds;
+
+    // Written only by the consumer, but read by size and isEmpty from other threads.
+    private volatile Segment head;
+
+    // Only used by the producer.
     private Segment tail;
 
     SingleProducerSingleConsumerQueue()
     {
-        head = tail = new Segment(INIT_SEGMENT_SIZE);
+        this(false);
+    }
+
+    /*
+     * @param storesIds Whether every item is stored with an ID, for use as an IMessageQueue.
+     */
+    SingleProducerSingleConsumerQueue(boolean storesIds)
+    {
+        this.storesIds = storesIds;
+        head = tail = new Segment(INIT_SEGMENT_SIZE, storesIds);
     }
 
     public boolean add(T item)
+    {
+        add(item, 0);
+        return true;
+    }
+
+    public void add(T item, long id)
     {
         Segment segment = tail;
-        T[] array = (T[])segment.array;
-        int last = segment.state.last;
+        Object[] array = segment.array;
+        SegmentState state = segment.state;
+        int last = state.last; // only the producer writes last, so a plain read sees its latest value
 
         int tail2 = (last + 1) & (array.length - 1);
-        if (tail2 != segment.state.firstCopy)
+        if (tail2 != state.firstCopy)
         {
             array[last] = item;
-            segment.state.last = tail2;
+            if (segment.ids != null)
+                segment.ids[last] = id;
+            LAST.setRelease(state, tail2);
         }
         else
-            addSlow(item, segment);
-
-        return true;
+            addSlow(item, id, segment);
     }
 
-    private void addSlow(T item, Segment segment)
+    private void addSlow(T item, long id, Segment segment)
     {
         assert segment != null;
 
-        if (segment.state.firstCopy != segment.state.first)
+        SegmentState state = segment.state;
+        int first = (int) FIRST.getAcquire(state);
+        if (state.firstCopy != first)
         {
-            segment.state.firstCopy  = segment.state.first;
-            add(item);
+            // The consumer has freed up slots since we last looked, so there's room after all.
+            state.firstCopy = first;
+            add(item, id);
             return;
         }
 
-        int newSegmentSize = tail.array.length << 1; // double the size
+        int newSegmentSize = segment.array.length << 1; // double the size
         if (newSegmentSize > MAX_SEGMENT_SIZE) newSegmentSize = MAX_SEGMENT_SIZE;
 
-        Segment newSegment = new Segment(newSegmentSize);
+        Segment newSegment = new Segment(newSegmentSize, storesIds);
         newSegment.array[0] = item;
+        if (newSegment.ids != null)
+            newSegment.ids[0] = id;
         newSegment.state.last = 1;
-        newSegment.state.lastCopy =1;
+        newSegment.state.lastCopy = 1;
 
-        try
-        {}
-        finally
-        {
-            // TODO: implement the volatile stuff here
-            tail.next = newSegment;
-            tail = newSegment;
-        }
+        // Everything written to the old segment and to the new one happens-before a consumer
+        // that acquires next sees it.
+        NEXT.setRelease(segment, newSegment);
+        tail = newSegment;
     }
 
     public TryResult<T> tryPoll()
+    {
+        MessageWithId<T> destination = new MessageWithId<>();
+        if (tryPoll(destination))
+            return new TryResult<>(true, destination.value);
+        else
+            return new TryResult<>(false, null);
+    }
+
+    public boolean tryPoll(MessageWithId<T> destination)
     {
         Segment segment = head;
-        Object[] array = segment.array;
-        // TODO: verify this line below
-        int first = segment.state.first; // local copy to avoid multiple volatile reads.
+        SegmentState state = segment.state;
+        int first = state.first; // only the consumer writes first, so a plain read sees its latest value
 
-        if (first != segment.state.lastCopy)
+        if (first != state.lastCopy)
         {
-            TryResult<T> result = new TryResult(true, array[first]);
-            array[first] = null;
-            segment.state.first = (first + 1) & (array.length - 1);
-            return result;
+            take(segment, first, destination);
+            return true;
         }
         else
-            return tryPollSlow(segment, array);
+            return tryPollSlow(segment, destination);
     }
 
-    private TryResult<T> tryPollSlow(Segment segment, Object[] array)
+    private boolean tryPollSlow(Segment segment, MessageWithId<T> destination)
     {
-        if (segment.state.last != segment.state.lastCopy)
+        SegmentState state = segment.state;
+        int last = (int) LAST.getAcquire(state);
+        if (last != state.lastCopy)
         {
-            segment.state.lastCopy = segment.state.last;
-            return tryPoll();
+            state.lastCopy = last;
+            return tryPoll(destination);
         }
 
-        if (segment.next != null && segment.state.first == segment.state.last)
+        segment = advanceIfDrained(segment);
+        state = segment.state;
+
+        int first = state.first;
+        last = (int) LAST.getAcquire(state);
+        if (first == last)
+            return false;
+
+        take(segment, first, destination);
+        state.lastCopy = last;
+        return true;
+    }
+
+    /*
+     * Moves the item at index first of segment into destination and frees its slot.
+     */
+    private void take(Segment segment, int first, MessageWithId<T> destination)
+    {
+        Object[] array = segment.array;
+        destination.set(itemAt(segment, first), segment.ids != null ? segment.ids[first] : 0);
+        array[first] = null;
+        FIRST.setRelease(segment.state, (first + 1) & (array.length - 1));
+    }
+
+    /*
+     * Reads the item at index of segment. Segments only ever hold items added to this queue.
+     */
+    @SuppressWarnings("unchecked")
+    private T itemAt(Segment segment, int index)
+    {
+        return (T) segment.array[index];
+    }
+
+    /*
+     * Moves the head to the next segment if the producer has moved on and the head segment is empty.
+     * Must only be called by the consumer.
+     *
+     * @return The segment that is now the head.
+     */
+    private Segment advanceIfDrained(Segment segment)
+    {
+        // Read next before last: once next is seen, the old segment's last is final.
+        Segment next = (Segment) NEXT.getAcquire(segment);
+        if (next != null && segment.state.first == (int) LAST.getAcquire(segment.state))
         {
-            segment = segment.next;
-            array = segment.array;
-            head = segment;
+            head = next;
+            return next;
         }
 
-        int first = segment.state.first; // local copy to avoid extraneous volatile reads
-        if (first == segment.state.last)
+        return segment;
+    }
+
+    /*
+     * Attempts to peek at an item in the queue without removing it.
+     */
+    public TryResult<T> tryPeek()
+    {
+        Segment segment = head;
+        SegmentState state = segment.state;
+        int first = state.first;
+
+        if (first != state.lastCopy)
+            return new TryResult<>(true, itemAt(segment, first));
+        else
+            return tryPeekSlow(segment);
+    }
+
+    private TryResult<T> tryPeekSlow(Segment segment)
+    {
+        SegmentState state = segment.state;
+        int last = (int) LAST.getAcquire(state);
+        if (last != state.lastCopy)
         {
-            TryResult<T> result = new TryResult(false, null);
-            return result;
+            state.lastCopy = last;
+            return tryPeek();
         }
 
-        TryResult<T> result = new TryResult(true, array[first]);
-        array[first] = null;
-        segment.state.first = (first + 1) & (segment.array.length - 1);
-        segment.state.lastCopy = segment.state.last;
+        segment = advanceIfDrained(segment);
+        state = segment.state;
+
+        int first = state.first;
+        if (first == (int) LAST.getAcquire(state))
+            return new TryResult<>(false, null);
 
-        return result;
+        return new TryResult<>(true, itemAt(segment, first));
     }
 
-    // TODO: implement TryPeek and TryPeek Slow
+    /*
+     * Attempts to poll an item from the queue, but only if it passes the predicate.
+     * A null predicate accepts every item.
+     */
+    public TryResult<T> tryPollIf(Predicate<T> predicate)
+    {
+        if (predicate == null)
+            return tryPoll();
+
+        TryResult<T> peeked = tryPeek();
+        if (peeked.isSuccess() && predicate.test(peeked.getResult()))
+            return tryPoll();
 
-    // TODO: implement TryPollIf and TryPollIfSlow
+        return new TryResult<>(false, null);
+    }
+
+    /*
+     * Copies up to maxCount items from the head of the queue into destination without removing them.
+     * Like tryPeek, this may only be called by the consumer.
+     *
+     * @return The number of items copied.
+     */
+    public int peekRange(Object[] destination, int maxCount)
+    {
+        int count = 0;
+        Segment segment = head;
+        while (count < maxCount)
+        {
+            // Read next before last, so that if there is a next segment, this one's last is final.
+            Segment next = (Segment) NEXT.getAcquire(segment);
+            Object[] array = segment.array;
+            int first = segment.state.first;
+            int last = (int) LAST.getAcquire(segment.state);
+
+            while (first != last && count < maxCount)
+            {
+                destination[count++] = array[first];
+                first = (first + 1) & (array.length - 1);
+            }
+
+            // Only move on to the next segment once this one has been fully read.
+            if (first != last || next == null)
+                break;
+
+            segment = next;
+        }
+
+        return count;
+    }
 
     public void clear()
     {
-        TryResult<T> result = tryPoll();
-        while (result.isSuccess())
+        MessageWithId<T> destination = new MessageWithId<>();
+        while (tryPoll(destination))
         {
-            result = tryPoll();
         }
     }
 
     public boolean isEmpty()
     {
         Segment head = this.head;
-        if (head.state.first != head.state.lastCopy) return false;
-        if (head.state.first != head.state.last) return false;
-        return head.next == null;
+        Segment next = (Segment) NEXT.getAcquire(head);
+        SegmentState state = head.state;
+        if ((int) FIRST.getAcquire(state) != (int) LAST.getAcquire(state)) return false;
+        return next == null;
     }
 
     // TODO: implement an Enumerator?? maybe?
@@ -135,15 +310,15 @@ class SingleProducerSingleConsumerQueue<T> implements IProducerConsumerQueue<T>
     public int size()
     {
         int count = 0;
-        for (Segment segment = head; segment != null; segment = segment.next)
+        for (Segment segment = head; segment != null; segment = (Segment) NEXT.getAcquire(segment))
         {
             int arraySize = segment.array.length;
             int first, last;
             while (true)
             {
-                first = segment.state.first;
-                last = segment.state.last;
-                if (first == segment.state.first)
+                first = (int) FIRST.getAcquire(segment.state);
+                last = (int) LAST.getAcquire(segment.state);
+                if (first == (int) FIRST.getAcquire(segment.state))
                     break;
             }
             count += (last - first) & (arraySize - 1);
@@ -160,30 +335,61 @@ class SingleProducerSingleConsumerQueue<T> implements IProducerConsumerQueue<T>
         }
     }
 
-    private class Segment
+    private static final class Segment
     {
-        Segment next;
+        Segment next; // accessed through NEXT
         final Object[] array;
 
-        SegmentState state = new SegmentState();
+        // The ID of each item in array, at the same index. Null unless the queue stores IDs.
+        final long[] ids;
+
+        final SegmentState state = new SegmentState();
 
-        Segment(int size)
+        Segment(int size, boolean storesIds)
         {
             array = new Object[size];
+            ids = storesIds ? new long[size] : null;
         }
     }
 
-    private class SegmentState
+    /*
+     * The indices of a segment, split across a class hierarchy so that the JVM, which lays out a
+     * superclass's fields before its subclass's, keeps the padding between the two groups.
+     */
+    private static class SegmentStatePadding0
     {
-        // TODO: implement padding
-        int first;
+        long p00, p01, p02, p03, p04, p05, p06, p07;
+    }
 
+    /*
+     * Written by the consumer.
+     */
+    private static class SegmentStateConsumerFields extends SegmentStatePadding0
+    {
+        int first; // accessed through FIRST
         int lastCopy;
+    }
 
-        int firstCopy;
+    private static class SegmentStatePadding1 extends SegmentStateConsumerFields
+    {
+        long p10, p11, p12, p13, p14, p15, p16, p17;
+    }
 
-        int last;
+    /*
+     * Written by the producer.
+     */
+    private static class SegmentStateProducerFields extends SegmentStatePadding1
+    {
+        int firstCopy;
+        int last; // accessed through LAST
     }
-}
 
+    private static class SegmentStatePadding2 extends SegmentStateProducerFields
+    {
+        long p20, p21, p22, p23, p24, p25, p26, p27;
+    }
 
+    private static final class SegmentState extends SegmentStatePadding2
+    {
+    }
+}
@@ -1,13 +1,20 @@
 package com.github.randyklex.dataflow;
 
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 final class SourceCore<TOutput> {
     private final TargetRegistry<TOutput> targetRegistry;
 
-    // TODO: Implement the taskCompletionSource like in .NET. See also getOutgoingLock()
+    private final CompletableFuture<Void> completionTask = new CompletableFuture<>();
 
     private final SingleProducerSingleConsumerQueue<TOutput> messages = new SingleProducerSingleConsumerQueue<>();
 
@@ -23,18 +30,54 @@ final class SourceCore<TOutput> {
 
     private long nextMessageId = 1;
 
+    /*
+     * Records when messages are queued and handed off, or null unless the block records metrics or is
+     * traced. Output messages are sampled by their sequence number, which is their ID less one.
+     */
+    private final MetricsRecorder metrics;
+
+    // The number of messages added, as the sequence number of the next. Only used by the producer.
+    private long messagesAdded;
+
     private ITargetBlock<TOutput> nextMessageReservedFor;
 
-    private boolean decliningPermanently;
+    private volatile boolean decliningPermanently;
 
-    private boolean enableOffering;
+    private boolean enableOffering = true;
 
     private boolean completionReserved;
 
-    private List<Exception> exceptions;
+    /*
+     * Whether a task is currently scheduled or running to offer messages to the linked targets.
+     */
+    private volatile boolean outputProcessingScheduled;
+
+    private volatile List<Exception> exceptions;
+
+    /*
+     * The number of messages offered per acquisition of the outgoing lock when MaxMessagesPerTask is unbounded.
+     * Higher values lower the locking overhead of a busy source; lower values let receivers and reservations
+     * interleave with the offering loop sooner.
+     */
+    private static final int DEFAULT_RELEASE_LOCK_ITERATIONS = 10;
+
+    /*
+     * The maximum number of messages handed to a target in a single offerMessages call.
+     */
+    private static final int OFFER_BATCH_SIZE = 64;
 
-    // TODO implement this lock to use a TaskCompletionSource like .NET
-    private Object getOutgoingLock() { return messages;}
+    /*
+     * Scratch space for the messages of a batch offer. Only used while holding the outgoing lock.
+     */
+    private final TOutput[] offerBatchBuffer = newMessageArray(OFFER_BATCH_SIZE);
+
+    /*
+     * Destination for messages removed from the queue once they've been offered and accepted.
+     * Only used while holding the value lock.
+     */
+    private final MessageWithId<TOutput> removedMessage = new MessageWithId<>();
+
+    private Object getOutgoingLock() { return completionTask;}
 
     private Object getValueLock() { return targetRegistry;}
 
@@ -42,25 +85,38 @@ final class SourceCore<TOutput> {
                DataflowBlockOptions dataflowBlockOptions,
                Consumer<ISourceBlock<TOutput>> completeAction)
     {
-        this(owningSource, dataflowBlockOptions, completeAction, null, null);
+        this(owningSource, dataflowBlockOptions, completeAction, null, null, null);
     }
 
     SourceCore(ISourceBlock<TOutput> owningSource,
                DataflowBlockOptions dataflowBlockOptions,
                Consumer<ISourceBlock<TOutput>> completeAction,
                BiConsumer<ISourceBlock<TOutput>, Integer> itemsRemovedAction,
-               FunctionThreeParameters<ISourceBlock<TOutput>, TOutput, List<TOutput>, Integer> itemCountingFunction)
+               FunctionThreeParameters<ISourceBlock<TOutput>, TOutput, List<TOutput>, Integer> itemCountingFunction,
+               MetricsRecorder metrics)
     {
         this.owningSource = owningSource;
         this.dataflowBlockOptions = dataflowBlockOptions;
         this.itemsRemovedAction = itemsRemovedAction;
         this.itemCountFunction = itemCountingFunction;
         this.completeAction = completeAction;
+        this.metrics = metrics;
 
         this.targetRegistry = new TargetRegistry<TOutput>(owningSource);
     }
 
     AutoCloseable LinkTo(ITargetBlock<TOutput> target, DataflowLinkOptions linkOptions)
+    {
+        return LinkTo(target, linkOptions, null);
+    }
+
+    /*
+     * Links the source to a target, which is only offered the messages that pass the predicate.
+     * The predicate is tested by the source itself, so a filtered link costs no extra hop.
+     *
+     * @param predicate The filter, or null to offer the target every message.
+     */
+    AutoCloseable LinkTo(ITargetBlock<TOutput> target, DataflowLinkOptions linkOptions, Predicate<TOutput> predicate)
     {
         if (target == null)
             throw new IllegalArgumentException("target cannot be null");
@@ -68,41 +124,599 @@ final class SourceCore<TOutput> {
         if (linkOptions == null)
             throw new IllegalArgumentException("linkOptions cannot be null.");
 
-        // TODO: do the async stuff with Task/CompletableFuture
-
         synchronized (getOutgoingLock())
         {
             if (!completionReserved)
             {
-                targetRegistry.add(target, linkOptions);
-                offerToTargets(target);
+                // The registry may wrap the target if it is already linked, so offer to whatever it registered.
+                target = targetRegistry.add(target, linkOptions, predicate);
+                offerToTargets(target, predicate);
                 return Common.CreateUnlinker(getOutgoingLock(), targetRegistry, target);
             }
         }
 
-        // TODO: implement the propagatecompletion stuff here
+        // The source has completed, or is about to. Propagate its completion to the target once it has.
+        if (linkOptions.getPropagateCompletion())
+            Common.propagateCompletionOnceCompleted(completionTask, target);
 
         return AutoCloseables.Nop;
     }
 
     DataflowBlockOptions getDataflowBlockOptions() { return dataflowBlockOptions;}
 
+    /*
+     * Receives the next message if it passes the filter. A null filter accepts any message.
+     */
+    TryResult<TOutput> tryReceive(Predicate<TOutput> filter)
+    {
+        TryResult<TOutput> result = new TryResult<>(false, null);
+
+        synchronized (getOutgoingLock())
+        {
+            // If the next message is reserved for someone, we can't receive it.
+            if (nextMessageReservedFor == null)
+            {
+                result = messages.tryPollIf(filter);
+                if (result.isSuccess())
+                {
+                    if (metrics != null) metrics.messagesHandedOff(nextMessageId - 1, 1);
+                    nextMessageId++;
+
+                    // Now that the next message has changed, reenable offering if it was disabled.
+                    synchronized (getValueLock())
+                    {
+                        enableOffering = true;
+
+                        // If we've completed and there's no more data, we're done. Otherwise,
+                        // the new head message may need to be offered.
+                        completeBlockIfPossible();
+                        offerAsyncIfNecessary(false);
+                    }
+                }
+            }
+        }
+
+        // Notify the owner block that our count has decreased.
+        if (result.isSuccess() && itemsRemovedAction != null)
+        {
+            int count = itemCountFunction != null ? itemCountFunction.apply(owningSource, result.getResult(), null) : 1;
+            itemsRemovedAction.accept(owningSource, count);
+        }
+
+        return result;
+    }
+
+    /*
+     * Receives all of the data currently in the source.
+     */
+    TryResult<List<TOutput>> tryReceiveAll()
+    {
+        List<TOutput> items = null;
+        int countReceived = 0;
+
+        synchronized (getOutgoingLock())
+        {
+            if (nextMessageReservedFor == null && !messages.isEmpty())
+            {
+                items = new ArrayList<>();
+                countReceived = pollInto(items, Integer.MAX_VALUE);
+            }
+        }
+
+        if (countReceived == 0)
+            return new TryResult<>(false, null);
+
+        // Notify the owner block that our count has decreased.
+        if (itemsRemovedAction != null)
+        {
+            int count = itemCountFunction != null ? itemCountFunction.apply(owningSource, null, items) : countReceived;
+            itemsRemovedAction.accept(owningSource, count);
+        }
+
+        return new TryResult<>(true, items);
+    }
+
+    /*
+     * Receives up to maxElements messages into destination, in order, without allocating per message.
+     *
+     * @return The number of messages received.
+     */
+    int drainTo(Collection<? super TOutput> destination, int maxElements)
+    {
+        if (destination == null)
+            throw new IllegalArgumentException("destination cannot be null.");
+
+        int countReceived = 0;
+        int count = 0;
+
+        synchronized (getOutgoingLock())
+        {
+            if (nextMessageReservedFor == null && maxElements > 0 && !messages.isEmpty())
+            {
+                if (itemsRemovedAction == null || itemCountFunction == null)
+                {
+                    countReceived = pollInto(destination, maxElements);
+                    count = countReceived;
+                }
+                else
+                {
+                    // Items that count for more than one message have to be counted one at a time.
+                    List<TOutput> items = new ArrayList<>();
+                    countReceived = pollInto(items, maxElements);
+                    count = itemCountFunction.apply(owningSource, null, items);
+                    destination.addAll(items);
+                }
+            }
+        }
+
+        // Notify the owner block that our count has decreased.
+        if (countReceived > 0 && itemsRemovedAction != null)
+            itemsRemovedAction.accept(owningSource, count);
+
+        return countReceived;
+    }
+
+    /*
+     * Removes up to maxElements messages from the head of the queue into destination, then lets the
+     * source complete or offer whatever is left. Must be called while holding the outgoing lock with
+     * no message reserved.
+     *
+     * @return The number of messages removed.
+     */
+    private int pollInto(Collection<? super TOutput> destination, int maxElements)
+    {
+        int countReceived = 0;
+        synchronized (getValueLock())
+        {
+            while (countReceived < maxElements && messages.tryPoll(removedMessage))
+            {
+                destination.add(removedMessage.value);
+                countReceived++;
+            }
+            removedMessage.clear();
+
+            // Update the next message ID to take into account the received items.
+            if (metrics != null) metrics.messagesHandedOff(nextMessageId - 1, countReceived);
+            nextMessageId += countReceived;
+
+            enableOffering = true;
+            completeBlockIfPossible();
+            offerAsyncIfNecessary(false);
+        }
+
+        return countReceived;
+    }
+
+    /*
+     * Gets the number of items available to be received from this block.
+     */
+    int getOutputCount()
+    {
+        synchronized (getOutgoingLock())
+        {
+            return messages.size();
+        }
+    }
+
+    /*
+     * Gets the number of messages that have left this block, offered to a target or received.
+     */
+    long getMessagesOutput()
+    {
+        synchronized (getOutgoingLock())
+        {
+            return nextMessageId - 1;
+        }
+    }
+
+    /*
+     * Adds a message to the source's output. Calls to addMessage must not be made concurrently.
+     */
+    void addMessage(TOutput item)
+    {
+        if (decliningPermanently)
+            return;
+
+        if (metrics != null) metrics.messagesOutput(messagesAdded++, 1);
+        messages.add(item);
+
+        // Make sure the read of outputProcessingScheduled below isn't reordered before the write to the queue.
+        // This pairs with the fence after the offering loop clears the flag.
+        VarHandle.fullFence();
+
+        if (!outputProcessingScheduled)
+            offerAsyncIfNecessaryWithValueLock();
+    }
+
+    TryResult<TOutput> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("messageHeader is invalid.");
+
+        if (target == null)
+            throw new IllegalArgumentException("target cannot be null.");
+
+        TryResult<TOutput> result;
+        synchronized (getOutgoingLock())
+        {
+            // If this target doesn't hold the reservation, then for this consumeMessage
+            // to be valid, there must not be any reservation (since otherwise we can't
+            // consume a reserved message).
+            if (nextMessageReservedFor != target && nextMessageReservedFor != null)
+                return new TryResult<>(false, null);
+
+            synchronized (getValueLock())
+            {
+                // If the requested message isn't the next message to be served up, bail.
+                if (messageHeader.getId() != nextMessageId)
+                    return new TryResult<>(false, null);
+
+                result = messages.tryPoll();
+                if (!result.isSuccess())
+                    return result;
+
+                nextMessageReservedFor = null;
+                targetRegistry.Remove(target, true);
+                enableOffering = true; // reenable offering if it was disabled
+                if (metrics != null) metrics.messagesHandedOff(nextMessageId - 1, 1);
+                nextMessageId++;
+                completeBlockIfPossible();
+                offerAsyncIfNecessary(false);
+            }
+        }
+
+        // Notify the owner block that our count has decreased.
+        if (itemsRemovedAction != null)
+        {
+            int count = itemCountFunction != null ? itemCountFunction.apply(owningSource, result.getResult(), null) : 1;
+            itemsRemovedAction.accept(owningSource, count);
+        }
+
+        return result;
+    }
+
+    boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("messageHeader is invalid.");
+
+        if (target == null)
+            throw new IllegalArgumentException("target cannot be null.");
+
+        synchronized (getOutgoingLock())
+        {
+            // If no one currently holds a reservation...
+            if (nextMessageReservedFor == null)
+            {
+                synchronized (getValueLock())
+                {
+                    // ...and if the requested message is next in the queue, allow it to be reserved.
+                    if (messageHeader.getId() == nextMessageId && !messages.isEmpty())
+                    {
+                        nextMessageReservedFor = target;
+                        enableOffering = false;
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        if (!messageHeader.isValid())
+            throw new IllegalArgumentException("messageHeader is invalid.");
+
+        if (target == null)
+            throw new IllegalArgumentException("target cannot be null.");
+
+        synchronized (getOutgoingLock())
+        {
+            // If someone else holds the reservation, bail.
+            if (nextMessageReservedFor != target)
+                throw new IllegalStateException("The message was not reserved by the target.");
+
+            synchronized (getValueLock())
+            {
+                // If this is not the message at the head of the queue, bail.
+                if (messageHeader.getId() != nextMessageId || messages.isEmpty())
+                    throw new IllegalStateException("The message was not reserved by the target.");
+
+                // Otherwise, release the reservation.
+                nextMessageReservedFor = null;
+                enableOffering = true;
+
+                // Now that there is no longer a reservation, there may be more messages to offer.
+                offerAsyncIfNecessary(false);
+
+                // If we've completed and there's no more data, we're done.
+                completeBlockIfPossible();
+            }
+        }
+    }
+
+    CompletableFuture<Void> getCompletion() { return completionTask; }
+
+    /*
+     * Signals that no more messages will be added. The source completes once its output has been drained.
+     */
+    void complete()
+    {
+        synchronized (getValueLock())
+        {
+            decliningPermanently = true;
+        }
+
+        // Complete from a scheduled task, since the caller may hold locks of its owning block.
+        Runnable completeIfPossible = () -> {
+            synchronized (getOutgoingLock())
+            {
+                completeBlockIfPossible();
+            }
+        };
+
+        try
+        {
+            dataflowBlockOptions.getScheduler().schedule(completeIfPossible);
+        }
+        catch (RuntimeException exception)
+        {
+            addException(exception);
+            completeIfPossible.run();
+        }
+    }
+
+    /*
+     * Stores an exception that will fault the source's completion.
+     */
+    void addException(Throwable exception)
+    {
+        exception = Common.unwrapCompletionException(exception);
+
+        synchronized (getValueLock())
+        {
+            if (exceptions == null)
+                exceptions = new ArrayList<>();
+
+            exceptions.add(exception instanceof Exception ? (Exception) exception : new CompletionException(exception));
+        }
+    }
+
+    /*
+     * Gets whether the source has had cancellation requested or an exception has occurred.
+     */
+    private boolean getCanceledOrFaulted()
+    {
+        return dataflowBlockOptions.getCancellationToken().isCancellationRequested() || (exceptions != null && decliningPermanently);
+    }
+
+    /*
+     * Completes the block if we're declining permanently and have nothing left to give.
+     * Must be called while holding the outgoing lock.
+     */
+    private void completeBlockIfPossible()
+    {
+        if (!completionReserved)
+        {
+            if (decliningPermanently && // declining permanently, so no more messages will arrive
+                    !outputProcessingScheduled && // no current processing
+                    nextMessageReservedFor == null) // no pending reservation
+            {
+                completeBlockIfPossibleSlow();
+            }
+        }
+    }
+
+    private void completeBlockIfPossibleSlow()
+    {
+        if (messages.isEmpty() || getCanceledOrFaulted())
+        {
+            completionReserved = true;
+
+            // Get out from under the locks the caller holds before completing.
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::completeBlockOncePossible);
+            }
+            catch (RuntimeException exception)
+            {
+                addException(exception);
+                completeBlockOncePossible();
+            }
+        }
+    }
+
+    private void completeBlockOncePossible()
+    {
+        List<Exception> exceptions;
+        TargetRegistry<TOutput>.LinkedTargetInfo[] linkedTargets;
+
+        synchronized (getOutgoingLock())
+        {
+            // Drop any targets. Completion is final.
+            linkedTargets = targetRegistry.ClearEntryPoints();
+
+            // Drop all messages.
+            synchronized (getValueLock())
+            {
+                messages.clear();
+                exceptions = this.exceptions != null ? new ArrayList<>(this.exceptions) : null;
+            }
+        }
+
+        Common.completeWithExceptions(completionTask, exceptions, dataflowBlockOptions.getCancellationToken());
+
+        // Now that the source has completed, complete the targets that asked for it.
+        targetRegistry.propagateCompletion(linkedTargets);
+    }
+
+    private void offerAsyncIfNecessaryWithValueLock()
+    {
+        synchronized (getValueLock())
+        {
+            offerAsyncIfNecessary(false);
+        }
+    }
+
+    /*
+     * Starts an offering loop if there's one to start: no loop is running, offering is
+     * enabled, and there are messages to offer. Must be called while holding the value lock.
+     *
+     * @param isReplacementReplica Whether this call is the loop scheduling its own replacement.
+     */
+    private void offerAsyncIfNecessary(boolean isReplacementReplica)
+    {
+        if (!outputProcessingScheduled && enableOffering && !messages.isEmpty())
+            offerAsyncIfNecessarySlow(isReplacementReplica);
+    }
+
+    private void offerAsyncIfNecessarySlow(boolean isReplacementReplica)
+    {
+        // If there's any work to be done (targets available and messages to process) and
+        // if we're not currently canceled, start a task to do so. Reading the registry doesn't need
+        // the outgoing lock: a target linked after this check is offered the head message as it links.
+        if (targetRegistry.hasTargets() && !getCanceledOrFaulted())
+        {
+            outputProcessingScheduled = true;
+
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::offerMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // Log the exception while the processing state is still set, which keeps the block
+                // from completing. Then revert the processing state and try to complete the block.
+                addException(exception);
+                outputProcessingScheduled = false;
+                decliningPermanently = true;
+
+                // Get out from under the currently held locks by re-taking them in a separate task.
+                Runnable completeIfPossible = () -> {
+                    synchronized (getOutgoingLock())
+                    {
+                        synchronized (getValueLock())
+                        {
+                            completeBlockIfPossible();
+                        }
+                    }
+                };
+                dataflowBlockOptions.getScheduler().schedule(completeIfPossible);
+            }
+        }
+    }
+
+    /*
+     * Offers the queued messages to the linked targets until a message isn't accepted,
+     * the queue is empty, or MaxMessagesPerTask messages have been offered.
+     */
+    private void offerMessagesLoopCore()
+    {
+        try
+        {
+            int maxMessagesPerTask = dataflowBlockOptions.getActualMaxMessagesPerTask();
+
+            // We need to hold the outgoing lock while offering messages. We can either take
+            // the lock and hold it throughout the whole offering loop, or take it for each offer;
+            // this is a tradeoff between overhead and fairness. We take it for a few messages at a
+            // time, or, if MaxMessagesPerTask is set, for the whole task, since the user has
+            // already signaled how much work a task may do.
+            int releaseLockIterations = dataflowBlockOptions.getMaxMessagesPerTask() == DataflowBlockOptions.Unbounded ?
+                    DEFAULT_RELEASE_LOCK_ITERATIONS : maxMessagesPerTask;
+
+            for (int messageCounter = 0; messageCounter < maxMessagesPerTask && !getCanceledOrFaulted(); )
+            {
+                synchronized (getOutgoingLock())
+                {
+                    // While there are more messages to process, offer each in turn to the targets.
+                    // If we're unable to propagate a particular message, stop trying until
+                    // something changes in the future.
+                    for (int lockReleaseCounter = 0;
+                         messageCounter < maxMessagesPerTask && lockReleaseCounter < releaseLockIterations && !getCanceledOrFaulted();
+                         ++lockReleaseCounter)
+                    {
+                        // Hand the first target as many messages as it will take in one call. If it
+                        // takes them all, keep going; otherwise fall back to offering the next message
+                        // to every target in turn, which also takes care of postponement.
+                        int batchLimit = Math.min(OFFER_BATCH_SIZE, maxMessagesPerTask - messageCounter);
+                        int accepted = offerBatchToFirstTarget(batchLimit);
+                        messageCounter += accepted;
+                        if (accepted == batchLimit || messageCounter >= maxMessagesPerTask)
+                            continue;
+
+                        if (!offerToTargets())
+                            return;
+
+                        ++messageCounter;
+                    }
+                }
+            }
+        }
+        catch (Exception exception)
+        {
+            // Record the exception and notify the owning block that it should stop accepting new messages.
+            addException(exception);
+            completeAction.accept(owningSource);
+        }
+        finally
+        {
+            synchronized (getOutgoingLock())
+            {
+                synchronized (getValueLock())
+                {
+                    // We're no longer processing, so clear the processing flag.
+                    outputProcessingScheduled = false;
+
+                    // Synchronize with addMessage and its read of outputProcessingScheduled.
+                    VarHandle.fullFence();
+
+                    // However, we may have given up early because we hit our own configured
+                    // processing limits rather than because we ran out of work to do. If that's
+                    // the case, make sure we spin up another task to keep going.
+                    offerAsyncIfNecessary(true);
+
+                    // If, however, we stopped because we ran out of work to do and we
+                    // know we'll never get more, then complete.
+                    completeBlockIfPossible();
+                }
+            }
+        }
+    }
+
     private boolean offerToTargets()
     {
-        return offerToTargets(null);
+        return offerToTargets(null, null);
     }
 
-    private boolean offerToTargets(ITargetBlock<TOutput> linkToTarget)
+    /*
+     * Offers the message at the head of the queue to the linked targets, in link order,
+     * until one accepts it. Must be called while holding the outgoing lock.
+     *
+     * @param linkToTarget The newly linked target, if called as part of linking. Null otherwise.
+     * @param linkToFilter The predicate of the newly linked target, or null if it has none.
+     * @return true if the message was accepted, false if there was no message or no one accepted it.
+     */
+    private boolean offerToTargets(ITargetBlock<TOutput> linkToTarget, Predicate<TOutput> linkToFilter)
     {
+        // If the next message is reserved, we can't offer anything.
         if (nextMessageReservedFor != null)
             return false;
 
-        DataflowMessageHeader header = new DataflowMessageHeader(DataflowMessageHeader.DEFAULT_VALUE);
+        DataflowMessageHeader header = null;
         TOutput message = null;
         boolean offerJustToLinkToTarget = false;
 
-        // TODO: do the volatile stuff here.
-        if (enableOffering)
+        // If offering isn't enabled and if we're not doing this as a result of linkTo, bail.
+        // Otherwise, with a linkTo on a disabled source, we'll offer just to the new target.
+        boolean offeringEnabled;
+        synchronized (getValueLock())
+        {
+            offeringEnabled = enableOffering;
+        }
+
+        if (!offeringEnabled)
         {
             if (linkToTarget == null)
                 return false;
@@ -110,28 +724,47 @@ final class SourceCore<TOutput> {
                 offerJustToLinkToTarget = true;
         }
 
-        // TODO: do the peak stuff in messages.
+        // Otherwise, peek at the next message.
+        TryResult<TOutput> peeked = messages.tryPeek();
+        if (peeked.isSuccess())
+        {
+            header = new DataflowMessageHeader(nextMessageId);
+            message = peeked.getResult();
+        }
 
+        // If there is a message, offer it.
         boolean messageWasAccepted = false;
-        if (header.isValid())
+        if (header != null)
         {
             if (offerJustToLinkToTarget)
             {
-                TryResult<Boolean> result = offerMessageToTarget(header, message, linkToTarget);
+                // If we've already offered the message to everyone else,
+                // we can just offer it to the newly linked target.
+                if (linkToFilter == null || linkToFilter.test(message))
+                    messageWasAccepted = offerMessageToTarget(header, message, linkToTarget).getResult();
             }
             else
             {
-                TargetRegistry<TOutput>.LinkedTargetInfo cur = targetRegistry.getFirstTargetNode();
-                while (cur != null)
+                // Otherwise, we've not yet offered this message to anyone, so even if linkToTarget
+                // is non-null, we need to propagate the message in order through all of the
+                // registered targets, the first of which will be the linkToTarget.
+                // The route only holds the links that may take the message, and isn't affected by targets
+                // unlinking themselves while they're offered it.
+                TargetRegistry<TOutput>.Route route = targetRegistry.route(message);
+                for (int i = 0; i < route.targets.length; i++)
                 {
-                    TargetRegistry<TOutput>.LinkedTargetInfo next = cur.Next;
-                    TryResult<Boolean> result = offerMessageToTarget(header, message, cur.Target);
+                    if (!route.passes(i, message))
+                        continue;
+
+                    TryResult<Boolean> result = offerMessageToTarget(header, message, route.targets[i].Target);
                     if (result.isSuccess())
+                    {
+                        messageWasAccepted = result.getResult();
                         break;
-
-                    cur = next;
+                    }
                 }
 
+                // If none of the targets accepted the message, disable offering.
                 if (!messageWasAccepted)
                 {
                     synchronized (getValueLock())
@@ -142,17 +775,138 @@ final class SourceCore<TOutput> {
             }
         }
 
+        // If a message got accepted, consume it and reenable offering.
         if (messageWasAccepted)
         {
             synchronized (getValueLock())
             {
-                TOutput dropped;
+                // This should be the same message we peeked at earlier.
+                assert nextMessageId == header.getId();
+                messages.tryPoll(removedMessage);
+                removedMessage.clear();
+                if (metrics != null) metrics.messagesHandedOff(nextMessageId - 1, 1);
+                nextMessageId++;
+
+                // The message was accepted, so there's now going to be a new next message.
+                // If offering had been disabled, reenable it.
+                enableOffering = true;
+
+                // Now that a message has been removed, we need to complete if possible or
+                // asynchronously offer if necessary. However, if we're calling this as part of our
+                // offering loop, we won't be able to do either, since by definition there's already
+                // a processing task spun up (us) that would prevent these things. So we only
+                // do the checks if we're being called to add a new link.
+                if (linkToTarget != null)
+                {
+                    completeBlockIfPossible();
+                    offerAsyncIfNecessary(false);
+                }
+            }
+
+            // Notify the owner block that our count has decreased.
+            if (itemsRemovedAction != null)
+            {
+                int count = itemCountFunction != null ? itemCountFunction.apply(owningSource, message, null) : 1;
+                itemsRemovedAction.accept(owningSource, count);
             }
         }
 
         return messageWasAccepted;
     }
 
+    /*
+     * Offers a run of messages from the head of the queue to the first linked target in one call.
+     * Must be called while holding the outgoing lock.
+     *
+     * Whatever the first target accepts is exactly what it would have accepted had the messages been
+     * offered one at a time, since every message is offered to the first target before any other. The
+     * batch path is skipped for links with a message limit, which are counted down one message at a time,
+     * and for filtered links, whose predicate is tested one message at a time.
+     *
+     * @return The number of messages accepted, which may be zero.
+     */
+    private int offerBatchToFirstTarget(int maxCount)
+    {
+        if (nextMessageReservedFor != null || maxCount < 2)
+            return 0;
+
+        synchronized (getValueLock())
+        {
+            if (!enableOffering)
+                return 0;
+        }
+
+        TargetRegistry<TOutput>.LinkedTargetInfo[] targets = targetRegistry.getTargets();
+        if (targets.length == 0 || targets[0].RemainingMessages != DataflowLinkOptions.Unbounded || targets[0].Filter != null)
+            return 0;
+
+        TargetRegistry<TOutput>.LinkedTargetInfo first = targets[0];
+
+        int count = messages.peekRange(offerBatchBuffer, maxCount);
+        if (count < 2)
+        {
+            Arrays.fill(offerBatchBuffer, 0, count, null);
+            return 0;
+        }
+
+        int accepted;
+        int removedCount = 0;
+        try
+        {
+            List<TOutput> batch = Arrays.asList(offerBatchBuffer).subList(0, count);
+            accepted = first.Target.offerMessages(new DataflowMessageHeader(nextMessageId), batch, owningSource);
+            assert accepted >= 0 && accepted <= count;
+
+            if (accepted > 0 && itemsRemovedAction != null)
+            {
+                for (int i = 0; i < accepted; i++)
+                    removedCount += itemCountFunction != null ? itemCountFunction.apply(owningSource, offerBatchBuffer[i], null) : 1;
+            }
+        }
+        finally
+        {
+            // Don't keep messages reachable after they've left the source.
+            Arrays.fill(offerBatchBuffer, 0, count, null);
+        }
+
+        if (accepted > 0)
+        {
+            synchronized (getValueLock())
+            {
+                for (int i = 0; i < accepted; i++)
+                    messages.tryPoll(removedMessage);
+
+                removedMessage.clear();
+
+                if (metrics != null) metrics.messagesHandedOff(nextMessageId - 1, accepted);
+                nextMessageId += accepted;
+                enableOffering = true;
+            }
+
+            // Notify the owner block that our count has decreased.
+            if (itemsRemovedAction != null)
+                itemsRemovedAction.accept(owningSource, removedCount);
+        }
+
+        return accepted;
+    }
+
+    /*
+     * Creates the scratch array for batch offers. It only ever holds TOutput values and is never
+     * handed out as a TOutput[], so its erased element type is safe.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newMessageArray(int length)
+    {
+        return (T[]) new Object[length];
+    }
+
+    /*
+     * Offers a message to a single target.
+     *
+     * @return A result whose success means offering should stop, either because the target
+     * accepted the message or because it reserved it, and whose value is whether it was accepted.
+     */
     private TryResult<Boolean> offerMessageToTarget(DataflowMessageHeader header, TOutput message, ITargetBlock<TOutput> target)
     {
         DataflowMessageStatus offerResult = target.offerMessage(header, message, owningSource, false);
@@ -175,6 +929,4 @@ final class SourceCore<TOutput> {
         // allow the message to be offered to someone else.
         return new TryResult<>(false, false);
     }
-
-
 }
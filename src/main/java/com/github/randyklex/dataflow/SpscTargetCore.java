@@ -1,31 +1,51 @@
 package com.github.randyklex.dataflow;
 
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 final class SpscTargetCore<TInput> {
+    private static final AtomicInteger dedicatedThreadNumber = new AtomicInteger(1);
+
     private final ITargetBlock<TInput> owningTarget;
     private final SingleProducerSingleConsumerQueue<TInput> messages = new SingleProducerSingleConsumerQueue<>();
     private final ExecutionDataflowBlockOptions blockOptions;
     private final Consumer<TInput> action;
+    private final MetricsRecorder metrics;
+
+    private final CompletableFuture<Void> completionSource = new CompletableFuture<>();
 
-    // TODO: figure out volatile in java.
-    private List<Exception> exceptions;
+    // Created when the first exception is stored. Guarded by this.
+    private volatile List<Exception> exceptions;
 
-    // TODO: readup on java version of 'volatile'
-    private boolean decliningPermanently;
+    private volatile boolean decliningPermanently;
 
-    // TODO: readup on java version of 'volatile'
-    private boolean completionReserved;
+    // Only touched by the consumer, or by a producer whose scheduling failed while no consumer was active.
+    private volatile boolean completionReserved;
 
-    // TODO: implement the Task and TaskCompletionSource
     private AtomicReference<CompletableFuture<Void>> activeConsumer;
 
-    SpscTargetCore(ITargetBlock<TInput> owningTarget, Consumer<TInput> action, ExecutionDataflowBlockOptions dataflowBlockOptions)
+    // The thread of a block with DedicatedThread set, which is its consumer for good. Null otherwise.
+    private final Thread dedicatedConsumer;
+
+    // Whether the dedicated consumer is parked, or about to park, so producers have to wake it.
+    private volatile boolean dedicatedConsumerParked;
+
+    // The queue doesn't number its messages, so with metrics enabled each side counts them to decide
+    // which are sampled. Only touched by the producer and the active consumer, respectively.
+    private long producerSequence;
+    private long consumerSequence;
+    // The consumerSequence at which the processed count was last added to the metrics.
+    private long consumerSequenceRecorded;
+
+    SpscTargetCore(ITargetBlock<TInput> owningTarget, Consumer<TInput> action, ExecutionDataflowBlockOptions dataflowBlockOptions, MetricsRecorder metrics)
     {
         assert owningTarget != null;
         assert action != null;
@@ -34,8 +54,20 @@ final class SpscTargetCore<TInput> {
         this.owningTarget = owningTarget;
         this.action = action;
         this.blockOptions = dataflowBlockOptions;
+        this.metrics = metrics;
 
         activeConsumer = new AtomicReference<>();
+
+        if (dataflowBlockOptions.getDedicatedThread())
+        {
+            // The consumer is always active, so producers never schedule another.
+            activeConsumer.set(new CompletableFuture<>());
+            dedicatedConsumer = new Thread(this::runDedicatedConsumer, "dataflow-dedicated-" + dedicatedThreadNumber.getAndIncrement());
+            dedicatedConsumer.setDaemon(true);
+            dedicatedConsumer.start();
+        }
+        else
+            dedicatedConsumer = null;
     }
 
     boolean post(TInput messageValue)
@@ -43,12 +75,12 @@ final class SpscTargetCore<TInput> {
         if (decliningPermanently)
             return false;
 
+        if (metrics != null) metrics.messagesQueued(producerSequence++, 1);
         messages.add(messageValue);
 
         // TODO: implement the memory barrier
 
-        if (activeConsumer.get() == null)
-            scheduleConsumerIfNecessary(false);
+        ensureConsumer();
 
         return true;
     }
@@ -74,20 +106,64 @@ final class SpscTargetCore<TInput> {
             if (source == null)
                 throw new IllegalArgumentException("source cannot be null.");
 
-            boolean consumed;
             TryResult<TInput> result = source.consumeMessage(messageHeader, owningTarget);
             if (!result.isSuccess())
                 return DataflowMessageStatus.NotAvailable;
+
+            messageValue = result.getResult();
         }
 
+        if (metrics != null) metrics.messagesQueued(producerSequence++, 1);
         messages.add(messageValue);
         // TODO: add the memory barrier stuff
-        if (activeConsumer.get() == null)
-            scheduleConsumerIfNecessary(false);
+        ensureConsumer();
 
         return DataflowMessageStatus.Accepted;
     }
 
+    /*
+     * Accepts a run of messages, scheduling the consumer at most once. See @see ITargetBlock#offerMessages.
+     */
+    int offerMessages(DataflowMessageHeader firstMessageHeader, List<TInput> messageValues, ISourceBlock<TInput> source)
+    {
+        if (!firstMessageHeader.isValid())
+            throw new IllegalArgumentException("message is not valid.");
+
+        if (decliningPermanently)
+            return 0;
+
+        if (metrics != null)
+        {
+            metrics.messagesQueued(producerSequence, messageValues.size());
+            producerSequence += messageValues.size();
+        }
+
+        for (int i = 0; i < messageValues.size(); i++)
+            messages.add(messageValues.get(i));
+
+        ensureConsumer();
+
+        return messageValues.size();
+    }
+
+    /*
+     * Makes sure that a consumer will see what a producer just did: schedules one if none is active, or
+     * wakes the dedicated consumer if it's parked.
+     */
+    private void ensureConsumer()
+    {
+        if (activeConsumer.get() == null)
+            scheduleConsumerIfNecessary(false);
+        else if (dedicatedConsumer != null)
+        {
+            // Pairs with the fence in parkDedicatedConsumer: either we see the consumer parked,
+            // or it sees the message or completion before it parks.
+            VarHandle.fullFence();
+            if (dedicatedConsumerParked)
+                LockSupport.unpark(dedicatedConsumer);
+        }
+    }
+
     private void scheduleConsumerIfNecessary(boolean isReplica)
     {
         if (activeConsumer.get() == null)
@@ -97,12 +173,20 @@ final class SpscTargetCore<TInput> {
             CompletableFuture<Void> newConsumer = new CompletableFuture<>();
             if (activeConsumer.compareAndSet(null, newConsumer))
             {
-                // TODO: skipped the FEATURE_TRACING
-
-                Executors.newCachedThreadPool().submit(() -> {
-                    processMessagesLoopCore();
-                    newConsumer.complete(null);
-                });
+                try
+                {
+                    blockOptions.getScheduler().schedule(() -> {
+                        processMessagesLoopCore();
+                        newConsumer.complete(null);
+                    });
+                }
+                catch (RuntimeException exception)
+                {
+                    // The scheduler refused the work. Store the exception and complete the block.
+                    StoreException(exception);
+                    completionReserved = true;
+                    completeBlockOncePossible();
+                }
             }
         }
     }
@@ -114,38 +198,48 @@ final class SpscTargetCore<TInput> {
         int messagesProcessed = 0;
         int maxMessagesToProcess = blockOptions.getActualMaxMessagesPerTask();
 
+        // Reused for every message this task processes, so processing doesn't allocate per message.
+        MessageWithId<TInput> nextMessage = new MessageWithId<>();
+
         boolean continueProcessing = true;
 
         while (continueProcessing)
         {
             continueProcessing = false;
-            TInput nextMessage = null;
             try
             {
-                TryResult<TInput> result = messages.tryPoll();
-                while (exceptions == null && messagesProcessed < maxMessagesToProcess && result.isSuccess())
+                while (exceptions == null && !isCanceled() && messagesProcessed < maxMessagesToProcess && messages.tryPoll(nextMessage))
                 {
-                    nextMessage = result.getResult();
                     messagesProcessed++;
-                    action.accept(nextMessage);
-
-                    result = messages.tryPoll();
+                    if (metrics == null)
+                        action.accept(nextMessage.value);
+                    else
+                        processMessageWithMetrics(nextMessage.value);
                 }
             }
+            catch (CancellationException exception)
+            {
+                // Cooperative cancellation just drops the message.
+            }
             catch (Exception exception)
             {
-                // TODO: implement the exception handling
+                // Any other exception faults the block: stop accepting messages and complete once we're out.
+                decliningPermanently = true;
+                StoreException(exception);
             }
             finally
             {
-                if (messages.isEmpty() && exceptions == null && (messagesProcessed < maxMessagesToProcess))
+                if (metrics != null)
+                    recordMessagesProcessed();
+
+                if (!messages.isEmpty() && exceptions == null && !isCanceled() && (messagesProcessed < maxMessagesToProcess))
                 {
                     continueProcessing = true;
                 }
                 else
                 {
                     boolean wasDecliningPermanently = decliningPermanently;
-                    if ((wasDecliningPermanently && messages.isEmpty()) || exceptions != null)
+                    if ((wasDecliningPermanently && (messages.isEmpty() || isCanceled())) || exceptions != null)
                     {
                         if (!completionReserved)
                         {
@@ -153,6 +247,11 @@ final class SpscTargetCore<TInput> {
                             completeBlockOncePossible();
                         }
                     }
+                    else if (blockOptions.getIdleWaitNanos() > 0 && messagesProcessed < maxMessagesToProcess && awaitMessageOrCompletion(blockOptions.getIdleWaitNanos()))
+                    {
+                        // Something arrived while we waited, so handle it on this thread.
+                        continueProcessing = true;
+                    }
                     else
                     {
                         // TODO: implement this else condition
@@ -168,8 +267,153 @@ final class SpscTargetCore<TInput> {
         }
     }
 
+    /*
+     * The body of a dedicated consumer: processes messages as they arrive, waiting for them as the block's
+     * WaitStrategy says, until the block completes or faults.
+     */
+    private void runDedicatedConsumer()
+    {
+        MessageWithId<TInput> nextMessage = new MessageWithId<>();
+
+        while (true)
+        {
+            try
+            {
+                while (exceptions == null && !isCanceled() && messages.tryPoll(nextMessage))
+                {
+                    if (metrics == null)
+                        action.accept(nextMessage.value);
+                    else
+                        processMessageWithMetrics(nextMessage.value);
+                }
+            }
+            catch (CancellationException exception)
+            {
+                // Cooperative cancellation just drops the message.
+            }
+            catch (Throwable exception)
+            {
+                // Anything else faults the block, errors included, since nothing else would ever complete
+                // it once this thread died: stop accepting messages and complete.
+                decliningPermanently = true;
+                StoreException(exception instanceof Exception ? (Exception) exception : new CompletionException(exception));
+            }
+
+            if (metrics != null)
+                recordMessagesProcessed();
+
+            if ((decliningPermanently && (messages.isEmpty() || isCanceled())) || exceptions != null)
+            {
+                completionReserved = true;
+                completeBlockOncePossible();
+                activeConsumer.get().complete(null);
+                return;
+            }
+
+            if (messages.isEmpty())
+                awaitMessageOnDedicatedThread();
+        }
+    }
+
+    private void awaitMessageOnDedicatedThread()
+    {
+        switch (blockOptions.getWaitStrategy())
+        {
+            case BusySpin:
+                while (messages.isEmpty() && !decliningPermanently)
+                    Thread.onSpinWait();
+                break;
+
+            case Yielding:
+                awaitMessageOrCompletion(Long.MAX_VALUE);
+                break;
+
+            default:
+                if (blockOptions.getIdleWaitNanos() == 0 || !awaitMessageOrCompletion(blockOptions.getIdleWaitNanos()))
+                    parkDedicatedConsumer();
+                break;
+        }
+    }
+
+    private void parkDedicatedConsumer()
+    {
+        dedicatedConsumerParked = true;
+
+        // Pairs with the fence in ensureConsumer.
+        VarHandle.fullFence();
+
+        while (messages.isEmpty() && !decliningPermanently)
+            LockSupport.park(this);
+
+        dedicatedConsumerParked = false;
+    }
+
+    /*
+     * Waits up to waitNanos for a message to arrive or for the block to be completed, spinning at first
+     * and then yielding. Spinning can't help on a single processor, where the producer can't run while the
+     * consumer spins, so there it yields straight away.
+     */
+    private boolean awaitMessageOrCompletion(long waitNanos)
+    {
+        long deadline = System.nanoTime() + waitNanos;
+        int spinsLeft = Common.IS_SINGLE_PROCESSOR ? 0 : Common.IDLE_WAIT_SPIN_COUNT;
+
+        for (int i = 1; ; i++)
+        {
+            if (!messages.isEmpty() || decliningPermanently)
+                return true;
+
+            // A yield can take a while, so the clock is checked after every one.
+            if ((spinsLeft == 0 || i % Common.IDLE_WAIT_CLOCK_CHECK_INTERVAL == 0) && System.nanoTime() - deadline >= 0)
+                return false;
+
+            if (spinsLeft > 0)
+            {
+                spinsLeft--;
+                Thread.onSpinWait();
+            }
+            else
+                Thread.yield();
+        }
+    }
+
+    private void processMessageWithMetrics(TInput messageValue)
+    {
+        long sequence = consumerSequence++;
+        if (metrics.isSampled(sequence))
+        {
+            // Sampled messages are timed, and also flush the processed count so that it keeps up
+            // with a long-running consumer.
+            long start = metrics.sampledMessageStarting(sequence);
+            action.accept(messageValue);
+            metrics.sampledMessageProcessed(start);
+            recordMessagesProcessed();
+        }
+        else
+            action.accept(messageValue);
+    }
+
+    private void recordMessagesProcessed()
+    {
+        metrics.messagesProcessed.add(consumerSequence - consumerSequenceRecorded);
+        consumerSequenceRecorded = consumerSequence;
+    }
+
     int getInputSize() { return messages.size(); }
 
+    /*
+     * Gets the recorder for the block's metrics, or null if they're disabled.
+     */
+    MetricsRecorder getMetricsRecorder() { return metrics; }
+
+    /*
+     * Creates the metrics of a block built on this core.
+     */
+    DataflowBlockMetrics createMetrics()
+    {
+        return new DataflowBlockMetrics(metrics, this::getInputSize, null, null, null, null, null);
+    }
+
     void complete(Exception exception)
     {
         if (!decliningPermanently)
@@ -178,18 +422,32 @@ final class SpscTargetCore<TInput> {
                 StoreException(exception);
 
             decliningPermanently = true;
-            scheduleConsumerIfNecessary(false);
+            ensureConsumer();
         }
     }
 
-    private void StoreException(Exception exception)
+    /*
+     * Stops the block once its cancellation token is canceled. It declines further messages, drops the ones
+     * it hasn't processed, and completes as canceled once the message being processed, if any, is done.
+     */
+    void cancel()
     {
-        // TODO: this is really weird to me.. I don't think we want to do this, but just stubbing in for now.
-        if (exceptions == null)
-            exceptions = new ArrayList<>();
+        decliningPermanently = true;
+        ensureConsumer();
+    }
+
+    private boolean isCanceled()
+    {
+        return blockOptions.getCancellationToken().isCancellationRequested();
+    }
 
-        synchronized (exceptions)
+    private void StoreException(Exception exception)
+    {
+        synchronized (this)
         {
+            if (exceptions == null)
+                exceptions = new ArrayList<>();
+
             exceptions.add(exception);
         }
     }
@@ -198,28 +456,21 @@ final class SpscTargetCore<TInput> {
     {
         assert completionReserved;
 
-        TInput dumpedMessage;
-        TryResult<TInput> result = messages.tryPoll();
-        while (result.isSuccess())
-        {
-            result = messages.tryPoll();
-        }
+        messages.clear();
 
-        if (exceptions != null)
+        List<Exception> exceptions;
+        synchronized (this)
         {
-            Exception[] exceptions;
-            synchronized (this.exceptions)
-            {
-                exceptions = (Exception[])this.exceptions.toArray();
-            }
-            // TODO: add the completionSource stuff here.
+            exceptions = this.exceptions != null ? new ArrayList<>(this.exceptions) : null;
         }
-        // TODO: add the completion source stuff here.
 
-        // TODO: skipped the FEATURE_TRACING
+        Common.completeWithExceptions(completionSource, exceptions, blockOptions.getCancellationToken());
     }
 
-    // TODO: implement the Completion method
+    /*
+     * Gets a future that completes once the core has completed and finished processing.
+     */
+    CompletableFuture<Void> getCompletion() { return completionSource; }
 
     ExecutionDataflowBlockOptions getDataflowBlockOptions() { return blockOptions; }
 
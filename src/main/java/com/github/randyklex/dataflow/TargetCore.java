@@ -1,9 +1,14 @@
 package com.github.randyklex.dataflow;
 
-import java.util.AbstractMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
 
 public class TargetCore<TInput> {
 
@@ -12,27 +17,60 @@ public class TargetCore<TInput> {
         NONE, USES_ASYNC_COMPLETION, REPRESENTS_BLOCK_COMPLETION;
     }
 
+    private static final VarHandle NEXT_AVAILABLE_INPUT_MESSAGE_ID;
+    private static final VarHandle OFFERS_IN_PROGRESS;
+
+    static
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NEXT_AVAILABLE_INPUT_MESSAGE_ID = lookup.findVarHandle(TargetCore.class, "nextAvailableInputMessageId", long.class);
+            OFFERS_IN_PROGRESS = lookup.findVarHandle(TargetCore.class, "offersInProgress", int.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final ITargetBlock<TInput> owningTarget;
-    private final IProducerConsumerQueue<AbstractMap.SimpleEntry<TInput, Long>> messages;
+    private final IMessageQueue<TInput> messages;
     private final ExecutionDataflowBlockOptions dataflowBlockOptions;
-    private final Consumer<AbstractMap.SimpleEntry<TInput, Long>> callAction;
+    private final ObjLongConsumer<TInput> callAction;
     private final EnumSet<TargetCoreOptions> targetCoreOptions;
     private final BoundingStateWithPostponed<TInput> boundingState;
     private final IReorderingBuffer reorderingBuffer;
+    // Shared with the block's source half, if it has one. Null unless the block records metrics or is traced.
+    private final MetricsRecorder metrics;
+
+    // Whether offers that don't need to consume from their source can skip the incoming lock.
+    // See offerMessageWithoutLock.
+    private final boolean acceptsWithoutLock;
 
-    private boolean decliningPermanently;
-    private int numberOfOutstandingOperations;
-    private int numberOfOutstandingServiceTasks;
+    private final CompletableFuture<Void> completionSource = new CompletableFuture<>();
+
+    private volatile List<Exception> exceptions;
+    private volatile boolean decliningPermanently;
+    // Only written under the incoming lock, but read without it by offerMessageWithoutLock.
+    private volatile int numberOfOutstandingOperations;
+    private volatile int numberOfOutstandingServiceTasks;
     // TODO: convert this variable below to an optimized padded variable per the original source
-    private long nextAvailableInputMessageId;
+    private volatile long nextAvailableInputMessageId; // accessed through NEXT_AVAILABLE_INPUT_MESSAGE_ID
+    // The number of offers between checking decliningPermanently and adding their messages without the lock.
+    private volatile int offersInProgress; // accessed through OFFERS_IN_PROGRESS
     private boolean completionReserved;
     private int keepAliveBanCounter;
+    // The number of messages a processing task handles before checking for other work queued on the
+    // scheduler, when MaxMessagesPerTask is unbounded. Adapted by shouldYieldToQueuedWork.
+    private int messagesPerQuantum = Common.MIN_MESSAGES_PER_QUANTUM;
 
     TargetCore(ITargetBlock<TInput> owningTarget,
-               Consumer<AbstractMap.SimpleEntry<TInput, Long>> callAction,
+               ObjLongConsumer<TInput> callAction,
                IReorderingBuffer reorderingBuffer,
                ExecutionDataflowBlockOptions dataflowBlockOptions,
-               EnumSet<TargetCoreOptions> targetCoreOptions)
+               EnumSet<TargetCoreOptions> targetCoreOptions,
+               MetricsRecorder metrics)
     {
         if (owningTarget == null)
             throw new IllegalArgumentException("Core must be associated with a target block.");
@@ -45,11 +83,18 @@ public class TargetCore<TInput> {
         this.reorderingBuffer = reorderingBuffer;
         this.dataflowBlockOptions = dataflowBlockOptions;
         this.targetCoreOptions = targetCoreOptions;
+        this.metrics = metrics;
 
+        // Messages are only ever added while holding the incoming lock, so there's a single producer at a
+        // time. With a bounded capacity, the bounding count keeps the queue from ever holding more than
+        // the bound, so a preallocated ring can take the place of a linked queue.
+        int boundedCapacity = dataflowBlockOptions.getBoundedCapacity();
         if (dataflowBlockOptions.getMaxDegreeOfParallelism() == 1)
-            messages = new SingleProducerSingleConsumerQueue<>();
+            messages = new SingleProducerSingleConsumerQueue<>(true);
+        else if (boundedCapacity != DataflowBlockOptions.Unbounded && boundedCapacity <= BoundedMultiProducerMultiConsumerMessageQueue.MAX_CAPACITY)
+            messages = new BoundedMultiProducerMultiConsumerMessageQueue<>(boundedCapacity);
         else
-            messages = new MultiProducerMultiConsumerQueue<>();
+            messages = new MultiProducerMultiConsumerMessageQueue<>();
 
         if (dataflowBlockOptions.getBoundedCapacity() != com.github.randyklex.dataflow.DataflowBlockOptions.Unbounded) {
             // TODO: throw exception based on original source.
@@ -57,6 +102,10 @@ public class TargetCore<TInput> {
         }
         else
             boundingState = null;
+
+        // With a bound, accepting a message has to be decided together with the bounding count and the
+        // postponed messages, so only an unbounded block whose queue takes concurrent producers qualifies.
+        acceptsWithoutLock = boundingState == null && !(messages instanceof SingleProducerSingleConsumerQueue);
     }
 
     private Object getIncomingLock() { return messages;}
@@ -76,17 +125,12 @@ public class TargetCore<TInput> {
         {
             if (exception != null && (!decliningPermanently || storeExceptionEvenIfAlreadyCompleting))
             {
-                // TODO: add the exception.
+                Throwable toStore = unwrapInnerExceptions ? Common.unwrapCompletionException(exception) : exception;
+                addException(toStore instanceof Exception ? (Exception) toStore : exception);
             }
 
             if (dropPendingMessages)
-            {
-                TryResult<AbstractMap.SimpleEntry<TInput, Long>> result = messages.tryPoll();
-                while (result.isSuccess())
-                {
-                    result = messages.tryPoll();
-                }
-            }
+                clearMessages();
 
             if (revertProcessingState)
             {
@@ -111,6 +155,9 @@ public class TargetCore<TInput> {
         if (source == null && consumeToAccept)
             throw new IllegalArgumentException("Can't consume from a null source.");
 
+        if (acceptsWithoutLock && !consumeToAccept && offerMessageWithoutLock(messageValue))
+            return DataflowMessageStatus.Accepted;
+
         synchronized (getIncomingLock()) {
             if (decliningPermanently) {
                 completeBlockIfPossible();
@@ -134,17 +181,19 @@ public class TargetCore<TInput> {
                         messageValue = result.getResult();
                 }
 
-                long messageId = nextAvailableInputMessageId++;
+                long messageId = takeMessageIds(1);
 
                 if (boundingState != null) boundingState.CurrentCount += 1;
 
-                messages.add(new AbstractMap.SimpleEntry<>(messageValue, messageId));
+                if (metrics != null) metrics.messagesQueued(messageId, 1);
+                messages.add(messageValue, messageId);
                 ProcessAsyncIfNecessary();
                 return DataflowMessageStatus.Accepted;
             }
             else if (source != null)
             {
                 boundingState.postponedMessages.put(source, messageHeader);
+                if (metrics != null) metrics.messagesPostponed.increment();
                 ProcessAsyncIfNecessary();
                 return DataflowMessageStatus.Postponed;
             }
@@ -153,11 +202,209 @@ public class TargetCore<TInput> {
         }
     }
 
+    /*
+     * Accepts as many of a run of messages as the block has room for under a single acquisition
+     * of the incoming lock. See @see ITargetBlock#offerMessages.
+     */
+    int offerMessages(DataflowMessageHeader firstMessageHeader,
+                      List<TInput> messageValues,
+                      ISourceBlock<TInput> source)
+    {
+        if (!firstMessageHeader.isValid())
+            throw new IllegalArgumentException("message header is invalid.");
+
+        if (acceptsWithoutLock)
+            return offerMessagesWithoutLock(messageValues);
+
+        synchronized (getIncomingLock())
+        {
+            if (decliningPermanently)
+            {
+                completeBlockIfPossible();
+                return 0;
+            }
+
+            int count = messageValues.size();
+            if (boundingState != null)
+            {
+                // The same rules as offerMessage apply: messages may only be accepted directly when there's room
+                // and nothing is postponed or in transfer. Whatever doesn't fit is offered again individually,
+                // and gets postponed then.
+                if (boundingState.outstandingTransfers != 0 || boundingState.postponedMessages.size() != 0)
+                    return 0;
+
+                count = Math.min(count, boundingState.boundedCapacity - boundingState.CurrentCount);
+                if (count <= 0)
+                    return 0;
+
+                boundingState.CurrentCount += count;
+            }
+
+            long messageId = takeMessageIds(count);
+            if (metrics != null) metrics.messagesQueued(messageId, count);
+            for (int i = 0; i < count; i++)
+                messages.add(messageValues.get(i), messageId + i);
+
+            processAsyncIfNecessary();
+            return count;
+        }
+    }
+
+    /*
+     * Accepts a message into an unbounded block without taking the incoming lock, as long as the
+     * block isn't declining permanently. The lock is only taken afterwards if a processing task may
+     * need to be launched, or if the block started completing in the meantime.
+     *
+     * An offer announces itself in offersInProgress before it checks decliningPermanently, and
+     * completion sets decliningPermanently before it checks offersInProgress. Both are volatile, so
+     * either the offer sees that the block is declining and falls back to the lock, or completion
+     * sees the offer and leaves it to call completeBlockIfPossible once its message is queued.
+     *
+     * @return Whether the message was accepted. If not, the offer must be retried under the lock.
+     */
+    private boolean offerMessageWithoutLock(TInput messageValue)
+    {
+        OFFERS_IN_PROGRESS.getAndAdd(this, 1);
+        if (decliningPermanently)
+        {
+            OFFERS_IN_PROGRESS.getAndAdd(this, -1);
+            return false;
+        }
+
+        long messageId = takeMessageIds(1);
+        if (metrics != null) metrics.messagesQueued(messageId, 1);
+        messages.add(messageValue, messageId);
+        OFFERS_IN_PROGRESS.getAndAdd(this, -1);
+
+        processAsyncAfterOfferWithoutLock();
+        return true;
+    }
+
+    /*
+     * The batch counterpart of offerMessageWithoutLock. Every message is accepted unless the block
+     * is declining permanently, which is only decided under the lock.
+     */
+    private int offerMessagesWithoutLock(List<TInput> messageValues)
+    {
+        OFFERS_IN_PROGRESS.getAndAdd(this, 1);
+        if (decliningPermanently)
+        {
+            OFFERS_IN_PROGRESS.getAndAdd(this, -1);
+            synchronized (getIncomingLock())
+            {
+                completeBlockIfPossible();
+            }
+            return 0;
+        }
+
+        int count = messageValues.size();
+        long messageId = takeMessageIds(count);
+        if (metrics != null) metrics.messagesQueued(messageId, count);
+        for (int i = 0; i < count; i++)
+            messages.add(messageValues.get(i), messageId + i);
+        OFFERS_IN_PROGRESS.getAndAdd(this, -1);
+
+        processAsyncAfterOfferWithoutLock();
+        return count;
+    }
+
+    private void processAsyncAfterOfferWithoutLock()
+    {
+        // A processing task that found the queue empty decrements numberOfOutstandingOperations before
+        // it checks the queue once more, and we added to the queue before reading the count, so a
+        // message can't be left without a task to process it. If every slot is taken, skip the lock.
+        if (decliningPermanently || getHasRoomForMoreServiceTasks())
+        {
+            synchronized (getIncomingLock())
+            {
+                processAsyncIfNecessary();
+                completeBlockIfPossible();
+            }
+        }
+    }
+
+    /*
+     * Reserves count consecutive input message IDs and returns the first.
+     */
+    private long takeMessageIds(int count)
+    {
+        return (long) NEXT_AVAILABLE_INPUT_MESSAGE_ID.getAndAdd(this, (long) count);
+    }
+
+    /*
+     * Stores an exception that will fault the block's completion. Must be called while holding the incoming lock.
+     */
+    private void addException(Exception exception)
+    {
+        if (exceptions == null)
+            exceptions = new ArrayList<>();
+
+        exceptions.add(exception);
+    }
+
+    /*
+     * Gets a future that completes once the core has completed and finished processing.
+     */
+    CompletableFuture<Void> getCompletion() { return completionSource; }
+
     int getInputSize()
     {
         return messages.sizeSafe(getIncomingLock());
     }
 
+    /*
+     * Gets the number of messages being processed, along with the tasks processing them.
+     */
+    int getOutstandingOperations()
+    {
+        return numberOfOutstandingOperations;
+    }
+
+    /*
+     * Gets the number of messages counted against the bounded capacity, or 0 if the block is unbounded.
+     */
+    int getBoundedCount()
+    {
+        if (boundingState == null)
+            return 0;
+
+        synchronized (getIncomingLock())
+        {
+            return boundingState.CurrentCount;
+        }
+    }
+
+    /*
+     * Gets the number of messages postponed because the block was full.
+     */
+    int getPostponedCount()
+    {
+        if (boundingState == null)
+            return 0;
+
+        synchronized (getIncomingLock())
+        {
+            return boundingState.postponedMessages.size();
+        }
+    }
+
+    /*
+     * Gets the recorder for the block's metrics, or null if they're disabled.
+     */
+    MetricsRecorder getMetricsRecorder() { return metrics; }
+
+    /*
+     * Creates the metrics of a block built on this core.
+     *
+     * @param outputCount Supplies the size of the block's output queue, or null if it has none.
+     * @param messagesOutput Supplies the number of messages the block has output, or null if it has no output.
+     */
+    DataflowBlockMetrics createMetrics(IntSupplier outputCount, LongSupplier messagesOutput)
+    {
+        return new DataflowBlockMetrics(metrics, this::getInputSize, outputCount, this::getOutstandingOperations,
+                this::getBoundedCount, this::getPostponedCount, messagesOutput);
+    }
+
     private boolean getUsesAsyncCompletion()
     {
         return (targetCoreOptions.contains(TargetCoreOptions.USES_ASYNC_COMPLETION));
@@ -222,59 +469,74 @@ public class TargetCore<TInput> {
             if (getUsesAsyncCompletion())
                 numberOfOutstandingServiceTasks++;
 
-            Executors.newCachedThreadPool().submit(() -> {
-                processMessagesLoopCore();
-            });
-            // TODO: Left off the FEATURE_TRACING
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::processMessagesLoopCore);
+            }
+            catch (RuntimeException exception)
+            {
+                // The scheduler refused the work. Revert the number of outstanding
+                // operations and complete the block.
+                complete(exception, true, false, false, true);
+            }
         }
     }
 
     private void processMessagesLoopCore()
     {
-
-        AbstractMap.SimpleEntry<TInput, Long> messageWithId = new AbstractMap.SimpleEntry<>(null, 0L);
+        // Reused for every message this task processes, so processing doesn't allocate per message.
+        MessageWithId<TInput> messageWithId = new MessageWithId<>();
+        int numberOfMessagesProcessedByThisTask = 0;
+        // The number of messages this task processed that were already added to the metrics.
+        int numberOfMessagesRecorded = 0;
 
         try {
 
             boolean useAsyncCompletion = getUsesAsyncCompletion();
             boolean shouldAttemptPostponedTransfer = boundingState != null && boundingState.boundedCapacity > 1;
-            int numberOfMessagesProcessedByThisTask = 0;
             int numberOfMessagesProcessedSinceTheLastKeepAlive = 0;
             int maxMessagesPerTask = dataflowBlockOptions.getActualMaxMessagesPerTask();
+            // Without a MaxMessagesPerTask to stop at, the task stops at the end of a quantum if other
+            // work is waiting for the scheduler.
+            int endOfQuantum = dataflowBlockOptions.getMaxMessagesPerTask() == DataflowBlockOptions.Unbounded ?
+                    messagesPerQuantum : Integer.MAX_VALUE;
 
-            // TODO: implement the faulted or canceled check in this while loop.
-            while (numberOfMessagesProcessedByThisTask < maxMessagesPerTask)
+            while (numberOfMessagesProcessedByThisTask < maxMessagesPerTask && !getCanceledOrFaulted())
             {
-                AbstractMap.SimpleEntry<TInput, Long> transferMessageWithId;
+                if (numberOfMessagesProcessedByThisTask == endOfQuantum)
+                {
+                    if (shouldYieldToQueuedWork())
+                        break;
+
+                    endOfQuantum += messagesPerQuantum;
+                }
+
                 if (shouldAttemptPostponedTransfer)
                 {
-                    TryResult<AbstractMap.SimpleEntry<TInput, Long>> tryConsumeResult = tryConsumePostponedMessage(true);
-                    if (tryConsumeResult.isSuccess()) {
-                        transferMessageWithId = tryConsumeResult.getResult();
+                    if (tryConsumePostponedMessage(true, messageWithId)) {
                         synchronized (getIncomingLock()) {
                             // TODO: should we put the assert back in here?
                             boundingState.outstandingTransfers--;
-                            messages.add(transferMessageWithId);
+                            if (metrics != null) metrics.messagesQueued(messageWithId.id, 1);
+                            messages.add(messageWithId.value, messageWithId.id);
                             ProcessAsyncIfNecessary();
                         }
                     }
                 }
 
-                if (getUsesAsyncCompletion())
+                if (useAsyncCompletion)
                 {
-                    // TODO: implement this code.
-                    break;
+                    // Get the next message if DOP is available.
+                    // If we can't get a message or DOP is not available, bail out.
+                    if (!tryGetNextMessageForNewAsyncOperation(messageWithId))
+                        break;
                 }
                 else
                 {
-                    TryResult<AbstractMap.SimpleEntry<TInput, Long>> tryResult = tryGetNextAvailableOrPostponedMessage();
-                    if (!tryResult.isSuccess())
-                        break;
-                    else
+                    if (!tryGetNextAvailableOrPostponedMessage(messageWithId))
                     {
-                        messageWithId = tryResult.getResult();
                         // Try to keep the task alive only if Max DOP is 1.
-                        if (dataflowBlockOptions.getMaxDegreeOfParallelism() != 1)
+                        if (dataflowBlockOptions.getMaxDegreeOfParallelism() != 1 || Common.IS_SINGLE_PROCESSOR)
                             break;
 
                         if (numberOfMessagesProcessedSinceTheLastKeepAlive > Common.KEEP_ALIVE_NUMBER_OF_MESSAGES_THRESHOLD)
@@ -286,22 +548,46 @@ public class TargetCore<TInput> {
                         }
 
                         numberOfMessagesProcessedSinceTheLastKeepAlive = 0;
+
+                        if (!tryGetNextMessageKeepingAlive(messageWithId))
+                        {
+                            // Nothing arrived while we waited, so messages are too far apart for
+                            // keeping alive to pay off. Don't try again for a while.
+                            keepAliveBanCounter = Common.KEEP_ALIVE_BAN_COUNT;
+                            break;
+                        }
                     }
                 }
 
                 numberOfMessagesProcessedByThisTask++;
                 numberOfMessagesProcessedSinceTheLastKeepAlive++;
 
-                callAction.accept(messageWithId);
+                if (metrics != null && metrics.isSampled(messageWithId.id))
+                {
+                    // Sampled messages are timed, and also flush the processed count so that it
+                    // keeps up with a long-running task.
+                    long start = metrics.sampledMessageStarting(messageWithId.id);
+                    callAction.accept(messageWithId.value, messageWithId.id);
+                    metrics.sampledMessageProcessed(start);
+                    metrics.messagesProcessed.add(numberOfMessagesProcessedByThisTask - numberOfMessagesRecorded);
+                    numberOfMessagesRecorded = numberOfMessagesProcessedByThisTask;
+                }
+                else
+                    callAction.accept(messageWithId.value, messageWithId.id);
             }
 
         }
-        catch (Exception e)
+        catch (Exception exception)
         {
-            System.out.println(e.toString());
+            // Either the user-provided delegate or consuming a postponed message failed.
+            // Store the exception and stop accepting new messages.
+            complete(exception, true, true, false, false);
         }
         finally
         {
+            if (metrics != null)
+                metrics.messagesProcessed.add(numberOfMessagesProcessedByThisTask - numberOfMessagesRecorded);
+
             synchronized (getIncomingLock())
             {
                 // We incremented numberOfOutstandingOperations before we launched this
@@ -328,14 +614,124 @@ public class TargetCore<TInput> {
         }
     }
 
-    // TODO: implement tryGetNextMessageForNewAsyncOperation.
+    /*
+     * Called when a processing task reaches the end of its quantum. The task yields to other work queued
+     * on the scheduler, if there is any, and the quantum is halved, so that the block yields sooner while
+     * it's contended. Otherwise the task carries on, and the quantum is doubled, so that a block with a
+     * steady stream of messages checks less often.
+     */
+    private boolean shouldYieldToQueuedWork()
+    {
+        int quantum = messagesPerQuantum;
+
+        if (dataflowBlockOptions.getScheduler().hasQueuedWork())
+        {
+            messagesPerQuantum = Math.max(quantum >> 1, Common.MIN_MESSAGES_PER_QUANTUM);
+            return true;
+        }
+
+        messagesPerQuantum = Math.min(quantum << 1, Common.MAX_MESSAGES_PER_QUANTUM);
+        return false;
+    }
+
+    /*
+     * Keeps the processing task alive for a moment after the input queue ran dry, spinning briefly in case
+     * another message arrives, which is cheaper than ending the task and scheduling a new one for it.
+     */
+    private boolean tryGetNextMessageKeepingAlive(MessageWithId<TInput> messageWithId)
+    {
+        for (int spin = 0; spin < Common.KEEP_ALIVE_SPIN_COUNT; spin++)
+        {
+            for (int i = 1 << spin; i > 0; i--)
+                Thread.onSpinWait();
+
+            if (tryGetNextAvailableOrPostponedMessage(messageWithId))
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Retrieves the next message from the input queue for the useAsyncCompletion mode into
+     * messageWithId. Succeeds only if there was room within the degree of parallelism to
+     * launch another asynchronous operation and a message was available.
+     */
+    private boolean tryGetNextMessageForNewAsyncOperation(MessageWithId<TInput> messageWithId)
+    {
+        boolean parallelismAvailable;
+
+        synchronized (getIncomingLock())
+        {
+            // If we have room for another asynchronous operation, reserve it.
+            // If later it turns out that we had no work to fill the slot, we'll undo the reservation.
+            parallelismAvailable = getHasRoomForMoreOperations();
+            if (parallelismAvailable)
+                numberOfOutstandingOperations++;
+        }
+
+        if (parallelismAvailable)
+        {
+            // If a parallelism slot was available, try to get an item.
+            // Be careful, because an exception may be thrown from consuming a postponed message.
+            boolean gotMessage = false;
+            try
+            {
+                gotMessage = tryGetNextAvailableOrPostponedMessage(messageWithId);
+                if (gotMessage)
+                    return true;
+            }
+            finally
+            {
+                // We didn't get an item, so we need to release the parallelism reservation.
+                if (!gotMessage)
+                {
+                    synchronized (getIncomingLock())
+                    {
+                        numberOfOutstandingOperations--;
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Signals to the core that one asynchronous operation has completed, releasing
+     * its slot within the degree of parallelism.
+     *
+     * @param boundingCountChange The amount by which to change the bounding count when the block is bounded.
+     */
+    void signalOneAsyncMessageCompleted(int boundingCountChange)
+    {
+        synchronized (getIncomingLock())
+        {
+            // We're no longer processing the message, so decrement the count of
+            // outstanding operations. The count is never decremented below zero.
+            if (numberOfOutstandingOperations > 0)
+                numberOfOutstandingOperations--;
+
+            // Fix up the bounding count if necessary.
+            if (boundingState != null && boundingCountChange != 0)
+                boundingState.CurrentCount += boundingCountChange;
+
+            // However, we may have given up early because we hit our own configured
+            // processing limits rather than because we ran out of work to do. If that's
+            // the case, make sure we spin up another task to keep going.
+            processAsyncIfNecessary(true);
+
+            // If, however, we stopped because we ran out of work to do and we
+            // know we'll never get more, then complete.
+            completeBlockIfPossible();
+        }
+    }
 
-    private TryResult<AbstractMap.SimpleEntry<TInput, Long>> tryGetNextAvailableOrPostponedMessage()
+    private boolean tryGetNextAvailableOrPostponedMessage(MessageWithId<TInput> messageWithId)
     {
         // First, try to get a message from our input buffer.
-        TryResult<AbstractMap.SimpleEntry<TInput, Long>> result = messages.tryPoll();
-        if (result.isSuccess())
-            return result;
+        if (messages.tryPoll(messageWithId))
+            return true;
         else if (boundingState != null)
         {
             // if we can't, but if we have postponed messages due to bounding,
@@ -344,22 +740,22 @@ public class TargetCore<TInput> {
             // messages get queued up by the time we take the lock to manipulate
             // boundingState. So we have to double-check the input queue once we
             // take the lock before we consider postponed messages.
-            result = tryConsumePostponedMessage(false);
-            if (result.isSuccess())
-                return result;
+            if (tryConsumePostponedMessage(false, messageWithId))
+                return true;
         }
 
-        return new TryResult<>(false, null);
+        return false;
     }
 
-    private TryResult<AbstractMap.SimpleEntry<TInput, Long>> tryConsumePostponedMessage(boolean forPostponementTransfer)
+    private boolean tryConsumePostponedMessage(boolean forPostponementTransfer, MessageWithId<TInput> messageWithId)
     {
         boolean countIncrementedExpectingToGetItem = false;
         long messageId = Common.INVALID_REORDERING_ID;
 
         while (true)
         {
-            AbstractMap.SimpleEntry<ISourceBlock<TInput>, DataflowMessageHeader> element;
+            ISourceBlock<TInput> source;
+            DataflowMessageHeader messageHeader;
             synchronized (getIncomingLock())
             {
                 if (decliningPermanently)
@@ -369,15 +765,13 @@ public class TargetCore<TInput> {
                 // In particular, the input queue may have been filled up and messages may
                 // have gotten postponed. If we process such a postponed message, we would
                 // mess up the order. Therefore, we have to double-check the input queue first.
-                TryResult<AbstractMap.SimpleEntry<TInput, Long>> result = messages.tryPoll();
-                if (!forPostponementTransfer && result.isSuccess())
-                    return result;
+                if (!forPostponementTransfer && messages.tryPoll(messageWithId))
+                    return true;
 
                 // We can consume a message to process if there's one to process and also if
                 // we have logical room within our bound for the message.
-                TryResult<AbstractMap.SimpleEntry<ISourceBlock<TInput>, DataflowMessageHeader>> postponedResult = boundingState.postponedMessages.tryPoll();
-                element = postponedResult.getResult();
-                if (!boundingState.countIsLessThanBound() || !postponedResult.isSuccess())
+                QueuedMap.Entry<ISourceBlock<TInput>, DataflowMessageHeader> postponedMessage = boundingState.polledPostponedMessage;
+                if (!boundingState.countIsLessThanBound() || !boundingState.postponedMessages.tryPoll(postponedMessage))
                 {
                     if (countIncrementedExpectingToGetItem)
                     {
@@ -387,10 +781,13 @@ public class TargetCore<TInput> {
                     break;
                 }
 
+                source = postponedMessage.key;
+                messageHeader = postponedMessage.value;
+                postponedMessage.clear();
                 if (!countIncrementedExpectingToGetItem)
                 {
                     countIncrementedExpectingToGetItem = true;
-                    messageId = nextAvailableInputMessageId++;
+                    messageId = takeMessageIds(1);
                     boundingState.CurrentCount += 1;
                     if (forPostponementTransfer)
                     {
@@ -399,15 +796,21 @@ public class TargetCore<TInput> {
                 }
             }
 
-            TryResult<TInput> consumedMessageStatus = element.getKey().consumeMessage(element.getValue(), owningTarget);
+            TryResult<TInput> consumedMessageStatus = source.consumeMessage(messageHeader, owningTarget);
             if (consumedMessageStatus.isSuccess())
             {
-                return new TryResult<>(true, new AbstractMap.SimpleEntry<>(consumedMessageStatus.getResult(), messageId));
+                messageWithId.set(consumedMessageStatus.getResult(), messageId);
+                return true;
             }
             else
             {
                 if (forPostponementTransfer)
-                    boundingState.outstandingTransfers--;
+                {
+                    synchronized (getIncomingLock())
+                    {
+                        boundingState.outstandingTransfers--;
+                    }
+                }
             }
         }
 
@@ -420,7 +823,7 @@ public class TargetCore<TInput> {
         if (countIncrementedExpectingToGetItem)
             changeBoundingCount(-1);
 
-        return new TryResult<>(false, null);
+        return false;
     }
 
     /*
@@ -428,14 +831,15 @@ public class TargetCore<TInput> {
      */
     private boolean getCanceledOrFaulted()
     {
-        // TODO: implement the cancellationToken stuff
-        return false;
+        return dataflowBlockOptions.getCancellationToken().isCancellationRequested() || (exceptions != null && decliningPermanently);
     }
 
     private void completeBlockIfPossible()
     {
         // TODO: implement assertion
-        boolean noMoreMessages = decliningPermanently && messages.isEmpty();
+        // Read offersInProgress before the queue: an offer still in progress may be about to add a
+        // message, and one that starts later sees decliningPermanently and goes through the lock.
+        boolean noMoreMessages = decliningPermanently && (int) OFFERS_IN_PROGRESS.getVolatile(this) == 0 && messages.isEmpty();
         if (noMoreMessages || getCanceledOrFaulted())
         {
             completeBlockIfPossibleSlow();
@@ -451,6 +855,18 @@ public class TargetCore<TInput> {
             completionReserved = true;
 
             decliningPermanently = true;
+
+            // Get out from under the lock before completing, since completion
+            // runs continuations that may call back into this block.
+            try
+            {
+                dataflowBlockOptions.getScheduler().schedule(this::completeBlockOncePossible);
+            }
+            catch (RuntimeException exception)
+            {
+                addException(exception);
+                completeBlockOncePossible();
+            }
         }
     }
 
@@ -458,20 +874,39 @@ public class TargetCore<TInput> {
     {
         // TODO: impelment the assertion.
 
+        // Let the sources of any postponed messages offer them elsewhere. Completion is reserved and
+        // nothing is processing, so nothing else touches the postponed messages any more.
+        List<Exception> releaseExceptions = null;
         if (boundingState != null)
-        {
-            // TODO: implement the releaseAllPostponedMessages
-        }
+            releaseExceptions = Common.releaseAllPostponedMessages(owningTarget, boundingState.postponedMessages, null);
 
-        TryResult<AbstractMap.SimpleEntry<TInput, Long>> result = messages.tryPoll();
-        while (result.isSuccess())
+        List<Exception> exceptions;
+        synchronized (getIncomingLock())
         {
-            result = messages.tryPoll();
+            clearMessages();
+
+            if (releaseExceptions != null)
+            {
+                for (Exception exception : releaseExceptions)
+                    addException(exception);
+            }
+
+            exceptions = this.exceptions != null ? new ArrayList<>(this.exceptions) : null;
         }
 
-        // TODO: implement the exception handling and cancellation stuff.
+        // A block that stopped because of cancellation completes as canceled, unless it also faulted.
+        Common.completeWithExceptions(completionSource, exceptions, dataflowBlockOptions.getCancellationToken());
+    }
 
-        // TODO: Skipped the FEATURE_TRACING
+    /*
+     * Removes every message from the input queue. Must be called while holding the incoming lock.
+     */
+    private void clearMessages()
+    {
+        MessageWithId<TInput> dropped = new MessageWithId<>();
+        while (messages.tryPoll(dropped))
+        {
+        }
     }
 
     boolean isBounded() { return boundingState != null;}
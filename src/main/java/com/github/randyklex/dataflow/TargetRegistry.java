@@ -1,42 +1,103 @@
 package com.github.randyklex.dataflow;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 
+/*
+ * The targets linked to a source, in link order.
+ *
+ * Links change rarely while messages are offered constantly, so the registry is kept as an immutable
+ * snapshot that's replaced whenever a target is linked or unlinked. Offering loops iterate whatever
+ * snapshot they read without taking any lock, and mutations, which the owning source serializes
+ * under its outgoing lock, never disturb a snapshot that's being iterated.
+ *
+ * A snapshot also holds the routes of its links: for each message, the links that may take it, in
+ * link order. Without links made with a @see KeyRouter predicate that's every link. With them, it's
+ * the links for the message's key, found in a table, plus any links that can't be routed by key.
+ */
 final class TargetRegistry<T> {
 
+    private static final VarHandle REMAINING_MESSAGES;
+
+    static
+    {
+        try
+        {
+            REMAINING_MESSAGES = MethodHandles.lookup().findVarHandle(TargetRegistry.LinkedTargetInfo.class, "RemainingMessages", int.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final ISourceBlock<T> owningSource;
-    private final HashMap<ITargetBlock<T>, LinkedTargetInfo> targetInformation;
-    private LinkedTargetInfo firstTarget;
-    private LinkedTargetInfo lastTarget;
-    private int linksWithRemainingMessages;
+
+    private volatile Snapshot snapshot;
+
+    private volatile int linksWithRemainingMessages;
 
     TargetRegistry(ISourceBlock<T> owningSource)
     {
         this.owningSource = owningSource;
-        this.targetInformation = new HashMap<>();
+        this.snapshot = new Snapshot(newLinkArray(0));
     }
 
-    void add(ITargetBlock<T> target, DataflowLinkOptions linkOptions)
+    /*
+     * Creates an array of links. Arrays of an inner class of a generic class can only be created raw.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> TargetRegistry<T>.LinkedTargetInfo[] newLinkArray(int length)
     {
-        LinkedTargetInfo targetInfo;
+        return new TargetRegistry.LinkedTargetInfo[length];
+    }
 
-        if (targetInformation.containsKey(target))
+    ITargetBlock<T> add(ITargetBlock<T> target, DataflowLinkOptions linkOptions)
+    {
+        return add(target, linkOptions, null);
+    }
+
+    /*
+     * Adds a target to the registry. Must be called while holding the owning source's outgoing lock.
+     *
+     * @param predicate The filter messages must pass to be offered to the target, or null for none.
+     * @return The target as registered. A target that is already linked is wrapped in a propagator,
+     * so that each link can be tracked separately.
+     */
+    ITargetBlock<T> add(ITargetBlock<T> target, DataflowLinkOptions linkOptions, Predicate<T> predicate)
+    {
+        if (Contains(target))
             target = new NopLinkPropagator(owningSource, target);
 
-        LinkedTargetInfo node = new LinkedTargetInfo(target, linkOptions);
-        AddToList(node, linkOptions.isAppend());
-        targetInformation.put(target, node);
+        LinkedTargetInfo node = new LinkedTargetInfo(target, linkOptions, predicate);
+        LinkedTargetInfo[] current = snapshot.targets;
+        LinkedTargetInfo[] updated = newLinkArray(current.length + 1);
+        if (linkOptions.isAppend())
+        {
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = node;
+        }
+        else
+        {
+            updated[0] = node;
+            System.arraycopy(current, 0, updated, 1, current.length);
+        }
 
         if (node.RemainingMessages > 0) linksWithRemainingMessages++;
+        snapshot = new Snapshot(updated);
 
-        // TODO: left out the compiler directive for Feature Tracing
+        return target;
     }
 
     boolean Contains(ITargetBlock<T> target)
     {
-        return targetInformation.containsKey(target);
+        return indexOf(snapshot.targets, target) >= 0;
     }
 
     void Remove(ITargetBlock<T> target)
@@ -44,6 +105,11 @@ final class TargetRegistry<T> {
         Remove(target, false);
     }
 
+    /*
+     * Removes a target from the registry or, if onlyIfReachedMaxMessages, counts a message against its
+     * link and removes it only if that was the last message the link allows. Removing must be done
+     * while holding the owning source's outgoing lock; counting is atomic either way.
+     */
     void Remove(ITargetBlock<T> target, boolean onlyIfReachedMaxMessages)
     {
         if (target == null)
@@ -58,107 +124,219 @@ final class TargetRegistry<T> {
 
     private void Remove_Slow(ITargetBlock<T> target, boolean onlyIfReachedMaxMessages)
     {
-        if (target == null)
-            // TODO: convert this to a debug assert
-            throw new IllegalArgumentException("target cannot be null.");
-
-        LinkedTargetInfo node;
-        if (targetInformation.containsKey(target)) {
-            node = targetInformation.get(target);
+        LinkedTargetInfo[] current = snapshot.targets;
+        int index = indexOf(current, target);
+        if (index < 0)
+            return;
 
-            if (!onlyIfReachedMaxMessages || node.RemainingMessages == 1)
-            {
-                RemoveFromList(node);
-                targetInformation.remove(target);
+        LinkedTargetInfo node = current[index];
+        if (!onlyIfReachedMaxMessages || node.countMessage())
+        {
+            LinkedTargetInfo[] updated = newLinkArray(current.length - 1);
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
 
-                if (node.RemainingMessages == 0)
-                    linksWithRemainingMessages--;
+            if (node.RemainingMessages != DataflowLinkOptions.Unbounded)
+                linksWithRemainingMessages--;
 
-                // TODO: skipped FEATURE_TRACING directive
+            snapshot = new Snapshot(updated);
+        }
+    }
 
-            }
-            else if (node.RemainingMessages > 0)
-            {
-                // TODO: skipped the debug.assert
-                node.RemainingMessages--;
-            }
+    private int indexOf(LinkedTargetInfo[] targets, ITargetBlock<T> target)
+    {
+        for (int i = 0; i < targets.length; i++)
+        {
+            if (targets[i].Target == target)
+                return i;
         }
+
+        return -1;
     }
 
     /*
-     * Clears the target registry entry points while allowing subsequent traversals of the linked list.
+     * Empties the registry. Must be called while holding the owning source's outgoing lock.
+     *
+     * @return The targets that were registered, in link order.
      */
-    LinkedTargetInfo ClearEntryPoints()
+    LinkedTargetInfo[] ClearEntryPoints()
     {
-        // save firstTarget so we can return to it.
-        LinkedTargetInfo ft = firstTarget;
+        LinkedTargetInfo[] current = snapshot.targets;
 
-        firstTarget = lastTarget = null;
-        targetInformation.clear();
+        snapshot = new Snapshot(newLinkArray(0));
         linksWithRemainingMessages = 0;
 
-        return ft;
+        return current;
     }
 
     /*
-     * The first node of the ordered target list.
+     * Propagates the owning source's completion to every target whose link asked for it. Must be called
+     * once the source has completed, with the targets it had when it did, and without holding its locks,
+     * since completing a target can call back into its own targets.
+     *
+     * Every target is completed even if one throws; the first exception is then rethrown with the
+     * others suppressed.
      */
-    LinkedTargetInfo getFirstTargetNode() { return firstTarget; }
-
-    void AddToList(LinkedTargetInfo node, boolean append)
+    void propagateCompletion(LinkedTargetInfo[] targets)
     {
-        assert node != null;
+        CompletableFuture<?> owningSourceCompletion = owningSource.getCompletion();
+        assert owningSourceCompletion.isDone();
 
-        if (firstTarget == null && lastTarget == null)
-            firstTarget = lastTarget = node;
-        else
+        Throwable exception = null;
+        if (owningSourceCompletion.isCompletedExceptionally())
+            exception = owningSourceCompletion.handle((result, e) -> e).join();
+
+        RuntimeException failure = null;
+        for (LinkedTargetInfo target : targets)
         {
-            assert firstTarget != null && lastTarget != null;
-            assert lastTarget.Next == null;
-            assert firstTarget.Previous == null;
+            if (!target.PropagateCompletion)
+                continue;
 
-            if (append)
+            try
             {
-                node.Previous = lastTarget;
-                lastTarget.Next = node;
-                lastTarget = node;
+                Common.propagateCompletion(exception, target.Target);
             }
-            else
+            catch (RuntimeException e)
             {
-                node.Next = firstTarget;
-                firstTarget.Previous = node;
-                firstTarget = node;
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
             }
         }
 
-        // TODO: skipped the last assert.
+        if (failure != null)
+            throw failure;
     }
 
-    void RemoveFromList(LinkedTargetInfo node)
+    /*
+     * Gets a snapshot of the registered targets, in link order. The array must not be modified, and
+     * doesn't reflect links made or removed after it was taken.
+     */
+    LinkedTargetInfo[] getTargets() { return snapshot.targets; }
+
+    boolean hasTargets() { return snapshot.targets.length != 0; }
+
+    /*
+     * Gets the links that may take a message, in link order, extracting its routing key if there is one.
+     */
+    Route route(T message)
+    {
+        Snapshot current = snapshot;
+        if (current.router == null)
+            return current.allTargets;
+
+        Route route = current.routes.get(current.router.keyOf(message));
+        return route != null ? route : current.unroutedTargets;
+    }
+
+    /*
+     * The links a message may be offered to, in link order.
+     */
+    final class Route
     {
-        assert node != null;
-        assert firstTarget != null && lastTarget != null;
+        final LinkedTargetInfo[] targets;
 
-        LinkedTargetInfo previous = node.Previous;
-        LinkedTargetInfo next = node.Next;
+        // Whether each link is already known to pass the message, so its predicate needn't be tested.
+        final boolean[] matched;
 
-        if (node.Previous != null)
+        Route(LinkedTargetInfo[] targets, boolean[] matched)
         {
-            node.Previous.Next = next;
-            node.Previous = null;
+            this.targets = targets;
+            this.matched = matched;
         }
 
-        if (node.Next != null)
+        /*
+         * Gets whether the message passes the filter of the link at index.
+         */
+        boolean passes(int index, T message)
         {
-            node.Next.Previous = previous;
-            node.Next = null;
+            return matched[index] || targets[index].Filter.test(message);
         }
-
-        if (firstTarget == node) firstTarget = next;
-        if (lastTarget == node) lastTarget = previous;
     }
 
-    private int size() { return targetInformation.size(); }
+    /*
+     * An immutable view of the registry: its links and the routes through them.
+     */
+    private final class Snapshot
+    {
+        final LinkedTargetInfo[] targets;
+
+        final Route allTargets;
+
+        // The router whose keys the routes are looked up by, or null if messages aren't routed by key.
+        final KeyRouter<T, ?> router;
+
+        // The routes for each key that has links, and the route for all other keys.
+        final HashMap<Object, Route> routes;
+        final Route unroutedTargets;
+
+        Snapshot(LinkedTargetInfo[] targets)
+        {
+            this.targets = targets;
+
+            boolean[] matched = new boolean[targets.length];
+            KeyRouter<T, ?> router = null;
+            for (int i = 0; i < targets.length; i++)
+            {
+                matched[i] = targets[i].Filter == null;
+                if (router == null && targets[i].Filter instanceof KeyRouter.KeyPredicate)
+                    router = ((KeyRouter.KeyPredicate<T, ?>) targets[i].Filter).router;
+            }
+
+            this.allTargets = new Route(targets, matched);
+            this.router = router;
+
+            if (router == null)
+            {
+                this.routes = null;
+                this.unroutedTargets = null;
+                return;
+            }
+
+            // Walk the links in order, adding each routed link to the route for its key, and each link that
+            // can't be routed to every route, so every route keeps link order. A key's route starts out with
+            // the unrouted links that come before its first link.
+            HashMap<Object, ArrayList<LinkedTargetInfo>> routedLinks = new HashMap<>();
+            ArrayList<LinkedTargetInfo> unroutedLinks = new ArrayList<>();
+            for (LinkedTargetInfo target : targets)
+            {
+                if (target.Filter instanceof KeyRouter.KeyPredicate &&
+                        ((KeyRouter.KeyPredicate<T, ?>) target.Filter).router == router)
+                {
+                    Object key = ((KeyRouter.KeyPredicate<T, ?>) target.Filter).key;
+                    routedLinks.computeIfAbsent(key, k -> new ArrayList<>(unroutedLinks)).add(target);
+                }
+                else
+                {
+                    unroutedLinks.add(target);
+                    for (ArrayList<LinkedTargetInfo> links : routedLinks.values())
+                        links.add(target);
+                }
+            }
+
+            this.routes = new HashMap<>();
+            for (Map.Entry<Object, ArrayList<LinkedTargetInfo>> entry : routedLinks.entrySet())
+                this.routes.put(entry.getKey(), createRoute(entry.getValue(), router));
+
+            this.unroutedTargets = createRoute(unroutedLinks, router);
+        }
+
+        private Route createRoute(ArrayList<LinkedTargetInfo> links, KeyRouter<T, ?> router)
+        {
+            LinkedTargetInfo[] targets = links.toArray(newLinkArray(0));
+            boolean[] matched = new boolean[targets.length];
+            for (int i = 0; i < targets.length; i++)
+            {
+                // A link routed by its key only appears in the route for that key.
+                Predicate<T> predicate = targets[i].Filter;
+                matched[i] = predicate == null ||
+                        (predicate instanceof KeyRouter.KeyPredicate && ((KeyRouter.KeyPredicate<T, ?>) predicate).router == router);
+            }
+
+            return new Route(targets, matched);
+        }
+    }
 
     // TODO: left out the array of TargetsForDebugger
 
@@ -182,6 +360,13 @@ final class TargetRegistry<T> {
             return target.offerMessage(messageHeader, messageValue, this, consumeToAccept);
         }
 
+        @Override
+        public int offerMessages(DataflowMessageHeader firstMessageHeader, List<T> messageValues, ISourceBlock<T> source)
+        {
+            assert source == owningSource;
+            return target.offerMessages(firstMessageHeader, messageValues, this);
+        }
+
         public TryResult<T> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<T> target)
         {
             return owningSource.consumeMessage(messageHeader, this);
@@ -227,15 +412,37 @@ final class TargetRegistry<T> {
     {
         final ITargetBlock<T> Target;
         final boolean PropagateCompletion;
-        int RemainingMessages;
-        LinkedTargetInfo Previous;
-        LinkedTargetInfo Next;
 
-        LinkedTargetInfo(ITargetBlock<T> target, DataflowLinkOptions linkOptions)
+        // The filter messages must pass to be offered to the target, or null for none.
+        final Predicate<T> Filter;
+
+        // The number of messages the link may still propagate, or Unbounded. Only changed through countMessage.
+        volatile int RemainingMessages;
+
+        LinkedTargetInfo(ITargetBlock<T> target, DataflowLinkOptions linkOptions, Predicate<T> predicate)
         {
             this.Target = target;
+            this.Filter = predicate;
             this.PropagateCompletion = linkOptions.getPropagateCompletion();
             this.RemainingMessages = linkOptions.getMaxNumberOfMessages();
         }
+
+        /*
+         * Counts a message propagated across the link.
+         *
+         * @return Whether that was the last message the link allows, so the link should be removed.
+         */
+        boolean countMessage()
+        {
+            while (true)
+            {
+                int remaining = RemainingMessages;
+                if (remaining <= 0)
+                    return false;
+
+                if (REMAINING_MESSAGES.compareAndSet(this, remaining, remaining - 1))
+                    return remaining == 1;
+            }
+        }
     }
 }
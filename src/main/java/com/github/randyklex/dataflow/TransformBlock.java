@@ -0,0 +1,269 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/*
+ * Provides a dataflow block that invokes a provided function for every message received,
+ * and makes each result available to be received or propagated to linked targets.
+ *
+ * With a MaxDegreeOfParallelism greater than one, results are put back into input order
+ * before being output unless EnsureOrdered is turned off, in which case each result is
+ * output as soon as it has been produced.
+ */
+public class TransformBlock<TInput, TOutput> implements IPropagatorBlock<TInput, TOutput>, IReceivableSourceBlock<TOutput> {
+
+    private final TargetCore<TInput> target;
+
+    /*
+     * Buffer used to reorder outputs that may have completed out-of-order between the
+     * target half and the source half. Null if ordering isn't required.
+     */
+    private final ReorderingBuffer<TOutput> reorderingBuffer;
+
+    private final SourceCore<TOutput> source;
+
+    private final DataflowBlockMetrics metrics;
+
+    public TransformBlock(Function<TInput, TOutput> transform)
+    {
+        this(transform, ExecutionDataflowBlockOptions.Default);
+    }
+
+    public TransformBlock(Function<TInput, TOutput> transform, ExecutionDataflowBlockOptions options)
+    {
+        if (transform == null)
+            throw new IllegalArgumentException("transform cannot be null.");
+
+        if (options == null)
+            throw new IllegalArgumentException("options cannot be null.");
+
+        options = options.DefaultOrClone();
+
+        // Output items count against the bound, so a bounded block releases room as they leave the source half.
+        BiConsumer<ISourceBlock<TOutput>, Integer> onItemsRemoved = null;
+        if (options.getBoundedCapacity() > 0)
+            onItemsRemoved = (owningSource, count) -> TransformBlock.<TInput, TOutput>owningBlock(owningSource).target.changeBoundingCount(-count);
+
+        // Shared by both halves, so a traced block reports its input and output waits together.
+        MetricsRecorder metricsRecorder = MetricsRecorder.create(options);
+        source = new SourceCore<>(this, options,
+                owningSource -> TransformBlock.<TInput, TOutput>owningBlock(owningSource).target.complete(null, true),
+                onItemsRemoved,
+                null,
+                metricsRecorder);
+
+        // If parallelism is employed, we will need to support reordering messages that complete out-of-order.
+        if (options.getSupportsParallelExecution() && options.getEnsureOrdered())
+            reorderingBuffer = new ReorderingBuffer<>(this, (owningSource, message) -> TransformBlock.<TInput, TOutput>owningBlock(owningSource).source.addMessage(message));
+        else
+            reorderingBuffer = null;
+
+        target = new TargetCore<>(this,
+                (messageValue, messageId) -> processMessage(transform, messageValue, messageId),
+                reorderingBuffer,
+                options,
+                EnumSet.of(TargetCore.TargetCoreOptions.NONE),
+                metricsRecorder);
+
+        // Once the target half has completed, complete the source half, carrying over any fault.
+        target.getCompletion().whenComplete((result, exception) -> {
+            if (exception != null)
+                source.addException(exception);
+
+            source.complete();
+        });
+
+        // Cancellation completes the target half, dropping the messages that haven't been transformed.
+        Common.wireCancellationToComplete(options.getCancellationToken(), source.getCompletion(),
+                () -> target.complete(null, true));
+
+        metrics = target.createMetrics(source::getOutputCount, source::getMessagesOutput);
+
+        if (options.getTracer() != null)
+            options.getTracer().blockCreated(this, options, metrics);
+    }
+
+    /*
+     * Processes the message with a user-provided transform function that returns an output.
+     */
+    private void processMessage(Function<TInput, TOutput> transform, TInput messageValue, long messageId)
+    {
+        // Process the input message to get the output message.
+        TOutput outputItem = null;
+        boolean itemIsValid = false;
+        try
+        {
+            outputItem = transform.apply(messageValue);
+            itemIsValid = true;
+        }
+        catch (CancellationException exc)
+        {
+            // Cooperative cancellation just drops the message. Any other exception faults the block.
+        }
+        finally
+        {
+            // If we were not successful in producing an item, update the bounding
+            // count to reflect that we're done with this input item.
+            if (!itemIsValid)
+                target.changeBoundingCount(-1);
+
+            // If there's no reordering buffer (because we're running sequentially),
+            // simply pass the output message through. Otherwise, there's a reordering buffer,
+            // so add to it instead (if a reordering buffer is used, we always need
+            // to output the message to it, even if the operation failed and outputItem is
+            // null, since the reordering buffer is expecting an item for every ID).
+            if (reorderingBuffer == null)
+            {
+                if (itemIsValid)
+                {
+                    if (target.getDataflowBlockOptions().getSupportsParallelExecution())
+                    {
+                        // Results may be produced concurrently, but the source half only supports a single producer.
+                        synchronized (getParallelSourceLock())
+                        {
+                            source.addMessage(outputItem);
+                        }
+                    }
+                    else
+                    {
+                        source.addMessage(outputItem);
+                    }
+                }
+            }
+            else
+            {
+                reorderingBuffer.addItem(messageId, outputItem, itemIsValid);
+            }
+        }
+    }
+
+    /*
+     * Recovers the block from the owning source handed to its callbacks. TInput cannot be checked at runtime.
+     */
+    @SuppressWarnings("unchecked")
+    private static <TInput, TOutput> TransformBlock<TInput, TOutput> owningBlock(Object owningSource)
+    {
+        return (TransformBlock<TInput, TOutput>) owningSource;
+    }
+
+    /*
+     * Gets the lock used to serialize output from parallel, unordered processing into the source half.
+     */
+    private Object getParallelSourceLock() { return source; }
+
+    public void complete()
+    {
+        target.complete(null, false);
+    }
+
+    public void fault(Exception exception)
+    {
+        if (exception == null)
+            throw new IllegalArgumentException("exception cannot be null.");
+
+        target.complete(exception, true);
+    }
+
+    public CompletableFuture<?> getCompletion()
+    {
+        return source.getCompletion();
+    }
+
+    public boolean post(TInput item)
+    {
+        return target.offerMessage(Common.SingleMessageHeader, item, null, false) == DataflowMessageStatus.Accepted;
+    }
+
+    public DataflowMessageStatus offerMessage(DataflowMessageHeader messageHeader, TInput messageValue, ISourceBlock<TInput> source, boolean consumeToAccept)
+    {
+        return target.offerMessage(messageHeader, messageValue, source, consumeToAccept);
+    }
+
+    @Override
+    public int offerMessages(DataflowMessageHeader firstMessageHeader, List<TInput> messageValues, ISourceBlock<TInput> source)
+    {
+        return target.offerMessages(firstMessageHeader, messageValues, source);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<TOutput> target)
+    {
+        return linkTo(target, DataflowLinkOptions.Default);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<TOutput> target, DataflowLinkOptions linkOptions)
+    {
+        return source.LinkTo(target, linkOptions);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<TOutput> target, Predicate<TOutput> predicate)
+    {
+        return linkTo(target, DataflowLinkOptions.Default, predicate);
+    }
+
+    public AutoCloseable linkTo(ITargetBlock<TOutput> target, DataflowLinkOptions linkOptions, Predicate<TOutput> predicate)
+    {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null.");
+
+        return source.LinkTo(target, linkOptions, predicate);
+    }
+
+    public TryResult<TOutput> TryReceive(Predicate<TOutput> filter)
+    {
+        return source.tryReceive(filter);
+    }
+
+    public TryResult<List<TOutput>> TryReceiveAll()
+    {
+        return source.tryReceiveAll();
+    }
+
+    public int drainTo(Collection<? super TOutput> destination, int maxElements)
+    {
+        return source.drainTo(destination, maxElements);
+    }
+
+    public TryResult<TOutput> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        return source.consumeMessage(messageHeader, target);
+    }
+
+    public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        return source.reserveMessage(messageHeader, target);
+    }
+
+    public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<TOutput> target)
+    {
+        source.releaseReservation(messageHeader, target);
+    }
+
+    /*
+     * Gets the number of input items waiting to be processed by this block.
+     */
+    public int getInputCount()
+    {
+        return target.getInputSize();
+    }
+
+    /*
+     * Gets the number of output items available to be received from this block.
+     */
+    public int getOutputCount()
+    {
+        return source.getOutputCount();
+    }
+
+    /*
+     * Gets the block's metrics. Its counters and histograms are only recorded if the block was created
+     * with DataflowBlockOptions.MetricsEnabled set or a tracer.
+     */
+    public DataflowBlockMetrics getMetrics() { return metrics; }
+}
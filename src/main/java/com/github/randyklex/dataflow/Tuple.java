@@ -0,0 +1,47 @@
+package com.github.randyklex.dataflow;
+
+import java.util.Objects;
+
+/*
+ * An immutable pair of values, as output by JoinBlock and BatchedJoinBlock.
+ */
+public final class Tuple<T1, T2> {
+
+    private final T1 item1;
+    private final T2 item2;
+
+    public Tuple(T1 item1, T2 item2)
+    {
+        this.item1 = item1;
+        this.item2 = item2;
+    }
+
+    public T1 getItem1() { return item1; }
+
+    public T2 getItem2() { return item2; }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+
+        if (!(obj instanceof Tuple))
+            return false;
+
+        Tuple<?, ?> other = (Tuple<?, ?>) obj;
+        return Objects.equals(item1, other.item1) && Objects.equals(item2, other.item2);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(item1, item2);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "(" + item1 + ", " + item2 + ")";
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.randyklex.dataflow;
+
+/*
+ * How a block's dedicated consumer thread waits for messages while its queue is empty.
+ * See @see ExecutionDataflowBlockOptions#setDedicatedThread.
+ */
+public enum WaitStrategy {
+
+    /*
+     * Waits for up to the block's IdleWaitNanos as an idle consumer on a pool would, spinning and then
+     * yielding, and then parks until a message is posted. Only a producer that finds the thread parked
+     * pays to wake it.
+     */
+    Blocking,
+
+    /*
+     * Spins briefly, then yields the processor until a message is posted. The thread never parks, but
+     * other threads can run on its processor.
+     */
+    Yielding,
+
+    /*
+     * Spins until a message is posted, never giving up the processor. The lowest latency, at the cost of
+     * a processor for the life of the block, so it only makes sense with a processor to spare.
+     */
+    BusySpin
+}
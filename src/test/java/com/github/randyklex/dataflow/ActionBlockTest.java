@@ -5,10 +5,26 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import javax.management.ObjectName;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class ActionBlockTest {
@@ -51,4 +67,621 @@ public class ActionBlockTest {
         boolean completed= latch.await(2000, TimeUnit.MILLISECONDS);
         assertTrue(completed);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void postWithMaxDegreeOfParallelismProcessesEveryMessage() throws Exception {
+        CountDownLatch latch = new CountDownLatch(100);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(4);
+
+        ActionBlock<Integer> block = new ActionBlock<>((val) -> { latch.countDown(); }, options);
+
+        for (int i = 0; i < 100; i++)
+            block.post(i);
+
+        boolean completed = latch.await(2000, TimeUnit.MILLISECONDS);
+        assertTrue(completed);
+    }
+
+    @Test
+    public void postWithCurrentThreadSchedulerProcessesInline() throws Exception {
+        List<Integer> processed = new ArrayList<>();
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setScheduler(DataflowScheduler.currentThread());
+
+        ActionBlock<Integer> block = new ActionBlock<>((val) -> { processed.add(val); }, options);
+
+        block.post(1);
+        block.post(2);
+        block.post(3);
+
+        assertEquals(3, processed.size());
+        assertEquals(Integer.valueOf(1), processed.get(0));
+        assertEquals(Integer.valueOf(3), processed.get(2));
+    }
+
+    @Test
+    public void postWithVirtualThreadSchedulerRunsOnVirtualThreads() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1000);
+        AtomicBoolean allVirtual = new AtomicBoolean(true);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(1000);
+        options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+        ActionBlock<Integer> block = new ActionBlock<>((val) -> {
+            if (!Thread.currentThread().isVirtual())
+                allVirtual.set(false);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latch.countDown();
+        }, options);
+
+        for (int i = 0; i < 1000; i++)
+            block.post(i);
+
+        boolean completed = latch.await(5000, TimeUnit.MILLISECONDS);
+        assertTrue(completed);
+        assertTrue(allVirtual.get());
+    }
+
+    @Test
+    public void busyBlockYieldsToOtherBlocksOnTheSameScheduler() throws Exception {
+        int messageCount = 10_000;
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch otherBlockQueued = new CountDownLatch(1);
+        CountDownLatch busyBlockDone = new CountDownLatch(messageCount);
+        AtomicInteger processedWhenOtherBlockRan = new AtomicInteger(-1);
+
+        try (DataflowScheduler.FixedThreadPoolScheduler scheduler = DataflowScheduler.newFixedThreadPool(1)) {
+            ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+            options.setScheduler(scheduler);
+
+            ActionBlock<Integer> busyBlock = new ActionBlock<>((Integer val) -> {
+                if (val == 0) {
+                    started.countDown();
+                    try {
+                        otherBlockQueued.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                busyBlockDone.countDown();
+            }, options);
+            ActionBlock<Integer> otherBlock = new ActionBlock<>((Integer val) -> {
+                processedWhenOtherBlockRan.set(messageCount - (int) busyBlockDone.getCount());
+            }, options);
+
+            for (int i = 0; i < messageCount; i++)
+                busyBlock.post(i);
+
+            // The busy block holds the only thread while the other block's task is queued behind it.
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            otherBlock.post(0);
+            otherBlockQueued.countDown();
+
+            otherBlock.complete();
+            otherBlock.getCompletion().get(5, TimeUnit.SECONDS);
+            assertTrue(busyBlockDone.await(5, TimeUnit.SECONDS));
+        }
+
+        assertTrue(processedWhenOtherBlockRan.get() > 0);
+        assertTrue(processedWhenOtherBlockRan.get() < messageCount);
+    }
+
+    @Test
+    public void asyncActionBoundsOutstandingFuturesByMaxDegreeOfParallelism() throws Exception {
+        CountDownLatch latch = new CountDownLatch(200);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Executor delayed = CompletableFuture.delayedExecutor(2, TimeUnit.MILLISECONDS);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(8);
+
+        ActionBlock<Integer> block = new ActionBlock<Integer>((Integer val) -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            return CompletableFuture.runAsync(() -> {
+                inFlight.decrementAndGet();
+                latch.countDown();
+            }, delayed);
+        }, options);
+
+        for (int i = 0; i < 200; i++)
+            block.post(i);
+
+        boolean completed = latch.await(5000, TimeUnit.MILLISECONDS);
+        assertTrue(completed);
+        assertTrue(maxInFlight.get() <= 8);
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void concurrentPostsRacingCompleteProcessEveryAcceptedMessage() throws Exception {
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(4);
+
+        ActionBlock<Integer> block = new ActionBlock<>((val) -> { processed.incrementAndGet(); }, options);
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    if (block.post(i))
+                        accepted.incrementAndGet();
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        while (accepted.get() < 10_000)
+            Thread.yield();
+        block.complete();
+
+        for (Thread producer : producers)
+            producer.join();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (processed.get() < accepted.get() && System.nanoTime() < deadline)
+            Thread.sleep(1);
+
+        assertEquals(accepted.get(), processed.get());
+    }
+
+    @Test
+    public void idleWaitKeepsTheConsumerForTheNextMessageAndEndsOnCompletion() throws Exception {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        options.setIdleWaitNanos(TimeUnit.SECONDS.toNanos(30));
+
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            threads.add(Thread.currentThread());
+            (val == 1 ? first : second).countDown();
+        }, options);
+
+        block.post(1);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(10);
+        block.post(2);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+
+        // Completing the block ends the wait well before it would run out.
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+        assertEquals(2, threads.size());
+        assertSame(threads.get(0), threads.get(1));
+    }
+
+    @Test
+    public void dedicatedThreadProcessesEveryMessageAndExitsOnCompletion() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+            options.setSingleProducerConstrained(true);
+            options.setDedicatedThread(true);
+            options.setWaitStrategy(waitStrategy);
+
+            List<Thread> threads = new ArrayList<>();
+            AtomicInteger processed = new AtomicInteger();
+            ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+                if (threads.isEmpty() || threads.get(threads.size() - 1) != Thread.currentThread())
+                    threads.add(Thread.currentThread());
+                processed.incrementAndGet();
+            }, options);
+
+            for (int i = 0; i < 100; i++) {
+                block.post(i);
+                if (i % 10 == 0)
+                    Thread.sleep(1);
+            }
+
+            block.complete();
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            assertEquals(100, processed.get());
+            assertEquals(1, threads.size());
+            assertTrue(threads.get(0).getName().startsWith("dataflow-dedicated-"));
+
+            threads.get(0).join(5000);
+            assertFalse(threads.get(0).isAlive());
+        }
+    }
+
+    @Test
+    public void dedicatedThreadExitsWhenTheBlockFaults() throws Exception {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        options.setDedicatedThread(true);
+
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            thread.set(Thread.currentThread());
+            if (val > 0)
+                throw new IllegalStateException("boom");
+        }, options);
+
+        block.post(1);
+
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have faulted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        thread.get().join(5000);
+        assertFalse(thread.get().isAlive());
+    }
+
+    @Test
+    public void dedicatedThreadFaultsTheBlockWhenTheActionThrowsAnError() throws Exception {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        options.setDedicatedThread(true);
+
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            thread.set(Thread.currentThread());
+            if (val > 0)
+                throw new AssertionError("boom");
+        }, options);
+
+        block.post(1);
+
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have faulted");
+        } catch (ExecutionException e) {
+            // The error is stored wrapped in a CompletionException, which the future unwraps.
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        assertFalse(block.post(2));
+        thread.get().join(5000);
+        assertFalse(thread.get().isAlive());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dedicatedThreadRequiresASingleProducerConstrainedBlock() {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setDedicatedThread(true);
+
+        new ActionBlock<>((Integer val) -> { }, options);
+    }
+
+    @Test
+    public void completionCompletesOnceEveryMessageIsProcessed() throws Exception {
+        ExecutionDataflowBlockOptions constrained = new ExecutionDataflowBlockOptions();
+        constrained.setSingleProducerConstrained(true);
+
+        for (ExecutionDataflowBlockOptions options : List.of(ExecutionDataflowBlockOptions.Default, constrained)) {
+            AtomicInteger processed = new AtomicInteger();
+            ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { processed.incrementAndGet(); }, options);
+            for (int i = 0; i < 100; i++)
+                block.post(i);
+            block.complete();
+
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            assertEquals(100, processed.get());
+            assertFalse(block.post(100));
+        }
+    }
+
+    @Test
+    public void exceptionFromActionFaultsCompletion() throws Exception {
+        ExecutionDataflowBlockOptions constrained = new ExecutionDataflowBlockOptions();
+        constrained.setSingleProducerConstrained(true);
+
+        for (ExecutionDataflowBlockOptions options : List.of(ExecutionDataflowBlockOptions.Default, constrained)) {
+            IllegalStateException failure = new IllegalStateException("boom");
+            ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+                if (val == 3)
+                    throw failure;
+            }, options);
+            for (int i = 0; i < 10; i++)
+                block.post(i);
+
+            try {
+                block.getCompletion().get(5, TimeUnit.SECONDS);
+                fail("completion should have faulted");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+    }
+
+    @Test
+    public void cancellationStopsProcessingAndCancelsCompletion() throws Exception {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger processed = new AtomicInteger();
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setCancellationToken(cts.getToken());
+        options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            processed.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, options);
+        for (int i = 0; i < 10; i++)
+            block.post(i);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        cts.cancel();
+        assertFalse(block.post(10));
+        release.countDown();
+
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have been canceled");
+        } catch (CancellationException e) {
+            assertTrue(block.getCompletion().isCancelled());
+        }
+        assertEquals(1, processed.get());
+    }
+
+    @Test
+    public void blockCreatedWithCanceledTokenCompletesRightAway() throws Exception {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        cts.cancel();
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setCancellationToken(cts.getToken());
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { }, options);
+
+        assertFalse(block.post(1));
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have been canceled");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void cancellationStopsASingleProducerBlock() throws Exception {
+        for (boolean dedicatedThread : new boolean[] { false, true }) {
+            CancellationTokenSource cts = new CancellationTokenSource();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger processed = new AtomicInteger();
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+            options.setSingleProducerConstrained(true);
+            options.setDedicatedThread(dedicatedThread);
+            options.setCancellationToken(cts.getToken());
+            options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+            ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+                thread.set(Thread.currentThread());
+                processed.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, options);
+            for (int i = 0; i < 10; i++)
+                block.post(i);
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            cts.cancel();
+            assertFalse(block.post(10));
+            release.countDown();
+
+            try {
+                block.getCompletion().get(5, TimeUnit.SECONDS);
+                fail("completion should have been canceled");
+            } catch (CancellationException e) {
+                assertTrue(block.getCompletion().isCancelled());
+            }
+            assertEquals(1, processed.get());
+
+            if (dedicatedThread) {
+                thread.get().join(5000);
+                assertFalse(thread.get().isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void singleProducerBlockCreatedWithCanceledTokenCompletesRightAway() throws Exception {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        cts.cancel();
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        options.setCancellationToken(cts.getToken());
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { }, options);
+
+        assertFalse(block.post(1));
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have been canceled");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void completionReleasesPostponedMessages() throws Exception {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setBoundedCapacity(1);
+        options.setCancellationToken(cts.getToken());
+        options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, options);
+        assertTrue(block.post(1));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        PostponingSource source = new PostponingSource();
+        DataflowMessageHeader header = new DataflowMessageHeader(7);
+        assertEquals(DataflowMessageStatus.Postponed, block.offerMessage(header, 2, source, true));
+
+        cts.cancel();
+        release.countDown();
+
+        try {
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have been canceled");
+        } catch (CancellationException expected) {
+        }
+        assertEquals(0, source.released.getCount());
+        assertEquals(7, source.releasedId);
+        assertFalse(source.consumed);
+    }
+
+    @Test
+    public void metricsCountProcessedMessagesAndSampleTheirLatencies() throws Exception {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMetricsEnabled(true);
+        ExecutionDataflowBlockOptions constrained = new ExecutionDataflowBlockOptions();
+        constrained.setMetricsEnabled(true);
+        constrained.setSingleProducerConstrained(true);
+
+        for (ExecutionDataflowBlockOptions blockOptions : List.of(options, constrained)) {
+            ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { }, blockOptions);
+            for (int i = 0; i < 4096; i++)
+                block.post(i);
+            block.complete();
+            block.getCompletion().get(5, TimeUnit.SECONDS);
+
+            // One message in every 1024 is timed.
+            DataflowBlockMetrics metrics = block.getMetrics();
+            assertTrue(metrics.isEnabled());
+            assertEquals(4096, metrics.getMessagesProcessed());
+            assertEquals(4, metrics.getActionTimeSampleCount());
+            assertEquals(4, metrics.getQueueWaitSampleCount());
+            assertTrue(metrics.getQueueWaitMaxNanos() >= metrics.getQueueWaitP50Nanos());
+            assertEquals(0, metrics.getInputCount());
+        }
+    }
+
+    @Test
+    public void metricsReportQueueDepthsAndPostponements() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setBoundedCapacity(2);
+        options.setMetricsEnabled(true);
+        options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, options);
+        assertTrue(block.post(1));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(block.post(2));
+        assertEquals(DataflowMessageStatus.Postponed, block.offerMessage(new DataflowMessageHeader(7), 3, new PostponingSource(), true));
+
+        DataflowBlockMetrics metrics = block.getMetrics();
+        assertEquals(1, metrics.getInputCount());
+        assertEquals(1, metrics.getOutstandingOperations());
+        assertEquals(2, metrics.getBoundedCount());
+        assertEquals(1, metrics.getPostponedCount());
+        assertEquals(1, metrics.getMessagesPostponed());
+
+        release.countDown();
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void metricsAreOnlyRecordedWhenEnabled() throws Exception {
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { });
+        for (int i = 0; i < 100; i++)
+            block.post(i);
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+
+        DataflowBlockMetrics metrics = block.getMetrics();
+        assertFalse(metrics.isEnabled());
+        assertEquals(0, metrics.getMessagesProcessed());
+        assertEquals(0, metrics.getActionTimeSampleCount());
+    }
+
+    @Test
+    public void metricsCanBeReadOverJmx() throws Exception {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMetricsEnabled(true);
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { }, options);
+        for (int i = 0; i < 10; i++)
+            block.post(i);
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+
+        block.getMetrics().registerMBean("ActionBlockTest");
+        try {
+            ObjectName name = new ObjectName("com.github.randyklex.dataflow:type=DataflowBlock,name=\"ActionBlockTest\"");
+            assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MessagesProcessed"));
+        } finally {
+            block.getMetrics().unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("com.github.randyklex.dataflow:type=DataflowBlock,name=\"ActionBlockTest\"")));
+    }
+
+    /*
+     * A source that hands out reservations and records them being released, without ever letting
+     * its message be consumed.
+     */
+    private static final class PostponingSource implements ISourceBlock<Integer> {
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile long releasedId;
+        volatile boolean consumed;
+
+        public TryResult<Integer> consumeMessage(DataflowMessageHeader messageHeader, ITargetBlock<Integer> target) {
+            consumed = true;
+            return new TryResult<>(false, null);
+        }
+
+        public boolean reserveMessage(DataflowMessageHeader messageHeader, ITargetBlock<Integer> target) {
+            return true;
+        }
+
+        public void releaseReservation(DataflowMessageHeader messageHeader, ITargetBlock<Integer> target) {
+            releasedId = messageHeader.getId();
+            released.countDown();
+        }
+
+        public AutoCloseable linkTo(ITargetBlock<Integer> target) { throw new UnsupportedOperationException(); }
+
+        public AutoCloseable linkTo(ITargetBlock<Integer> target, DataflowLinkOptions linkOptions) { throw new UnsupportedOperationException(); }
+
+        public AutoCloseable linkTo(ITargetBlock<Integer> target, Predicate<Integer> predicate) { throw new UnsupportedOperationException(); }
+
+        public AutoCloseable linkTo(ITargetBlock<Integer> target, DataflowLinkOptions linkOptions, Predicate<Integer> predicate) { throw new UnsupportedOperationException(); }
+
+        public CompletableFuture<?> getCompletion() { return new CompletableFuture<>(); }
+
+        public void complete() { }
+
+        public void fault(Exception exception) { }
+    }
+}
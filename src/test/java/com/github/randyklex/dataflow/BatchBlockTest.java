@@ -0,0 +1,145 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class BatchBlockTest {
+
+    private static <T> List<List<T>> receive(BatchBlock<T> block, int count) throws Exception {
+        List<List<T>> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            if (block.drainTo(received, count - received.size()) == 0)
+                Thread.sleep(1);
+        }
+        return received;
+    }
+
+    @Test
+    public void greedyBlockOutputsFullBatches() throws Exception {
+        BatchBlock<Integer> block = new BatchBlock<>(3);
+        for (int i = 0; i < 7; i++)
+            block.post(i);
+
+        assertEquals(List.of(List.of(0, 1, 2), List.of(3, 4, 5)), receive(block, 2));
+        assertEquals(0, block.getOutputCount());
+    }
+
+    @Test
+    public void completeOutputsThePartialBatch() throws Exception {
+        BatchBlock<Integer> block = new BatchBlock<>(3);
+        block.post(1);
+        block.post(2);
+        block.complete();
+        assertFalse(block.post(3));
+
+        assertEquals(List.of(List.of(1, 2)), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void triggerBatchOutputsThePartialBatch() throws Exception {
+        BatchBlock<Integer> block = new BatchBlock<>(100);
+        block.post(1);
+        block.post(2);
+        block.triggerBatch();
+        block.post(3);
+
+        assertEquals(List.of(List.of(1, 2)), receive(block, 1));
+    }
+
+    @Test
+    public void maxLingerOutputsThePartialBatch() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setMaxLinger(Duration.ofMillis(20));
+        BatchBlock<Integer> block = new BatchBlock<>(100, options);
+        block.post(1);
+        block.post(2);
+
+        assertEquals(List.of(List.of(1, 2)), receive(block, 1));
+
+        block.post(3);
+        assertEquals(List.of(List.of(3)), receive(block, 1));
+    }
+
+    @Test
+    public void maxNumberOfGroupsCompletesTheBlock() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setMaxNumberOfGroups(2);
+        BatchBlock<Integer> block = new BatchBlock<>(2, options);
+        for (int i = 0; i < 4; i++)
+            assertTrue(block.post(i));
+        assertFalse(block.post(4));
+
+        assertEquals(List.of(List.of(0, 1), List.of(2, 3)), receive(block, 2));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void boundedGreedyBlockConsumesPostponedMessagesInOrder() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setBoundedCapacity(10);
+        BatchBlock<Integer> block = new BatchBlock<>(5, options);
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((val) -> val);
+        source.linkTo(block);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            source.post(i);
+            expected.add(i);
+        }
+
+        List<Integer> received = new ArrayList<>();
+        for (List<Integer> batch : receive(block, 200)) {
+            assertEquals(5, batch.size());
+            received.addAll(batch);
+        }
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void nonGreedyBlockTakesOneMessageFromEachSource() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setGreedy(false);
+        BatchBlock<Integer> block = new BatchBlock<>(3, options);
+
+        List<BufferBlock<Integer>> sources = new ArrayList<>();
+        for (int s = 0; s < 3; s++) {
+            BufferBlock<Integer> source = new BufferBlock<>();
+            source.post(s * 10);
+            source.post(s * 10 + 1);
+            sources.add(source);
+        }
+
+        assertFalse(block.post(99));
+
+        sources.get(0).linkTo(block);
+        sources.get(1).linkTo(block);
+        Thread.sleep(20);
+        assertEquals(0, block.getOutputCount());
+        assertEquals(2, sources.get(0).getCount());
+
+        sources.get(2).linkTo(block);
+
+        List<List<Integer>> received = receive(block, 2);
+        assertEquals(2, received.size());
+        for (List<Integer> batch : received) {
+            List<Integer> sorted = new ArrayList<>(batch);
+            sorted.sort(null);
+            int offset = sorted.get(0);
+            assertEquals(List.of(offset, offset + 10, offset + 20), sorted);
+        }
+        for (BufferBlock<Integer> source : sources)
+            assertEquals(0, source.getCount());
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class BatchedJoinBlockTest {
+
+    private static <T> DataflowMessageStatus post(ITargetBlock<T> target, T item) {
+        return target.offerMessage(Common.SingleMessageHeader, item, null, false);
+    }
+
+    private static <T> List<T> receive(IReceivableSourceBlock<T> block, int count) throws Exception {
+        List<T> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            if (block.drainTo(received, count - received.size()) == 0)
+                Thread.sleep(1);
+        }
+        return received;
+    }
+
+    @Test
+    public void outputsABatchOnceTheTargetsHaveBatchSizeMessagesBetweenThem() throws Exception {
+        BatchedJoinBlock<Integer, String> block = new BatchedJoinBlock<>(3);
+        post(block.getTarget1(), 1);
+        post(block.getTarget2(), "a");
+        assertEquals(0, block.getOutputCount());
+
+        post(block.getTarget1(), 2);
+        post(block.getTarget1(), 3);
+
+        assertEquals(List.of(new Tuple<>(List.of(1, 2), List.of("a"))), receive(block, 1));
+    }
+
+    @Test
+    public void completingBothTargetsOutputsThePartialBatch() throws Exception {
+        BatchedJoinBlock<Integer, String> block = new BatchedJoinBlock<>(10);
+        post(block.getTarget2(), "a");
+        block.getTarget1().complete();
+        assertEquals(DataflowMessageStatus.DecliningPermanently, post(block.getTarget1(), 1));
+        post(block.getTarget2(), "b");
+        block.getTarget2().complete();
+
+        assertEquals(List.of(new Tuple<>(List.<Integer>of(), List.of("a", "b"))), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void maxNumberOfGroupsCompletesTheBlock() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setMaxNumberOfGroups(1);
+        BatchedJoinBlock<Integer, Integer> block = new BatchedJoinBlock<>(2, options);
+        post(block.getTarget1(), 1);
+        post(block.getTarget2(), 2);
+
+        assertEquals(DataflowMessageStatus.DecliningPermanently, post(block.getTarget1(), 3));
+        assertEquals(List.of(new Tuple<>(List.of(1), List.of(2))), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonGreedyOptions() {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setGreedy(false);
+        new BatchedJoinBlock<Integer, Integer>(2, options);
+    }
+}
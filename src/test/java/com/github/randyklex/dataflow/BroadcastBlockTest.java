@@ -0,0 +1,180 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class BroadcastBlockTest {
+
+    private static <T> void awaitCurrent(BroadcastBlock<T> block, T expected) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            TryResult<T> current = block.TryReceive(null);
+            if (current.isSuccess() && current.getResult().equals(expected))
+                return;
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void everyTargetIsOfferedTheSameInstance() throws Exception {
+        BroadcastBlock<Object> block = new BroadcastBlock<>(null);
+        CountDownLatch received = new CountDownLatch(300);
+        List<List<Object>> receivedByTarget = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            List<Object> messages = Collections.synchronizedList(new ArrayList<>());
+            receivedByTarget.add(messages);
+            block.linkTo(new ActionBlock<>((Object message) -> {
+                messages.add(message);
+                received.countDown();
+            }));
+        }
+
+        List<Object> posted = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Object message = new Object();
+            posted.add(message);
+            assertTrue(block.post(message));
+        }
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        for (List<Object> messages : receivedByTarget) {
+            for (int i = 0; i < posted.size(); i++)
+                assertSame(posted.get(i), messages.get(i));
+        }
+    }
+
+    @Test
+    public void cloningFunctionGivesEveryTargetItsOwnCopy() throws Exception {
+        BroadcastBlock<int[]> block = new BroadcastBlock<>(int[]::clone);
+        CountDownLatch received = new CountDownLatch(2);
+        List<int[]> copies = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < 2; t++) {
+            block.linkTo(new ActionBlock<>((int[] message) -> {
+                copies.add(message);
+                received.countDown();
+            }));
+        }
+
+        int[] message = {1, 2, 3};
+        block.post(message);
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertNotSame(message, copies.get(0));
+        assertNotSame(copies.get(0), copies.get(1));
+        assertEquals(2, copies.get(1)[1]);
+    }
+
+    @Test
+    public void cloningFunctionGivesSingleProducerTargetsTheirOwnCopy() throws Exception {
+        BroadcastBlock<int[]> block = new BroadcastBlock<>(int[]::clone);
+        CountDownLatch received = new CountDownLatch(2);
+        List<int[]> singleProducerCopies = Collections.synchronizedList(new ArrayList<>());
+        List<int[]> defaultCopies = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setSingleProducerConstrained(true);
+        block.linkTo(new ActionBlock<>((int[] message) -> {
+            singleProducerCopies.add(message);
+            received.countDown();
+        }, options));
+        block.linkTo(new ActionBlock<>((int[] message) -> {
+            defaultCopies.add(message);
+            received.countDown();
+        }));
+
+        int[] message = {1, 2, 3};
+        block.post(message);
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(1, singleProducerCopies.size());
+        assertEquals(1, defaultCopies.size());
+        assertNotSame(message, singleProducerCopies.get(0));
+        assertNotSame(message, defaultCopies.get(0));
+        assertNotSame(singleProducerCopies.get(0), defaultCopies.get(0));
+        assertEquals(3, singleProducerCopies.get(0)[2]);
+    }
+
+    @Test
+    public void receivingTheCurrentMessageDoesNotRemoveIt() throws Exception {
+        BroadcastBlock<Integer> block = new BroadcastBlock<>(null);
+        assertFalse(block.TryReceive(null).isSuccess());
+
+        block.post(1);
+        block.post(2);
+        awaitCurrent(block, 2);
+
+        assertEquals(Integer.valueOf(2), block.TryReceive(null).getResult());
+        assertEquals(Integer.valueOf(2), block.TryReceive(null).getResult());
+        assertFalse(block.TryReceive((val) -> val == 1).isSuccess());
+        assertEquals(List.of(2), block.TryReceiveAll().getResult());
+    }
+
+    @Test
+    public void newlyLinkedTargetIsOfferedTheCurrentMessage() throws Exception {
+        BroadcastBlock<Integer> block = new BroadcastBlock<>(null);
+        block.post(7);
+        awaitCurrent(block, 7);
+
+        CountDownLatch received = new CountDownLatch(1);
+        block.linkTo(new ActionBlock<>((Integer message) -> {
+            if (message == 7)
+                received.countDown();
+        }));
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void slowBoundedTargetSkipsStaleMessages() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setBoundedCapacity(1);
+        options.setScheduler(DataflowScheduler.virtualThreadPerTask());
+        ActionBlock<Integer> slow = new ActionBlock<>((Integer message) -> {
+            received.add(message);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }, options);
+
+        BroadcastBlock<Integer> block = new BroadcastBlock<>(null);
+        block.linkTo(slow);
+
+        for (int i = 1; i <= 5; i++) {
+            block.post(i);
+            awaitCurrent(block, i);
+        }
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 5), received);
+    }
+
+    @Test
+    public void completeCompletesTheBlock() throws Exception {
+        BroadcastBlock<Integer> block = new BroadcastBlock<>(null);
+        block.post(1);
+        block.complete();
+
+        assertFalse(block.post(2));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+}
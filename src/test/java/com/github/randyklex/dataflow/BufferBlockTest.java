@@ -0,0 +1,191 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class BufferBlockTest {
+
+    private static <T> List<T> drain(BufferBlock<T> block, int count) throws Exception {
+        List<T> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            if (block.drainTo(received, count - received.size()) == 0)
+                Thread.sleep(1);
+        }
+        return received;
+    }
+
+    @Test
+    public void receivesMessagesInPostOrder() {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        block.post(1);
+        block.post(2);
+        block.post(3);
+
+        assertEquals(3, block.getCount());
+        assertEquals(Integer.valueOf(1), block.TryReceive(null).getResult());
+        assertFalse(block.TryReceive((val) -> val == 3).isSuccess());
+        assertEquals(List.of(2, 3), block.TryReceiveAll().getResult());
+        assertFalse(block.TryReceive(null).isSuccess());
+    }
+
+    @Test
+    public void drainToTakesAtMostMaxElements() {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        for (int i = 0; i < 10; i++)
+            block.post(i);
+
+        List<Integer> received = new ArrayList<>();
+        assertEquals(4, block.drainTo(received, 4));
+        assertEquals(List.of(0, 1, 2, 3), received);
+        assertEquals(6, block.drainTo(received, 100));
+        assertEquals(10, received.size());
+        assertEquals(0, block.drainTo(received, 100));
+    }
+
+    @Test
+    public void boundedBufferDeclinesPostsWhileFull() {
+        DataflowBlockOptions options = new DataflowBlockOptions();
+        options.setBoundedCapacity(2);
+        BufferBlock<Integer> block = new BufferBlock<>(options);
+
+        assertTrue(block.post(1));
+        assertTrue(block.post(2));
+        assertFalse(block.post(3));
+
+        assertEquals(Integer.valueOf(1), block.TryReceive(null).getResult());
+        assertTrue(block.post(3));
+    }
+
+    @Test
+    public void boundedBufferConsumesPostponedMessagesInOrder() throws Exception {
+        DataflowBlockOptions options = new DataflowBlockOptions();
+        options.setBoundedCapacity(5);
+        BufferBlock<Integer> block = new BufferBlock<>(options);
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((val) -> val);
+        source.linkTo(block);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            source.post(i);
+            expected.add(i);
+        }
+
+        assertEquals(expected, drain(block, 1000));
+    }
+
+    @Test
+    public void metricsCountPostponedMessagesAndOutput() {
+        DataflowBlockOptions options = new DataflowBlockOptions();
+        options.setBoundedCapacity(1);
+        options.setMetricsEnabled(true);
+        BufferBlock<Integer> block = new BufferBlock<>(options);
+        BufferBlock<Integer> source = new BufferBlock<>();
+
+        assertTrue(block.post(1));
+        assertEquals(DataflowMessageStatus.Postponed, block.offerMessage(new DataflowMessageHeader(1), 2, source, true));
+
+        DataflowBlockMetrics metrics = block.getMetrics();
+        assertEquals(1, metrics.getOutputCount());
+        assertEquals(1, metrics.getBoundedCount());
+        assertEquals(1, metrics.getPostponedCount());
+        assertEquals(1, metrics.getMessagesPostponed());
+
+        assertEquals(Integer.valueOf(1), block.TryReceive(null).getResult());
+        assertEquals(1, metrics.getMessagesOutput());
+    }
+
+    @Test
+    public void linkedBufferPropagatesToTarget() throws Exception {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        TransformBlock<Integer, Integer> target = new TransformBlock<>((val) -> val * 2);
+        block.linkTo(target);
+
+        block.post(1);
+        block.post(2);
+
+        List<Integer> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < 2 && System.nanoTime() < deadline) {
+            if (target.drainTo(received, 2) == 0)
+                Thread.sleep(1);
+        }
+        assertEquals(List.of(2, 4), received);
+    }
+
+    @Test
+    public void filteredLinksOnlyReceiveMatchingMessages() throws Exception {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        BufferBlock<Integer> evens = new BufferBlock<>();
+        BufferBlock<Integer> odds = new BufferBlock<>();
+        block.linkTo(evens, (val) -> val % 2 == 0);
+        block.linkTo(odds, (val) -> val % 2 != 0);
+
+        for (int i = 1; i <= 6; i++)
+            block.post(i);
+
+        assertEquals(List.of(2, 4, 6), drain(evens, 3));
+        assertEquals(List.of(1, 3, 5), drain(odds, 3));
+    }
+
+    @Test
+    public void messageNoLinkMatchesStaysInBuffer() throws Exception {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        BufferBlock<Integer> evens = new BufferBlock<>();
+        block.linkTo(evens, (val) -> val % 2 == 0);
+
+        block.post(1);
+        Thread.sleep(50);
+
+        assertFalse(evens.TryReceive(null).isSuccess());
+        assertEquals(List.of(1), drain(block, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void linkingWithANullPredicateThrows() {
+        new BufferBlock<Integer>().linkTo(new BufferBlock<>(), DataflowLinkOptions.Default, null);
+    }
+
+    @Test
+    public void completionFinishesOnceBufferIsDrained() throws Exception {
+        BufferBlock<Integer> block = new BufferBlock<>();
+        block.post(1);
+        block.complete();
+        assertFalse(block.post(2));
+        assertFalse(block.getCompletion().isDone());
+
+        assertEquals(List.of(1), drain(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cancellationDropsBufferedMessagesAndCancelsCompletion() throws Exception {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        DataflowBlockOptions options = new DataflowBlockOptions();
+        options.setCancellationToken(cts.getToken());
+        BufferBlock<Integer> block = new BufferBlock<>(options);
+        block.post(1);
+        block.post(2);
+
+        cts.cancel();
+
+        assertFalse(block.post(3));
+        try {
+            block.getCompletion().get(2, TimeUnit.SECONDS);
+            fail("completion should have been canceled");
+        } catch (CancellationException expected) {
+        }
+        assertFalse(block.TryReceive(null).isSuccess());
+    }
+}
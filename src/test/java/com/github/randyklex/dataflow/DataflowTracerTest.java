@@ -0,0 +1,105 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class DataflowTracerTest {
+
+    @Test
+    public void tracesEveryStageOfALinkedPipeline() throws Exception {
+        DataflowTracer tracer = new DataflowTracer(1);
+        DataflowBlockOptions bufferOptions = new DataflowBlockOptions();
+        bufferOptions.setTracer(tracer);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setTracer(tracer);
+        ExecutionDataflowBlockOptions slowOptions = new ExecutionDataflowBlockOptions();
+        slowOptions.setTracer(tracer);
+        slowOptions.setScheduler(DataflowScheduler.virtualThreadPerTask());
+
+        BufferBlock<Integer> buffer = new BufferBlock<>(bufferOptions);
+        TransformBlock<Integer, Integer> slow = new TransformBlock<>((Integer val) -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return val;
+        }, slowOptions);
+        ActionBlock<Integer> sink = new ActionBlock<>((Integer val) -> { }, options);
+
+        DataflowLinkOptions propagate = new DataflowLinkOptions();
+        propagate.setPropagateCompletion(true);
+        buffer.linkTo(slow, propagate);
+        slow.linkTo(sink, propagate);
+
+        for (int i = 0; i < 100; i++)
+            buffer.post(i);
+        buffer.complete();
+        sink.getCompletion().get(10, TimeUnit.SECONDS);
+
+        List<DataflowTracer.Stage> stages = tracer.getStages();
+        assertEquals(3, stages.size());
+        assertEquals("BufferBlock id=1", stages.get(0).getName());
+        assertEquals("TransformBlock id=2", stages.get(1).getName());
+        assertEquals("ActionBlock id=3", stages.get(2).getName());
+
+        DataflowBlockMetrics bufferMetrics = stages.get(0).getMetrics();
+        assertEquals(100, bufferMetrics.getOutputWaitSampleCount());
+        assertEquals(0, bufferMetrics.getActionTimeSampleCount());
+
+        DataflowBlockMetrics slowMetrics = stages.get(1).getMetrics();
+        assertEquals(100, slowMetrics.getQueueWaitSampleCount());
+        assertEquals(100, slowMetrics.getActionTimeSampleCount());
+        assertEquals(100, slowMetrics.getOutputWaitSampleCount());
+        assertTrue(slowMetrics.getActionTimeP50Nanos() >= TimeUnit.MILLISECONDS.toNanos(1));
+
+        DataflowBlockMetrics sinkMetrics = stages.get(2).getMetrics();
+        assertEquals(100, sinkMetrics.getQueueWaitSampleCount());
+        assertEquals(100, sinkMetrics.getActionTimeSampleCount());
+        assertEquals(0, sinkMetrics.getOutputWaitSampleCount());
+
+        assertSame(stages.get(1), tracer.getSlowestStage());
+        assertTrue(tracer.report().contains("TransformBlock id=2"));
+    }
+
+    @Test
+    public void samplesOneMessageInEverySampleInterval() throws Exception {
+        DataflowTracer tracer = new DataflowTracer(16);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setTracer(tracer);
+        ActionBlock<Integer> block = new ActionBlock<>((Integer val) -> { }, options);
+
+        for (int i = 0; i < 160; i++)
+            block.post(i);
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+
+        assertEquals(10, block.getMetrics().getActionTimeSampleCount());
+        assertEquals(160, block.getMetrics().getMessagesProcessed());
+    }
+
+    @Test
+    public void slowestStageIsNullBeforeAnySample() {
+        DataflowTracer tracer = new DataflowTracer();
+        DataflowBlockOptions options = new DataflowBlockOptions();
+        options.setTracer(tracer);
+        new BufferBlock<Integer>(options);
+
+        assertEquals(1, tracer.getStages().size());
+        assertNull(tracer.getSlowestStage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleIntervalMustBeAPowerOfTwo() {
+        new DataflowTracer(3);
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class JoinBlockTest {
+
+    private static <T> DataflowMessageStatus post(ITargetBlock<T> target, T item) {
+        return target.offerMessage(Common.SingleMessageHeader, item, null, false);
+    }
+
+    private static <T> List<T> receive(IReceivableSourceBlock<T> block, int count) throws Exception {
+        List<T> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            if (block.drainTo(received, count - received.size()) == 0)
+                Thread.sleep(1);
+        }
+        return received;
+    }
+
+    @Test
+    public void greedyBlockJoinsMessagesInArrivalOrder() throws Exception {
+        JoinBlock<Integer, String> block = new JoinBlock<>();
+        post(block.getTarget1(), 1);
+        post(block.getTarget1(), 2);
+        assertEquals(0, block.getOutputCount());
+
+        post(block.getTarget2(), "a");
+        post(block.getTarget2(), "b");
+        post(block.getTarget2(), "c");
+
+        assertEquals(List.of(new Tuple<>(1, "a"), new Tuple<>(2, "b")), receive(block, 2));
+        assertEquals(0, block.getOutputCount());
+    }
+
+    @Test
+    public void threeWayBlockJoinsOneMessageFromEachTarget() throws Exception {
+        JoinBlock3<Integer, String, Boolean> block = new JoinBlock3<>();
+        post(block.getTarget3(), true);
+        post(block.getTarget1(), 1);
+        post(block.getTarget2(), "a");
+
+        assertEquals(List.of(new Tuple3<>(1, "a", true)), receive(block, 1));
+    }
+
+    @Test
+    public void completingATargetWithNothingToJoinCompletesTheBlock() throws Exception {
+        JoinBlock<Integer, Integer> block = new JoinBlock<>();
+        post(block.getTarget1(), 1);
+        post(block.getTarget1(), 2);
+        post(block.getTarget2(), 10);
+        block.getTarget2().complete();
+
+        assertEquals(DataflowMessageStatus.DecliningPermanently, post(block.getTarget1(), 3));
+        assertEquals(List.of(new Tuple<>(1, 10)), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void maxNumberOfGroupsCompletesTheBlock() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setMaxNumberOfGroups(1);
+        JoinBlock<Integer, Integer> block = new JoinBlock<>(options);
+        post(block.getTarget1(), 1);
+        post(block.getTarget2(), 2);
+
+        assertEquals(DataflowMessageStatus.DecliningPermanently, post(block.getTarget1(), 3));
+        assertEquals(List.of(new Tuple<>(1, 2)), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void boundedGreedyBlockConsumesPostponedMessagesInOrder() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setBoundedCapacity(10);
+        JoinBlock<Integer, Integer> block = new JoinBlock<>(options);
+        TransformBlock<Integer, Integer> source1 = new TransformBlock<>((val) -> val);
+        TransformBlock<Integer, Integer> source2 = new TransformBlock<>((val) -> -val);
+        source1.linkTo(block.getTarget1());
+        source2.linkTo(block.getTarget2());
+
+        for (int i = 0; i < 1000; i++) {
+            source1.post(i);
+            source2.post(i);
+        }
+
+        List<Tuple<Integer, Integer>> received = receive(block, 1000);
+        assertEquals(1000, received.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(new Tuple<>(i, -i), received.get(i));
+    }
+
+    @Test
+    public void nonGreedyBlockLeavesMessagesWithTheirSourcesUntilEveryTargetHasOne() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setGreedy(false);
+        JoinBlock<Integer, String> block = new JoinBlock<>(options);
+        assertEquals(DataflowMessageStatus.Declined, post(block.getTarget1(), 99));
+
+        BufferBlock<Integer> source1 = new BufferBlock<>();
+        BufferBlock<String> source2 = new BufferBlock<>();
+        source1.post(1);
+        source1.post(2);
+        source1.linkTo(block.getTarget1());
+        source2.linkTo(block.getTarget2());
+
+        Thread.sleep(20);
+        assertEquals(0, block.getOutputCount());
+        assertEquals(2, source1.getCount());
+
+        source2.post("a");
+        source2.post("b");
+
+        assertEquals(List.of(new Tuple<>(1, "a"), new Tuple<>(2, "b")), receive(block, 2));
+        assertEquals(0, source1.getCount());
+        assertEquals(0, source2.getCount());
+    }
+
+    @Test
+    public void nonGreedyBlocksCompetingForTheSameSourcesDoNotDeadlock() throws Exception {
+        GroupingDataflowBlockOptions options = new GroupingDataflowBlockOptions();
+        options.setGreedy(false);
+        JoinBlock<Integer, Integer> block1 = new JoinBlock<>(options);
+        JoinBlock<Integer, Integer> block2 = new JoinBlock<>(options);
+
+        BufferBlock<Integer> source1 = new BufferBlock<>();
+        BufferBlock<Integer> source2 = new BufferBlock<>();
+        source1.linkTo(block1.getTarget1());
+        source1.linkTo(block2.getTarget1());
+        source2.linkTo(block2.getTarget2());
+        source2.linkTo(block1.getTarget2());
+
+        for (int i = 0; i < 1000; i++) {
+            source1.post(i);
+            source2.post(i);
+        }
+
+        int joined = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<Tuple<Integer, Integer>> received = new ArrayList<>();
+        while (joined < 1000 && System.nanoTime() < deadline) {
+            int count = block1.drainTo(received, Integer.MAX_VALUE) + block2.drainTo(received, Integer.MAX_VALUE);
+            if (count == 0)
+                Thread.sleep(1);
+            joined += count;
+        }
+
+        assertEquals(1000, joined);
+        assertEquals(0, source1.getCount());
+        assertEquals(0, source2.getCount());
+        for (Tuple<Integer, Integer> join : received)
+            assertTrue(join.getItem1() != null && join.getItem2() != null);
+    }
+}
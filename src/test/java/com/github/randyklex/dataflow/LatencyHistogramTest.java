@@ -0,0 +1,65 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0.0, histogram.getMeanNanos(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreRecordedExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 32; value++)
+            histogram.record(value);
+
+        assertEquals(32, histogram.getCount());
+        assertEquals(15, histogram.getValueAtPercentile(50));
+        assertEquals(31, histogram.getValueAtPercentile(100));
+        assertEquals(15.5, histogram.getMeanNanos(), 0.0);
+    }
+
+    @Test
+    public void percentilesAreWithinASixteenthOfTheRecordedValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++)
+            histogram.record(value * 1_000);
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000L, histogram.getMaxNanos());
+        assertEquals(100_000_000L, histogram.getValueAtPercentile(100));
+
+        for (double percentile : new double[] { 1, 25, 50, 90, 99, 99.9 }) {
+            long exact = (long) (percentile * 1_000) * 1_000;
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported, reported >= exact && reported <= exact + exact / 16);
+        }
+    }
+
+    @Test
+    public void largeAndNegativeValuesStayInRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileOutOfRangeThrows() {
+        new LatencyHistogram().getValueAtPercentile(101);
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class QueuedMapTest {
+
+    /*
+     * A key whose hash code is shared by every key in the same group, to force index collisions.
+     */
+    private static final class CollidingKey {
+        final int id;
+
+        CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id / 8;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CollidingKey && ((CollidingKey) obj).id == id;
+        }
+    }
+
+    @Test
+    public void pollReturnsKeysInInsertionOrder() {
+        QueuedMap<String, Integer> map = new QueuedMap<>(2);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+
+        QueuedMap.Entry<String, Integer> entry = new QueuedMap.Entry<>();
+        assertTrue(map.tryPoll(entry));
+        assertEquals("a", entry.key);
+        assertTrue(map.tryPoll(entry));
+        assertEquals("b", entry.key);
+        assertTrue(map.tryPoll(entry));
+        assertEquals("c", entry.key);
+        assertFalse(map.tryPoll(entry));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void putOfQueuedKeyReplacesValueAndKeepsPosition() {
+        QueuedMap<String, Integer> map = new QueuedMap<>();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("a", 3);
+        assertEquals(2, map.size());
+
+        QueuedMap.Entry<String, Integer> entry = new QueuedMap.Entry<>();
+        assertTrue(map.tryPoll(entry));
+        assertEquals("a", entry.key);
+        assertEquals(Integer.valueOf(3), entry.value);
+        assertTrue(map.tryPoll(entry));
+        assertEquals("b", entry.key);
+        assertEquals(Integer.valueOf(2), entry.value);
+    }
+
+    @Test
+    public void matchesLinkedHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        QueuedMap<CollidingKey, Integer> map = new QueuedMap<>(1);
+        LinkedHashMap<CollidingKey, Integer> expected = new LinkedHashMap<>();
+        QueuedMap.Entry<CollidingKey, Integer> entry = new QueuedMap.Entry<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            if (random.nextInt(3) != 0) {
+                CollidingKey key = new CollidingKey(random.nextInt(2_000));
+                map.put(key, i);
+                expected.put(key, i);
+            } else {
+                Iterator<Map.Entry<CollidingKey, Integer>> iterator = expected.entrySet().iterator();
+                if (iterator.hasNext()) {
+                    Map.Entry<CollidingKey, Integer> head = iterator.next();
+                    iterator.remove();
+                    assertTrue(map.tryPoll(entry));
+                    assertEquals(head.getKey(), entry.key);
+                    assertEquals(head.getValue(), entry.value);
+                } else {
+                    assertFalse(map.tryPoll(entry));
+                }
+            }
+            assertEquals(expected.size(), map.size());
+        }
+    }
+}
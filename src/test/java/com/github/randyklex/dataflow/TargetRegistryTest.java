@@ -0,0 +1,142 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TargetRegistryTest {
+
+    private static List<ITargetBlock<Integer>> targetsOf(TargetRegistry<Integer> registry) {
+        List<ITargetBlock<Integer>> targets = new ArrayList<>();
+        for (TargetRegistry<Integer>.LinkedTargetInfo linkedTarget : registry.getTargets())
+            targets.add(linkedTarget.Target);
+        return targets;
+    }
+
+    private static List<ITargetBlock<Integer>> routeOf(TargetRegistry<Integer> registry, Integer message) {
+        TargetRegistry<Integer>.Route route = registry.route(message);
+        List<ITargetBlock<Integer>> targets = new ArrayList<>();
+        for (int i = 0; i < route.targets.length; i++) {
+            if (route.passes(i, message))
+                targets.add(route.targets[i].Target);
+        }
+        return targets;
+    }
+
+    @Test
+    public void keepsTargetsInLinkOrder() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        BufferBlock<Integer> first = new BufferBlock<>();
+        BufferBlock<Integer> second = new BufferBlock<>();
+        BufferBlock<Integer> prepended = new BufferBlock<>();
+
+        DataflowLinkOptions prepend = new DataflowLinkOptions();
+        prepend.setAppend(false);
+
+        registry.add(first, DataflowLinkOptions.Default);
+        registry.add(second, DataflowLinkOptions.Default);
+        registry.add(prepended, prepend);
+
+        assertEquals(List.of(prepended, first, second), targetsOf(registry));
+
+        registry.Remove(first);
+        assertEquals(List.of(prepended, second), targetsOf(registry));
+        assertFalse(registry.Contains(first));
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        BufferBlock<Integer> target = new BufferBlock<>();
+        registry.add(target, DataflowLinkOptions.Default);
+
+        TargetRegistry<Integer>.LinkedTargetInfo[] snapshot = registry.getTargets();
+        registry.Remove(target);
+        registry.add(new BufferBlock<>(), DataflowLinkOptions.Default);
+
+        assertEquals(1, snapshot.length);
+        assertSame(target, snapshot[0].Target);
+    }
+
+    @Test
+    public void linkingATargetTwiceRegistersASeparateLink() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        BufferBlock<Integer> target = new BufferBlock<>();
+
+        assertSame(target, registry.add(target, DataflowLinkOptions.Default));
+        ITargetBlock<Integer> second = registry.add(target, DataflowLinkOptions.Default);
+
+        assertNotSame(target, second);
+        assertEquals(2, registry.getTargets().length);
+    }
+
+    @Test
+    public void removesALinkOnceItReachesMaxNumberOfMessages() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        BufferBlock<Integer> limited = new BufferBlock<>();
+        BufferBlock<Integer> unlimited = new BufferBlock<>();
+
+        DataflowLinkOptions options = new DataflowLinkOptions();
+        options.setMaxNumberOfMessages(2);
+        registry.add(limited, options);
+        registry.add(unlimited, DataflowLinkOptions.Default);
+
+        registry.Remove(unlimited, true);
+        registry.Remove(limited, true);
+        assertTrue(registry.Contains(limited));
+        assertTrue(registry.Contains(unlimited));
+
+        registry.Remove(limited, true);
+        assertFalse(registry.Contains(limited));
+        assertEquals(List.of(unlimited), targetsOf(registry));
+    }
+
+    @Test
+    public void routesByKeyInLinkOrder() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        KeyRouter<Integer, Integer> router = new KeyRouter<>((val) -> val % 3);
+        BufferBlock<Integer> unfiltered = new BufferBlock<>();
+        BufferBlock<Integer> zero = new BufferBlock<>();
+        BufferBlock<Integer> evens = new BufferBlock<>();
+        BufferBlock<Integer> one = new BufferBlock<>();
+        BufferBlock<Integer> anotherZero = new BufferBlock<>();
+
+        registry.add(unfiltered, DataflowLinkOptions.Default);
+        registry.add(zero, DataflowLinkOptions.Default, router.keyEquals(0));
+        registry.add(evens, DataflowLinkOptions.Default, (val) -> val % 2 == 0);
+        registry.add(one, DataflowLinkOptions.Default, router.keyEquals(1));
+        registry.add(anotherZero, DataflowLinkOptions.Default, router.keyEquals(0));
+
+        assertEquals(List.of(unfiltered, zero, evens, anotherZero), routeOf(registry, 6));
+        assertEquals(List.of(unfiltered, zero, anotherZero), routeOf(registry, 3));
+        assertEquals(List.of(unfiltered, one), routeOf(registry, 1));
+        assertEquals(List.of(unfiltered, evens, one), routeOf(registry, 4));
+    }
+
+    @Test
+    public void keyWithoutLinksFallsBackToUnroutedLinks() {
+        TargetRegistry<Integer> registry = new TargetRegistry<>(new BufferBlock<>());
+        KeyRouter<Integer, Integer> router = new KeyRouter<>((val) -> val % 3);
+        KeyRouter<Integer, Integer> otherRouter = new KeyRouter<>((val) -> val);
+        BufferBlock<Integer> zero = new BufferBlock<>();
+        BufferBlock<Integer> five = new BufferBlock<>();
+        BufferBlock<Integer> unfiltered = new BufferBlock<>();
+
+        registry.add(zero, DataflowLinkOptions.Default, router.keyEquals(0));
+        registry.add(five, DataflowLinkOptions.Default, otherRouter.keyEquals(5));
+        registry.add(unfiltered, DataflowLinkOptions.Default);
+
+        assertEquals(List.of(five, unfiltered), routeOf(registry, 5));
+        assertEquals(List.of(unfiltered), routeOf(registry, 7));
+        assertEquals(List.of(zero, unfiltered), routeOf(registry, 3));
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.randyklex.dataflow;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class TransformBlockTest {
+
+    private static <T> List<T> receive(TransformBlock<?, T> block, int count) throws Exception {
+        List<T> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            TryResult<List<T>> result = block.TryReceiveAll();
+            if (result.isSuccess())
+                received.addAll(result.getResult());
+            else
+                Thread.sleep(1);
+        }
+        return received;
+    }
+
+    private static ExecutionDataflowBlockOptions parallelOptions(boolean ensureOrdered) {
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setMaxDegreeOfParallelism(4);
+        options.setEnsureOrdered(ensureOrdered);
+        options.setScheduler(DataflowScheduler.newFixedThreadPool(4));
+        return options;
+    }
+
+    private static int jitter(int value) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return value * 2;
+    }
+
+    @Test
+    public void transformWithDefaultOptions() throws Exception {
+        TransformBlock<Integer, String> block = new TransformBlock<>((val) -> "value " + val);
+
+        block.post(1);
+        block.post(2);
+
+        assertEquals(List.of("value 1", "value 2"), receive(block, 2));
+    }
+
+    @Test
+    public void parallelTransformKeepsInputOrder() throws Exception {
+        TransformBlock<Integer, Integer> block = new TransformBlock<>(TransformBlockTest::jitter, parallelOptions(true));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            block.post(i);
+            expected.add(i * 2);
+        }
+
+        assertEquals(expected, receive(block, 200));
+    }
+
+    @Test
+    public void parallelTransformWithoutOrderingOutputsEveryResult() throws Exception {
+        TransformBlock<Integer, Integer> block = new TransformBlock<>(TransformBlockTest::jitter, parallelOptions(false));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            block.post(i);
+            expected.add(i * 2);
+        }
+
+        List<Integer> received = receive(block, 200);
+        Collections.sort(received);
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void completionFinishesOnceOutputIsDrained() throws Exception {
+        TransformBlock<Integer, Integer> block = new TransformBlock<>((val) -> val + 1);
+
+        block.post(1);
+        block.complete();
+        assertFalse(block.post(2));
+
+        assertEquals(List.of(2), receive(block, 1));
+        block.getCompletion().get(2, TimeUnit.SECONDS);
+        assertTrue(block.getCompletion().isDone());
+    }
+
+    @Test
+    public void exceptionInTransformFaultsTheBlock() throws Exception {
+        IllegalStateException failure = new IllegalStateException("boom");
+        TransformBlock<Integer, Integer> block = new TransformBlock<>((val) -> {
+            throw failure;
+        });
+
+        block.post(1);
+
+        try {
+            block.getCompletion().get(2, TimeUnit.SECONDS);
+            fail("completion should have faulted.");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void linkedPipelinePropagatesEveryMessageInOrder() throws Exception {
+        TransformBlock<Integer, Integer> first = new TransformBlock<>((val) -> val + 1);
+        TransformBlock<Integer, Integer> second = new TransformBlock<>((val) -> val * 10);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(100);
+        ActionBlock<Integer> last = new ActionBlock<>((val) -> {
+            received.add(val);
+            latch.countDown();
+        });
+
+        first.linkTo(second);
+        second.linkTo(last);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            first.post(i);
+            expected.add((i + 1) * 10);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void linkToBoundedTargetDeliversPostponedMessages() throws Exception {
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((val) -> val);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setBoundedCapacity(1);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(20);
+        ActionBlock<Integer> target = new ActionBlock<>((val) -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(val);
+            latch.countDown();
+        }, options);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            source.post(i);
+            expected.add(i);
+        }
+        source.linkTo(target);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(expected, received);
+        assertEquals(0, source.getOutputCount());
+    }
+
+    @Test
+    public void linkToBoundedParallelTargetDeliversEveryMessage() throws Exception {
+        TransformBlock<Integer, Integer> source = new TransformBlock<>((val) -> val);
+        ExecutionDataflowBlockOptions options = new ExecutionDataflowBlockOptions();
+        options.setBoundedCapacity(10);
+        options.setMaxDegreeOfParallelism(4);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(10_000);
+        ActionBlock<Integer> target = new ActionBlock<>((val) -> {
+            received.add(val);
+            latch.countDown();
+        }, options);
+
+        source.linkTo(target);
+        for (int i = 0; i < 10_000; i++)
+            source.post(i);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        List<Integer> sorted = new ArrayList<>(received);
+        Collections.sort(sorted);
+        for (int i = 0; i < 10_000; i++)
+            assertEquals(i, (int) sorted.get(i));
+    }
+
+    private static DataflowLinkOptions propagateCompletion() {
+        DataflowLinkOptions options = new DataflowLinkOptions();
+        options.setPropagateCompletion(true);
+        return options;
+    }
+
+    @Test
+    public void completionPropagatesDownALinkedPipeline() throws Exception {
+        TransformBlock<Integer, Integer> head = new TransformBlock<>((val) -> val + 1);
+        TransformBlock<Integer, Integer> previous = head;
+        for (int i = 0; i < 20; i++) {
+            TransformBlock<Integer, Integer> next = new TransformBlock<>((val) -> val + 1);
+            previous.linkTo(next, propagateCompletion());
+            previous = next;
+        }
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        ActionBlock<Integer> tail = new ActionBlock<>((Integer val) -> { received.add(val); });
+        previous.linkTo(tail, propagateCompletion());
+
+        for (int i = 0; i < 100; i++)
+            head.post(i);
+        head.complete();
+
+        tail.getCompletion().get(5, TimeUnit.SECONDS);
+        assertEquals(100, received.size());
+        assertEquals(Integer.valueOf(21), received.get(0));
+    }
+
+    @Test
+    public void faultPropagatesAlongLinks() throws Exception {
+        TransformBlock<Integer, Integer> head = new TransformBlock<>((val) -> val);
+        TransformBlock<Integer, Integer> middle = new TransformBlock<>((val) -> val);
+        BufferBlock<Integer> notPropagated = new BufferBlock<>();
+        head.linkTo(middle, propagateCompletion());
+        head.linkTo(notPropagated);
+        ActionBlock<Integer> tail = new ActionBlock<>((Integer val) -> { });
+        middle.linkTo(tail, propagateCompletion());
+
+        IllegalStateException failure = new IllegalStateException("boom");
+        head.fault(failure);
+
+        try {
+            tail.getCompletion().get(5, TimeUnit.SECONDS);
+            fail("completion should have faulted");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertFalse(notPropagated.getCompletion().isDone());
+    }
+
+    @Test
+    public void linkingToACompletedSourcePropagatesCompletion() throws Exception {
+        TransformBlock<Integer, Integer> block = new TransformBlock<>((val) -> val);
+        block.complete();
+        block.getCompletion().get(5, TimeUnit.SECONDS);
+
+        BufferBlock<Integer> target = new BufferBlock<>();
+        block.linkTo(target, propagateCompletion());
+
+        target.getCompletion().get(5, TimeUnit.SECONDS);
+    }
+}
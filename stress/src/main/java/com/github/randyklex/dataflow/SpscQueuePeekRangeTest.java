@@ -0,0 +1,60 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/*
+ * peekRange, racing with a producer that moves on to a new segment, must return a gap-free
+ * prefix of the queue: it may stop early, but must never skip the end of the old segment.
+ *
+ * Result: 1 if the peeked items were a gap-free prefix, 0 otherwise.
+ */
+@JCStressTest
+@Outcome(id = "1", expect = ACCEPTABLE, desc = "Peeked a prefix of the queue.")
+@Outcome(id = "0", expect = FORBIDDEN, desc = "Peeked items with a gap or out of order.")
+@State
+public class SpscQueuePeekRangeTest {
+
+    // The first segment holds one less than its 32 slots.
+    private static final int PREFILLED = 29;
+
+    private static final int ADDED = 4;
+
+    private final SingleProducerSingleConsumerQueue<Integer> queue = new SingleProducerSingleConsumerQueue<>();
+
+    private final Object[] peeked = new Object[PREFILLED + ADDED];
+
+    public SpscQueuePeekRangeTest()
+    {
+        for (int i = 0; i < PREFILLED; i++)
+            queue.add(i);
+    }
+
+    @Actor
+    public void producer()
+    {
+        for (int i = PREFILLED; i < PREFILLED + ADDED; i++)
+            queue.add(i);
+    }
+
+    @Actor
+    public void consumer(I_Result result)
+    {
+        int count = queue.peekRange(peeked, peeked.length);
+
+        boolean prefix = count >= PREFILLED;
+        for (int i = 0; i < count; i++)
+        {
+            if (!Integer.valueOf(i).equals(peeked[i]))
+                prefix = false;
+        }
+
+        result.r1 = prefix ? 1 : 0;
+    }
+}
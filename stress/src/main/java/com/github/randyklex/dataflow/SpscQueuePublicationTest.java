@@ -0,0 +1,52 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/*
+ * A consumer that polls an item must see the item's ID and everything written to the item
+ * before it was added.
+ *
+ * Results: whether the poll succeeded, the polled ID, and the polled item's field.
+ */
+@JCStressTest
+@Outcome(id = "0, 0, 0", expect = ACCEPTABLE, desc = "Polled before the add.")
+@Outcome(id = "1, 7, 42", expect = ACCEPTABLE, desc = "Polled the fully published item.")
+@Outcome(expect = FORBIDDEN, desc = "Polled an item without its ID or contents.")
+@State
+public class SpscQueuePublicationTest {
+
+    static final class Box
+    {
+        int value;
+    }
+
+    private final SingleProducerSingleConsumerQueue<Box> queue = new SingleProducerSingleConsumerQueue<>(true);
+
+    private final MessageWithId<Box> polled = new MessageWithId<>();
+
+    @Actor
+    public void producer()
+    {
+        Box box = new Box();
+        box.value = 42;
+        queue.add(box, 7);
+    }
+
+    @Actor
+    public void consumer(III_Result result)
+    {
+        if (queue.tryPoll(polled))
+        {
+            result.r1 = 1;
+            result.r2 = (int) polled.id;
+            result.r3 = polled.value == null ? -1 : polled.value.value;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.randyklex.dataflow;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+/*
+ * The producer adds items while the first segment is nearly full, so that it either wraps around
+ * into slots the consumer has just freed or moves on to a new segment, while the consumer polls.
+ * Every item must come out exactly once and in order, whichever way the race goes.
+ *
+ * Result: 1 if every item was seen once and in order, 0 otherwise.
+ */
+@JCStressTest
+@Outcome(id = "1", expect = ACCEPTABLE, desc = "Every item was polled once, in order.")
+@Outcome(id = "0", expect = FORBIDDEN, desc = "An item was lost, duplicated or reordered.")
+@State
+public class SpscQueueSegmentGrowthTest {
+
+    // The first segment holds one less than its 32 slots.
+    private static final int PREFILLED = 30;
+
+    private static final int ADDED = 4;
+
+    private final SingleProducerSingleConsumerQueue<Integer> queue = new SingleProducerSingleConsumerQueue<>(true);
+
+    private final MessageWithId<Integer> polled = new MessageWithId<>();
+
+    private long nextExpectedId;
+
+    private boolean inOrder = true;
+
+    public SpscQueueSegmentGrowthTest()
+    {
+        for (int i = 0; i < PREFILLED; i++)
+            queue.add(i, i);
+    }
+
+    @Actor
+    public void producer()
+    {
+        for (int i = PREFILLED; i < PREFILLED + ADDED; i++)
+            queue.add(i, i);
+    }
+
+    @Actor
+    public void consumer()
+    {
+        for (int i = 0; i < PREFILLED + ADDED; i++)
+        {
+            if (queue.tryPoll(polled))
+                check();
+        }
+    }
+
+    @Arbiter
+    public void arbiter(I_Result result)
+    {
+        while (queue.tryPoll(polled))
+            check();
+
+        result.r1 = inOrder && nextExpectedId == PREFILLED + ADDED && queue.isEmpty() ? 1 : 0;
+    }
+
+    private void check()
+    {
+        if (polled.id != nextExpectedId || polled.value != (int) nextExpectedId)
+            inOrder = false;
+
+        nextExpectedId++;
+    }
+}